@@ -67,6 +67,24 @@ public abstract class AbstractRenderer {
 	public abstract void render(Object3D obj, Camera camera, Graphics2D offg,
 			boolean nomal_inverse);
 
+	/**
+	 * Draw the level of detail fitting the screen size of an object.
+	 * 
+	 * @param lods
+	 *            levels of detail
+	 * @param camera
+	 *            Camera object
+	 * @param offg
+	 *            Offscreen buffer
+	 * @param nomal_inverse
+	 *            true if inverting normals
+	 */
+	public void render(LodChain lods, Camera camera, Graphics2D offg, boolean nomal_inverse) {
+		Object3D source = lods.getLevel(0);
+		render(lods.select(LodChain.getScreenRadius(source, worldMatrix)), camera, offg,
+				nomal_inverse);
+	}
+
 	/**
 	 * Set texture.
 	 * 
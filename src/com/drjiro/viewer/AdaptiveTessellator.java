@@ -0,0 +1,291 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: AdaptiveTessellator.java
+ *
+ * Tessellation of a parametric shape following its size on the screen.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Tessellation of a parametric shape following its size on the screen.
+ * </p>
+ * A parametric shape of {@link SimpleShape} is kept in its analytic form
+ * and tessellated in levels, the edges of level k being the extent of the
+ * shape divided by 2 to the k, so each level has about 4 times the
+ * triangles of the one before. For every frame the coarsest level whose
+ * edges are at most a number of pixels long is wanted; the levels are
+ * tessellated on a background thread, one finer level at a time, while the
+ * nearest tessellated level is drawn. Levels far from the wanted one are
+ * dropped, except the coarsest, which is always ready.
+ *
+ * @author wada
+ */
+public class AdaptiveTessellator implements Runnable {
+	/** Default length of an edge on the screen in pixels */
+	public static final float DEFAULT_EDGE_PIXELS = 8.0f;
+
+	/** Largest number of triangles of a level */
+	public static final long MAX_TRIANGLES = 1 << 22;
+
+	/** Number of levels including ones over the triangle limit */
+	private static final int LEVELS = 24;
+
+	/**
+	 * Receiver of tessellated levels. Methods are called on the tessellating
+	 * thread.
+	 */
+	public interface Listener {
+		/**
+		 * A level was tessellated.
+		 *
+		 * @param level tessellated level
+		 */
+		void levelReady(int level);
+	}
+
+	/** TORUS, SPHERE or TERRAIN */
+	private final int shape;
+
+	/** Seed of the terrain */
+	private final long seed;
+
+	/** Wanted length of an edge on the screen */
+	private final float edgePixels;
+
+	/** Largest absolute coordinate of the shape */
+	private final float extent;
+
+	/** Finest level within the triangle limit */
+	private final int maxLevel;
+
+	/** Snapshots of the tessellated levels, or null */
+	private final Mesh[] levels = new Mesh[LEVELS];
+
+	/** Level wanted by the last frame */
+	private int wanted;
+
+	/** Running flag of the thread */
+	private boolean running;
+
+	/** Tessellating thread, or null */
+	private Thread thread;
+
+	/** Receiver of tessellated levels, or null */
+	private Listener listener;
+
+	/**
+	 * Tessellate a shape with the default edge length.
+	 *
+	 * @param shape SimpleShape.TORUS, SPHERE or TERRAIN
+	 * @param seed seed of the terrain
+	 */
+	public AdaptiveTessellator(int shape, long seed) {
+		this(shape, seed, DEFAULT_EDGE_PIXELS);
+	}
+
+	/**
+	 * Tessellate a shape. The coarsest level is made at once.
+	 *
+	 * @param shape SimpleShape.TORUS, SPHERE or TERRAIN
+	 * @param seed seed of the terrain
+	 * @param edgePixels length of an edge on the screen in pixels
+	 */
+	public AdaptiveTessellator(int shape, long seed, float edgePixels) {
+		this.shape = shape;
+		this.seed = seed;
+		this.edgePixels = edgePixels;
+		extent = SimpleShape.getExtent(shape);
+		int k = 0;
+		while (k + 1 < LEVELS
+				&& SimpleShape.countTriangles(shape, getEdge(k + 1)) <= MAX_TRIANGLES) {
+			k++;
+		}
+		maxLevel = k;
+		levels[0] = tessellate(0);
+	}
+
+	/**
+	 * Get the edge length of a level.
+	 *
+	 * @param k level
+	 * @return edge length in object units
+	 */
+	private float getEdge(int k) {
+		return extent / (1 << k);
+	}
+
+	/**
+	 * Tessellate a level.
+	 *
+	 * @param k level
+	 * @return snapshot of the level
+	 */
+	private Mesh tessellate(int k) {
+		SimpleShape obj = new SimpleShape();
+		obj.tessellate(shape, getEdge(k), seed);
+		return obj.snapshot();
+	}
+
+	/**
+	 * Get the level whose edges are at most the wanted length for a scale.
+	 *
+	 * @param scale pixels per object unit
+	 * @return level
+	 */
+	public int getLevel(float scale) {
+		float segments = extent * scale / edgePixels;
+		int k = 0;
+		while (k < maxLevel && (1 << k) < segments) {
+			k++;
+		}
+		return k;
+	}
+
+	/**
+	 * Select the mesh to draw with a world matrix, and ask the background
+	 * thread for the wanted level if it is not ready.
+	 *
+	 * @param world world matrix, with a uniform scale
+	 * @return the ready level nearest to the wanted one
+	 */
+	public synchronized Mesh select(Matrix4f world) {
+		float scale = (float) Math.sqrt(world.m00 * world.m00 + world.m01 * world.m01
+				+ world.m02 * world.m02);
+		int k = getLevel(scale);
+		if (k != wanted) {
+			wanted = k;
+			notifyAll();
+		}
+		return levels[getNearest(k)];
+	}
+
+	/**
+	 * Get the ready level nearest to a level, the finer one on a tie.
+	 *
+	 * @param k level
+	 * @return ready level
+	 */
+	private int getNearest(int k) {
+		for (int d = 0; d <= maxLevel; d++) {
+			if (k + d <= maxLevel && levels[k + d] != null) {
+				return k + d;
+			}
+			if (k - d >= 0 && levels[k - d] != null) {
+				return k - d;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the next level to tessellate. A finer level is approached one
+	 * level at a time, so the drawn mesh refines while the wanted one is
+	 * made.
+	 *
+	 * @return level, or -1 if the wanted level is ready
+	 */
+	private int getNext() {
+		if (levels[wanted] != null) {
+			return -1;
+		}
+		int nearest = getNearest(wanted);
+		return nearest < wanted ? nearest + 1 : wanted;
+	}
+
+	/**
+	 * Set the receiver of tessellated levels.
+	 *
+	 * @param listener receiver, or null
+	 */
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Start tessellating on a daemon thread, or keep the running one after
+	 * stop().
+	 *
+	 * @return the tessellating thread
+	 */
+	public synchronized Thread start() {
+		running = true;
+		if (thread == null) {
+			thread = new Thread(this, "AdaptiveTessellator");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.start();
+		}
+		notifyAll();
+		return thread;
+	}
+
+	/**
+	 * Stop tessellating.
+	 */
+	public synchronized void stop() {
+		running = false;
+		notifyAll();
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			while (true) {
+				int k;
+				synchronized (this) {
+					while (running && getNext() < 0) {
+						wait();
+					}
+					if (!running) {
+						thread = null;
+						return;
+					}
+					k = getNext();
+				}
+				Mesh mesh = tessellate(k);
+				Listener l;
+				synchronized (this) {
+					levels[k] = mesh;
+					// Keep the coarsest level and the ones next to the wanted.
+					for (int i = 1; i <= maxLevel; i++) {
+						if (Math.abs(i - wanted) > 1 && i != k) {
+							levels[i] = null;
+						}
+					}
+					l = listener;
+				}
+				if (l != null) {
+					l.levelReady(k);
+				}
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				thread = null;
+			}
+		}
+	}
+
+	/**
+	 * Test whether the wanted level is ready.
+	 *
+	 * @return true if the wanted level is tessellated
+	 */
+	public synchronized boolean isReady() {
+		return levels[wanted] != null;
+	}
+
+	/**
+	 * Get the finest level within the triangle limit.
+	 *
+	 * @return level
+	 */
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: AmbientOcclusion.java
+ *
+ * Ambient occlusion baked per vertex.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Ambient occlusion baked per vertex.
+ * </p>
+ * Rays are cast from every vertex over the hemisphere of its normal, in a
+ * cosine weighted Hammersley pattern turned by a random angle per vertex,
+ * against a {@link Bvh} of the object. The fraction of the rays which hit
+ * nothing within a distance is kept as a byte per vertex, which a renderer
+ * multiplies into the vertex color. The vertices are baked in parallel.
+ * <p>
+ * The bytes are used while the position array they were baked for is the
+ * one of the object. They are saved next to the .OBJ file with a hash of
+ * the positions, normals and indices, so a model is baked once.
+ *
+ * @author wada
+ */
+public class AmbientOcclusion {
+	/** Default number of rays per vertex */
+	public static final int DEFAULT_SAMPLES = 64;
+
+	/** Default distance of an occluder, relative to the bounding radius */
+	public static final float DEFAULT_DISTANCE = 0.5f;
+
+	/** Extension of a cache file */
+	public static final String EXTENSION = ".wva";
+
+	/** Magic number */
+	private static final int MAGIC = 0x4F415657;
+
+	/** Format version */
+	private static final int VERSION = 2;
+
+	/** Number of vertices handled by a task without splitting */
+	private static final int GRAIN = 1 << 9;
+
+	/** Offset of a ray origin, and nearest hit, relative to the distance */
+	private static final float BIAS = 1e-3f;
+
+	/** Position array the occlusion was baked for */
+	final float[] positions;
+
+	/** Unoccluded fraction per vertex, 0 to 255 */
+	final byte[] values;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param positions vertex coordinates the values were baked for
+	 * @param values unoccluded fraction per vertex
+	 */
+	AmbientOcclusion(float[] positions, byte[] values) {
+		this.positions = positions;
+		this.values = values;
+	}
+
+	/**
+	 * Bake the occlusion of an object.
+	 *
+	 * @param obj object
+	 * @param samples rays per vertex
+	 * @param distance distance of an occluder, relative to the bounding
+	 *            radius
+	 * @return occlusion
+	 */
+	public static AmbientOcclusion bake(Object3D obj, int samples, float distance) {
+		Baker baker = new Baker(obj, samples, distance * obj.getRadius());
+		ForkJoinPool.commonPool().invoke(baker.new Pass(0, baker.vertexCount));
+		return new AmbientOcclusion(baker.positions, baker.values);
+	}
+
+	/**
+	 * Read the occlusion of an object from the cache next to its file, or
+	 * bake and save it if the cache does not match.
+	 *
+	 * @param source .OBJ file of the object
+	 * @param obj object
+	 * @param samples rays per vertex
+	 * @param distance distance of an occluder, relative to the bounding
+	 *            radius
+	 * @return occlusion
+	 */
+	public static AmbientOcclusion load(File source, Object3D obj, int samples, float distance) {
+		int n = obj.vertexCount;
+		float[] positions = obj.positions;
+		long hash = hash(obj);
+		File file = getCacheFile(source);
+		if (file.isFile()) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file)));
+				try {
+					if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readInt() == n
+							&& in.readInt() == samples && in.readFloat() == distance
+							&& in.readLong() == hash) {
+						byte[] values = new byte[n];
+						in.readFully(values);
+						return new AmbientOcclusion(positions, values);
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// Bake it again.
+			}
+		}
+		AmbientOcclusion ao = bake(obj, samples, distance);
+		try {
+			File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(n);
+				out.writeInt(samples);
+				out.writeFloat(distance);
+				out.writeLong(hash);
+				out.write(ao.values, 0, n);
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			// The cache is optional, e.g. on a read only directory.
+		}
+		return ao;
+	}
+
+	/**
+	 * Get the cache file of a .OBJ file.
+	 *
+	 * @param source .OBJ file
+	 * @return cache file
+	 */
+	public static File getCacheFile(File source) {
+		String name = source.getName();
+		if (name.toLowerCase().endsWith(".obj")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return new File(source.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Hash the mesh the rays are cast from and against.
+	 *
+	 * @param obj object
+	 * @return 64 bit FNV-1a hash of the positions, normals and indices
+	 */
+	private static long hash(Object3D obj) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < obj.vertexCount * 3; i++) {
+			h = (h ^ Float.floatToIntBits(obj.positions[i])) * 0x100000001B3L;
+			h = (h ^ Float.floatToIntBits(obj.normals[i])) * 0x100000001B3L;
+		}
+		for (int i = 0; i < obj.triangleCount * 3; i++) {
+			h = (h ^ obj.indices[i]) * 0x100000001B3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Get the unoccluded fraction of a vertex.
+	 *
+	 * @param v vertex
+	 * @return fraction in [0, 1]
+	 */
+	public float getValue(int v) {
+		return (values[v] & 0xFF) / 255.0f;
+	}
+
+	/**
+	 * Get the mean unoccluded fraction of the vertices.
+	 *
+	 * @return fraction in [0, 1]
+	 */
+	public float getMean() {
+		long sum = 0;
+		for (int i = 0; i < values.length; i++) {
+			sum += values[i] & 0xFF;
+		}
+		return values.length > 0 ? sum / 255.0f / values.length : 1;
+	}
+
+	/**
+	 * Ray caster of the vertices of an object.
+	 */
+	private static class Baker {
+		/** Vertex coordinates */
+		final float[] positions;
+
+		/** Normal vectors */
+		private final float[] normals;
+
+		/** Number of vertices */
+		final int vertexCount;
+
+		/** Hierarchy of the triangles */
+		private final Bvh bvh;
+
+		/** Ray directions around the Z axis, 3 per ray */
+		private final float[] rays;
+
+		/** Distance of an occluder */
+		private final float distance;
+
+		/** Unoccluded fraction per vertex */
+		final byte[] values;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param obj object
+		 * @param samples rays per vertex
+		 * @param distance distance of an occluder
+		 */
+		Baker(Object3D obj, int samples, float distance) {
+			vertexCount = obj.vertexCount;
+			positions = obj.positions;
+			normals = obj.normals;
+			bvh = new Bvh(obj);
+			this.distance = distance;
+			values = new byte[vertexCount];
+
+			// Hammersley points mapped to a cosine weighted hemisphere.
+			rays = new float[samples * 3];
+			for (int i = 0; i < samples; i++) {
+				float u = (i + 0.5f) / samples;
+				float v = (float) ((Integer.reverse(i) & 0xFFFFFFFFL) / 4294967296.0);
+				float r = (float) Math.sqrt(u);
+				double phi = Math.PI * 2 * v;
+				rays[i * 3] = r * (float) Math.cos(phi);
+				rays[i * 3 + 1] = r * (float) Math.sin(phi);
+				rays[i * 3 + 2] = (float) Math.sqrt(1 - u);
+			}
+		}
+
+		/**
+		 * Bake a range of vertices.
+		 *
+		 * @param from first vertex
+		 * @param to last vertex (exclusive)
+		 */
+		void bake(int from, int to) {
+			int samples = rays.length / 3;
+			float bias = distance * BIAS;
+			int[] stack = new int[64];
+			for (int v = from; v < to; v++) {
+				int p = v * 3;
+				float nx = normals[p];
+				float ny = normals[p + 1];
+				float nz = normals[p + 2];
+				float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (len == 0) {
+					values[v] = (byte) 255;
+					continue;
+				}
+				nx /= len;
+				ny /= len;
+				nz /= len;
+
+				// Tangents of the normal, as in Duff et al.
+				float sign = nz >= 0 ? 1.0f : -1.0f;
+				float a = -1 / (sign + nz);
+				float b = nx * ny * a;
+				float tx = 1 + sign * nx * nx * a;
+				float ty = sign * b;
+				float tz = -sign * nx;
+				float bx = b;
+				float by = sign + ny * ny * a;
+				float bz = -ny;
+
+				// Turn the pattern by a random angle per vertex.
+				double angle = (SimpleShape.hash(0, v) >>> 11) * (Math.PI * 2 / (1L << 53));
+				float cos = (float) Math.cos(angle);
+				float sin = (float) Math.sin(angle);
+
+				float ox = positions[p] + nx * bias;
+				float oy = positions[p + 1] + ny * bias;
+				float oz = positions[p + 2] + nz * bias;
+				int open = 0;
+				for (int i = 0; i < samples; i++) {
+					float rx = rays[i * 3] * cos - rays[i * 3 + 1] * sin;
+					float ry = rays[i * 3] * sin + rays[i * 3 + 1] * cos;
+					float rz = rays[i * 3 + 2];
+					float dx = tx * rx + bx * ry + nx * rz;
+					float dy = ty * rx + by * ry + ny * rz;
+					float dz = tz * rx + bz * ry + nz * rz;
+					if (!bvh.occluded(ox, oy, oz, dx, dy, dz, bias, distance, stack)) {
+						open++;
+					}
+				}
+				values[v] = (byte) ((open * 255 + samples / 2) / samples);
+			}
+		}
+
+		/**
+		 * Range of vertices.
+		 */
+		class Pass extends RecursiveAction {
+			/** Serial version UID */
+			private static final long serialVersionUID = 1L;
+
+			/** First vertex */
+			private final int from;
+
+			/** Last vertex (exclusive) */
+			private final int to;
+
+			/**
+			 * Constructor.
+			 *
+			 * @param from first vertex
+			 * @param to last vertex (exclusive)
+			 */
+			Pass(int from, int to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			/**
+			 * @see java.util.concurrent.RecursiveAction#compute()
+			 */
+			protected void compute() {
+				if (to - from > GRAIN) {
+					int mid = (from + to) >>> 1;
+					invokeAll(new Pass(from, mid), new Pass(mid, to));
+				} else {
+					bake(from, to);
+				}
+			}
+		}
+	}
+}
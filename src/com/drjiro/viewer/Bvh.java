@@ -0,0 +1,631 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: Bvh.java
+ *
+ * Bounding volume hierarchy of the triangles of a mesh.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Bounding volume hierarchy of the triangles of a mesh.
+ * </p>
+ * Nodes are split by the surface area heuristic over binned centroids, and
+ * large subtrees are built in parallel on a fork-join pool. The nodes are
+ * kept in flat arrays: 6 bounds per node, and either the first child of a
+ * sibling pair or the first triangle and the count of a leaf. A ray is cast
+ * through a pixel by the inverse of the world matrix to pick the nearest
+ * face under it.
+ *
+ * @author wada
+ */
+public class Bvh {
+	/** Number of bins of the surface area heuristic */
+	private static final int BINS = 16;
+
+	/** Largest number of triangles in a leaf */
+	private static final int MAX_LEAF = 8;
+
+	/** Cost of visiting a node relative to testing a triangle */
+	private static final float TRAVERSAL_COST = 1.0f;
+
+	/** Number of triangles below which a subtree is built on one thread */
+	private static final int PARALLEL_SIZE = 1 << 12;
+
+	/** Initial depth of the traversal stack */
+	private static final int STACK_SIZE = 64;
+
+	/**
+	 * Face hit by a ray.
+	 */
+	public static class Hit {
+		/** Index of the triangle */
+		public int face;
+
+		/** Barycentric weight of the second vertex */
+		public float u;
+
+		/** Barycentric weight of the third vertex */
+		public float v;
+
+		/** Depth of the hit on the screen */
+		public float distance;
+	}
+
+	/** Index array the hierarchy was built of */
+	final int[] indices;
+
+	/** Vertex coordinates */
+	private final float[] positions;
+
+	/** Triangles in the order of the leaves */
+	private final int[] triangles;
+
+	/** Bounds of the nodes, minimum and maximum per node */
+	private float[] bounds;
+
+	/** First child, or first triangle of a leaf, per node */
+	private int[] firsts;
+
+	/** Number of triangles of a leaf, or 0, per node */
+	private int[] counts;
+
+	/** Number of used nodes */
+	private final AtomicInteger nodeCount = new AtomicInteger(1);
+
+	/** Bounds of the triangles in the order of the list while building */
+	private final float[] boxes;
+
+	/**
+	 * Build the hierarchy of an object.
+	 *
+	 * @param obj object
+	 */
+	public Bvh(Object3D obj) {
+		this(obj, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Build the hierarchy of an object on a pool.
+	 *
+	 * @param obj object
+	 * @param pool fork-join pool
+	 */
+	public Bvh(Object3D obj, ForkJoinPool pool) {
+		int triangleCount = obj.triangleCount;
+		indices = obj.indices;
+		positions = obj.positions;
+		triangles = new int[triangleCount];
+		boxes = new float[triangleCount * 6];
+		for (int t = 0; t < triangleCount; t++) {
+			triangles[t] = t;
+			int p0 = indices[t * 3] * 3;
+			int p1 = indices[t * 3 + 1] * 3;
+			int p2 = indices[t * 3 + 2] * 3;
+			for (int k = 0; k < 3; k++) {
+				boxes[t * 6 + k] = Math.min(positions[p0 + k], Math.min(positions[p1 + k],
+						positions[p2 + k]));
+				boxes[t * 6 + 3 + k] = Math.max(positions[p0 + k], Math.max(positions[p1 + k],
+						positions[p2 + k]));
+			}
+		}
+		int maxNodes = Math.max(triangleCount * 2, 1);
+		bounds = new float[maxNodes * 6];
+		firsts = new int[maxNodes];
+		counts = new int[maxNodes];
+		pool.invoke(new BuildTask(0, 0, triangleCount));
+
+		// Trim the unused nodes.
+		int n = nodeCount.get();
+		float[] b = new float[n * 6];
+		System.arraycopy(bounds, 0, b, 0, b.length);
+		bounds = b;
+		int[] f = new int[n];
+		System.arraycopy(firsts, 0, f, 0, n);
+		firsts = f;
+		int[] c = new int[n];
+		System.arraycopy(counts, 0, c, 0, n);
+		counts = c;
+	}
+
+	/**
+	 * Build a subtree.
+	 */
+	private class BuildTask extends RecursiveAction {
+		/** Serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** Node to build */
+		private final int node;
+
+		/** First triangle */
+		private final int from;
+
+		/** Last triangle (exclusive) */
+		private final int to;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param node node to build
+		 * @param from first triangle
+		 * @param to last triangle (exclusive)
+		 */
+		BuildTask(int node, int from, int to) {
+			this.node = node;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		protected void compute() {
+			int left = split(node, from, to);
+			if (left < 0) {
+				return;
+			}
+			int mid = firsts[left];
+			BuildTask a = new BuildTask(left, from, mid);
+			BuildTask b = new BuildTask(left + 1, mid, to);
+			if (to - from > PARALLEL_SIZE) {
+				invokeAll(a, b);
+			} else {
+				a.compute();
+				b.compute();
+			}
+		}
+	}
+
+	/**
+	 * Compute the bounds of a node and split it, or make it a leaf.
+	 *
+	 * @param node node
+	 * @param from first triangle
+	 * @param to last triangle (exclusive)
+	 * @return first child, whose first holds the split position, or -1 for
+	 *         a leaf
+	 */
+	private int split(int node, int from, int to) {
+		// Centroids are kept doubled, as the sum of the minimum and maximum.
+		float[] box = new float[6];
+		reset(box);
+		float[] cmin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] cmax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = from; i < to; i++) {
+			grow(box, 0, boxes, i);
+			for (int k = 0; k < 3; k++) {
+				float c = boxes[i * 6 + k] + boxes[i * 6 + 3 + k];
+				if (c < cmin[k]) {
+					cmin[k] = c;
+				}
+				if (c > cmax[k]) {
+					cmax[k] = c;
+				}
+			}
+		}
+		int b = node * 6;
+		System.arraycopy(box, 0, bounds, b, 6);
+		int count = to - from;
+		if (count <= 2) {
+			return leaf(node, from, count);
+		}
+
+		// Find the cheapest split between bins on any axis. Small nodes get
+		// fewer bins, as clearing and sweeping them costs more than binning.
+		int bins = Math.min(BINS, count);
+		float bestCost = Float.MAX_VALUE;
+		int bestAxis = -1;
+		int bestBin = 0;
+		int[] binCounts = new int[BINS];
+		float[] binBounds = new float[BINS * 6];
+		float[] rightAreas = new float[BINS];
+		for (int axis = 0; axis < 3; axis++) {
+			float extent = cmax[axis] - cmin[axis];
+			if (extent <= 0) {
+				continue;
+			}
+			float scale = bins / extent;
+			Arrays.fill(binCounts, 0);
+			for (int i = 0; i < bins; i++) {
+				for (int k = 0; k < 3; k++) {
+					binBounds[i * 6 + k] = Float.MAX_VALUE;
+					binBounds[i * 6 + 3 + k] = -Float.MAX_VALUE;
+				}
+			}
+			for (int i = from; i < to; i++) {
+				float c = boxes[i * 6 + axis] + boxes[i * 6 + 3 + axis];
+				int bin = Math.min((int) ((c - cmin[axis]) * scale), bins - 1);
+				binCounts[bin]++;
+				grow(binBounds, bin, boxes, i);
+			}
+			// Sweep from the right, then from the left.
+			float[] acc = new float[6];
+			reset(acc);
+			for (int i = bins - 1; i > 0; i--) {
+				grow(acc, 0, binBounds, i);
+				rightAreas[i] = area(acc);
+			}
+			reset(acc);
+			int leftCount = 0;
+			for (int i = 0; i < bins - 1; i++) {
+				grow(acc, 0, binBounds, i);
+				leftCount += binCounts[i];
+				int rightCount = count - leftCount;
+				if (leftCount == 0 || rightCount == 0) {
+					continue;
+				}
+				float cost = area(acc) * leftCount + rightAreas[i + 1] * rightCount;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = i;
+				}
+			}
+		}
+		float leafCost = area(bounds, b) * count;
+		if (bestAxis < 0 || count <= MAX_LEAF
+				&& TRAVERSAL_COST * area(bounds, b) + bestCost >= leafCost) {
+			if (bestAxis < 0 && count > MAX_LEAF) {
+				// All centroids coincide; halve the list.
+				return children(node, from + count / 2);
+			}
+			return leaf(node, from, count);
+		}
+
+		// Partition the triangles by the bin of their centroid, moving their
+		// bounds along so the passes below read them in order.
+		float scale = bins / (cmax[bestAxis] - cmin[bestAxis]);
+		int i = from;
+		int j = to - 1;
+		while (i <= j) {
+			float c = boxes[i * 6 + bestAxis] + boxes[i * 6 + 3 + bestAxis];
+			int bin = Math.min((int) ((c - cmin[bestAxis]) * scale), bins - 1);
+			if (bin <= bestBin) {
+				i++;
+			} else {
+				int t = triangles[i];
+				triangles[i] = triangles[j];
+				triangles[j] = t;
+				for (int k = 0; k < 6; k++) {
+					float x = boxes[i * 6 + k];
+					boxes[i * 6 + k] = boxes[j * 6 + k];
+					boxes[j * 6 + k] = x;
+				}
+				j--;
+			}
+		}
+		return children(node, i);
+	}
+
+	/**
+	 * Make a node a leaf.
+	 *
+	 * @param node node
+	 * @param from first triangle
+	 * @param count number of triangles
+	 * @return -1
+	 */
+	private int leaf(int node, int from, int count) {
+		firsts[node] = from;
+		counts[node] = count;
+		return -1;
+	}
+
+	/**
+	 * Allocate the children of a node.
+	 *
+	 * @param node node
+	 * @param mid first triangle of the second child
+	 * @return first child, holding mid until it is built
+	 */
+	private int children(int node, int mid) {
+		int left = nodeCount.getAndAdd(2);
+		firsts[node] = left;
+		counts[node] = 0;
+		firsts[left] = mid;
+		return left;
+	}
+
+	/**
+	 * Make bounds empty.
+	 *
+	 * @param a bounds, minimum and maximum
+	 */
+	private static void reset(float[] a) {
+		a[0] = a[1] = a[2] = Float.MAX_VALUE;
+		a[3] = a[4] = a[5] = -Float.MAX_VALUE;
+	}
+
+	/**
+	 * Grow bounds in an array by bounds in another.
+	 *
+	 * @param a array of bounds to grow, 6 per element
+	 * @param j element to grow
+	 * @param boxes array of bounds, 6 per element
+	 * @param i element
+	 */
+	private static void grow(float[] a, int j, float[] boxes, int i) {
+		// Comparisons are much cheaper than Math.min and max on floats.
+		for (int k = 0; k < 3; k++) {
+			if (boxes[i * 6 + k] < a[j * 6 + k]) {
+				a[j * 6 + k] = boxes[i * 6 + k];
+			}
+			if (boxes[i * 6 + 3 + k] > a[j * 6 + 3 + k]) {
+				a[j * 6 + 3 + k] = boxes[i * 6 + 3 + k];
+			}
+		}
+	}
+
+	/**
+	 * Get the half surface area of bounds.
+	 *
+	 * @param a bounds, minimum and maximum
+	 * @return half area, 0 if empty
+	 */
+	private static float area(float[] a) {
+		return area(a, 0);
+	}
+
+	/**
+	 * Get the half surface area of bounds in an array.
+	 *
+	 * @param a array of bounds
+	 * @param b offset of the bounds
+	 * @return half area, 0 if empty
+	 */
+	private static float area(float[] a, int b) {
+		float dx = a[b + 3] - a[b];
+		float dy = a[b + 4] - a[b + 1];
+		float dz = a[b + 5] - a[b + 2];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Pick the nearest face under a point of the screen.
+	 *
+	 * @param world world matrix of the frame
+	 * @param x X of the point in the transformed coordinates
+	 * @param y Y of the point in the transformed coordinates
+	 * @return hit face, or null
+	 */
+	public Hit pick(Matrix4f world, float x, float y) {
+		// Cast a ray along the Z axis of the screen into the object space.
+		Matrix4f inv = new Matrix4f();
+		inv.invertAffine(world);
+		float ox = inv.m00 * x + inv.m10 * y + inv.m30;
+		float oy = inv.m01 * x + inv.m11 * y + inv.m31;
+		float oz = inv.m02 * x + inv.m12 * y + inv.m32;
+		return intersect(ox, oy, oz, inv.m20, inv.m21, inv.m22);
+	}
+
+	/**
+	 * Find the nearest triangle on a line.
+	 *
+	 * @param ox X of a point on the line
+	 * @param oy Y of a point on the line
+	 * @param oz Z of a point on the line
+	 * @param dx X of the direction
+	 * @param dy Y of the direction
+	 * @param dz Z of the direction
+	 * @return hit face with the distance in directions from the point, or
+	 *         null
+	 */
+	public Hit intersect(float ox, float oy, float oz, float dx, float dy, float dz) {
+		if (triangles.length == 0) {
+			return null;
+		}
+		float ix = 1 / dx;
+		float iy = 1 / dy;
+		float iz = 1 / dz;
+		Hit hit = null;
+		float nearest = Float.POSITIVE_INFINITY;
+		int[] stack = new int[STACK_SIZE];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int b = node * 6;
+			// Slab test over the whole line, up to the nearest hit.
+			float t0 = (bounds[b] - ox) * ix;
+			float t1 = (bounds[b + 3] - ox) * ix;
+			float tmin = Math.min(t0, t1);
+			float tmax = Math.max(t0, t1);
+			t0 = (bounds[b + 1] - oy) * iy;
+			t1 = (bounds[b + 4] - oy) * iy;
+			tmin = Math.max(tmin, Math.min(t0, t1));
+			tmax = Math.min(tmax, Math.max(t0, t1));
+			t0 = (bounds[b + 2] - oz) * iz;
+			t1 = (bounds[b + 5] - oz) * iz;
+			tmin = Math.max(tmin, Math.min(t0, t1));
+			tmax = Math.min(tmax, Math.max(t0, t1));
+			if (tmin > tmax || tmin >= nearest) {
+				continue;
+			}
+			if (counts[node] == 0) {
+				if (top + 2 > stack.length) {
+					stack = MeshBuilder.grow(stack, top + 2);
+				}
+				stack[top++] = firsts[node];
+				stack[top++] = firsts[node] + 1;
+				continue;
+			}
+			for (int i = firsts[node]; i < firsts[node] + counts[node]; i++) {
+				int t = triangles[i];
+				int p0 = indices[t * 3] * 3;
+				int p1 = indices[t * 3 + 1] * 3;
+				int p2 = indices[t * 3 + 2] * 3;
+				// Moller-Trumbore, accepting both sides.
+				float e1x = positions[p1] - positions[p0];
+				float e1y = positions[p1 + 1] - positions[p0 + 1];
+				float e1z = positions[p1 + 2] - positions[p0 + 2];
+				float e2x = positions[p2] - positions[p0];
+				float e2y = positions[p2 + 1] - positions[p0 + 1];
+				float e2z = positions[p2 + 2] - positions[p0 + 2];
+				float px = dy * e2z - dz * e2y;
+				float py = dz * e2x - dx * e2z;
+				float pz = dx * e2y - dy * e2x;
+				float det = e1x * px + e1y * py + e1z * pz;
+				if (det == 0) {
+					continue;
+				}
+				float inv = 1 / det;
+				float sx = ox - positions[p0];
+				float sy = oy - positions[p0 + 1];
+				float sz = oz - positions[p0 + 2];
+				float u = (sx * px + sy * py + sz * pz) * inv;
+				if (u < 0 || u > 1) {
+					continue;
+				}
+				float qx = sy * e1z - sz * e1y;
+				float qy = sz * e1x - sx * e1z;
+				float qz = sx * e1y - sy * e1x;
+				float v = (dx * qx + dy * qy + dz * qz) * inv;
+				if (v < 0 || u + v > 1) {
+					continue;
+				}
+				float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+				if (d < nearest) {
+					nearest = d;
+					if (hit == null) {
+						hit = new Hit();
+					}
+					hit.face = t;
+					hit.u = u;
+					hit.v = v;
+					hit.distance = d;
+				}
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Test whether a ray hits any triangle within a distance. The traversal
+	 * stops at the first hit found, so this is cheaper than finding the
+	 * nearest one.
+	 *
+	 * @param ox X of the origin
+	 * @param oy Y of the origin
+	 * @param oz Z of the origin
+	 * @param dx X of the direction
+	 * @param dy Y of the direction
+	 * @param dz Z of the direction
+	 * @param near nearest distance of a hit in directions
+	 * @param far farthest distance of a hit in directions
+	 * @param stack traversal stack reused by the caller, grown if too small
+	 * @return true if a triangle is hit
+	 */
+	public boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz,
+			float near, float far, int[] stack) {
+		if (triangles.length == 0) {
+			return false;
+		}
+		float ix = 1 / dx;
+		float iy = 1 / dy;
+		float iz = 1 / dz;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int b = node * 6;
+			// Slab test with comparisons, which are cheaper than Math.min
+			// and Math.max on floats. A NaN, of a ray in the plane of a
+			// slab, leaves the interval as it is.
+			float t0 = (bounds[b] - ox) * ix;
+			float t1 = (bounds[b + 3] - ox) * ix;
+			float tmin = t0 < t1 ? t0 : t1;
+			float tmax = t0 < t1 ? t1 : t0;
+			tmin = tmin > near ? tmin : near;
+			tmax = tmax < far ? tmax : far;
+			t0 = (bounds[b + 1] - oy) * iy;
+			t1 = (bounds[b + 4] - oy) * iy;
+			if (t0 > t1) {
+				float swap = t0;
+				t0 = t1;
+				t1 = swap;
+			}
+			tmin = t0 > tmin ? t0 : tmin;
+			tmax = t1 < tmax ? t1 : tmax;
+			t0 = (bounds[b + 2] - oz) * iz;
+			t1 = (bounds[b + 5] - oz) * iz;
+			if (t0 > t1) {
+				float swap = t0;
+				t0 = t1;
+				t1 = swap;
+			}
+			tmin = t0 > tmin ? t0 : tmin;
+			tmax = t1 < tmax ? t1 : tmax;
+			if (tmin > tmax) {
+				continue;
+			}
+			if (counts[node] == 0) {
+				if (top + 2 > stack.length) {
+					stack = MeshBuilder.grow(stack, top + 2);
+				}
+				stack[top++] = firsts[node];
+				stack[top++] = firsts[node] + 1;
+				continue;
+			}
+			for (int i = firsts[node]; i < firsts[node] + counts[node]; i++) {
+				int t = triangles[i];
+				int p0 = indices[t * 3] * 3;
+				int p1 = indices[t * 3 + 1] * 3;
+				int p2 = indices[t * 3 + 2] * 3;
+				float e1x = positions[p1] - positions[p0];
+				float e1y = positions[p1 + 1] - positions[p0 + 1];
+				float e1z = positions[p1 + 2] - positions[p0 + 2];
+				float e2x = positions[p2] - positions[p0];
+				float e2y = positions[p2 + 1] - positions[p0 + 1];
+				float e2z = positions[p2 + 2] - positions[p0 + 2];
+				float px = dy * e2z - dz * e2y;
+				float py = dz * e2x - dx * e2z;
+				float pz = dx * e2y - dy * e2x;
+				float det = e1x * px + e1y * py + e1z * pz;
+				if (det == 0) {
+					continue;
+				}
+				float inv = 1 / det;
+				float sx = ox - positions[p0];
+				float sy = oy - positions[p0 + 1];
+				float sz = oz - positions[p0 + 2];
+				float u = (sx * px + sy * py + sz * pz) * inv;
+				if (u < 0 || u > 1) {
+					continue;
+				}
+				float qx = sy * e1z - sz * e1y;
+				float qy = sz * e1x - sx * e1z;
+				float qz = sx * e1y - sy * e1x;
+				float v = (dx * qx + dy * qy + dz * qz) * inv;
+				if (v < 0 || u + v > 1) {
+					continue;
+				}
+				float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+				if (d >= near && d <= far) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of nodes.
+	 *
+	 * @return node count
+	 */
+	public int getNodeCount() {
+		return counts.length;
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: CompressedMesh.java
+ *
+ * Quantized mesh encoding.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Quantized mesh encoding.
+ * </p>
+ * Positions are 16 bit integers within the bounding box, normals are
+ * octahedral 8+8 bit codes and UVs are 16 bit integers within their range.
+ * A vertex takes 12 bytes instead of 32. Triangles are cut into runs whose
+ * vertices lie within 65536 of a base, so the indices take 16 bits except
+ * for the few triangles which span more. The renderer folds the position decoding into the world
+ * matrix and the UV decoding into the texture scale, so decoding costs
+ * nothing beyond the transform.
+ *
+ * @author wada
+ */
+public class CompressedMesh {
+	/** Largest 16 bit code */
+	private static final float MAX16 = 65535.0f;
+
+	/** Largest 8 bit code */
+	private static final float MAX8 = 255.0f;
+
+	/** Code of a zero normal, which no unit normal is encoded to */
+	static final int NO_NORMAL = 0;
+
+	/** Decoded normals of all codes, 3 per code */
+	private static float[] normalTable;
+
+	/** Quantized positions, 3 per vertex */
+	final short[] positions;
+
+	/** Octahedral normals, 1 per vertex */
+	final short[] normals;
+
+	/** Quantized UVs, 2 per vertex */
+	final short[] uvs;
+
+	/** 16 bit indices relative to the base of their chunk */
+	final char[] shortIndices;
+
+	/** 32 bit indices of the chunks which do not fit 16 bits */
+	final int[] indices;
+
+	/** First triangle of each chunk, and the triangle count at the end */
+	final int[] chunkStarts;
+
+	/**
+	 * Vertex index added to the 16 bit indices of each chunk, or the
+	 * complement of the offset of its 32 bit indices
+	 */
+	final int[] chunkBases;
+
+	/** Number of vertices */
+	final int vertexCount;
+
+	/** Number of triangles */
+	final int triangleCount;
+
+	/** Minimum of the positions */
+	final float[] positionMin = new float[3];
+
+	/** Step of the position codes */
+	final float[] positionStep = new float[3];
+
+	/** Minimum of the UVs */
+	final float[] uvMin = new float[2];
+
+	/** Step of the UV codes */
+	final float[] uvStep = new float[2];
+
+	/** Center of the object */
+	private final Vector3f center = new Vector3f();
+
+	/** Bounding radius */
+	private final float radius;
+
+	/**
+	 * Encode the mesh of an object.
+	 *
+	 * @param obj object to encode
+	 */
+	public CompressedMesh(Object3D obj) {
+		triangleCount = obj.getTriangleCount();
+		int[] src = obj.getIndexArray();
+		float[] p = obj.getPositionArray();
+		float[] t = obj.getUvArray();
+		float[] n = obj.getNormalArray();
+		vertexCount = obj.getVertexCount();
+		center.initialize(obj.getCenter());
+		radius = obj.getRadius();
+
+		positions = new short[vertexCount * 3];
+		quantize(p, 3, positions, positionMin, positionStep);
+		uvs = new short[vertexCount * 2];
+		quantize(t, 2, uvs, uvMin, uvStep);
+
+		normals = new short[vertexCount];
+		for (int i = 0; i < vertexCount; i++) {
+			normals[i] = (short) encodeNormal(n[i * 3], n[i * 3 + 1], n[i * 3 + 2]);
+		}
+
+		// Cut the triangles into runs whose vertices fit 16 bits from a base.
+		// A triangle spanning more, like one closing a seam, gets a 32 bit run.
+		int[] starts = new int[16];
+		int[] bases = new int[16];
+		int chunks = 0;
+		int wideCount = 0;
+		int lo = 0;
+		int hi = 0;
+		for (int i = 0; i < triangleCount * 3; i += 3) {
+			int min = Math.min(src[i], Math.min(src[i + 1], src[i + 2]));
+			int max = Math.max(src[i], Math.max(src[i + 1], src[i + 2]));
+			boolean wide = max - min > 0xffff;
+			if (chunks > 0 && (wide ? bases[chunks - 1] < 0
+					: bases[chunks - 1] >= 0 && Math.max(hi, max) - Math.min(lo, min) <= 0xffff)) {
+				if (wide) {
+					wideCount += 3;
+				} else {
+					lo = bases[chunks - 1] = Math.min(lo, min);
+					hi = Math.max(hi, max);
+				}
+				continue;
+			}
+			if (chunks + 1 >= starts.length) {
+				starts = MeshBuilder.grow(starts, chunks + 2);
+				bases = MeshBuilder.grow(bases, chunks + 2);
+			}
+			starts[chunks] = i / 3;
+			if (wide) {
+				bases[chunks++] = ~wideCount;
+				wideCount += 3;
+			} else {
+				bases[chunks++] = lo = min;
+				hi = max;
+			}
+		}
+		chunkStarts = new int[chunks + 1];
+		System.arraycopy(starts, 0, chunkStarts, 0, chunks);
+		chunkStarts[chunks] = triangleCount;
+		chunkBases = new int[chunks];
+		System.arraycopy(bases, 0, chunkBases, 0, chunks);
+		shortIndices = new char[triangleCount * 3];
+		indices = new int[wideCount];
+		for (int k = 0; k < chunks; k++) {
+			int base = chunkBases[k];
+			int start = chunkStarts[k] * 3;
+			for (int i = start; i < chunkStarts[k + 1] * 3; i++) {
+				if (base >= 0) {
+					shortIndices[i] = (char) (src[i] - base);
+				} else {
+					indices[~base + i - start] = src[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Quantize the components of vectors to 16 bits within their range.
+	 *
+	 * @param a vectors
+	 * @param size components per vector
+	 * @param q quantized vectors
+	 * @param min minimum per component
+	 * @param step step per component
+	 */
+	private void quantize(float[] a, int size, short[] q, float[] min, float[] step) {
+		for (int k = 0; k < size; k++) {
+			float lo = Float.MAX_VALUE;
+			float hi = -Float.MAX_VALUE;
+			for (int i = 0; i < vertexCount; i++) {
+				float v = a[i * size + k];
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+			}
+			if (vertexCount == 0) {
+				lo = hi = 0;
+			}
+			min[k] = lo;
+			step[k] = (hi - lo) / MAX16;
+			float inv = hi > lo ? MAX16 / (hi - lo) : 0;
+			for (int i = 0; i < vertexCount; i++) {
+				q[i * size + k] = (short) Math.round((a[i * size + k] - lo) * inv);
+			}
+		}
+	}
+
+	/**
+	 * Encode a normal to an octahedral code.
+	 *
+	 * @param x X value
+	 * @param y Y value
+	 * @param z Z value
+	 * @return 8 bit U and V codes in the high and low bytes
+	 */
+	static int encodeNormal(float x, float y, float z) {
+		float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (l1 == 0) {
+			return NO_NORMAL;
+		}
+		float ox = x / l1;
+		float oy = y / l1;
+		if (z < 0) {
+			// Fold the lower hemisphere over the diagonals.
+			float fx = (1 - Math.abs(oy)) * (ox >= 0 ? 1 : -1);
+			float fy = (1 - Math.abs(ox)) * (oy >= 0 ? 1 : -1);
+			ox = fx;
+			oy = fy;
+		}
+		int u = Math.round((ox * 0.5f + 0.5f) * MAX8);
+		int v = Math.round((oy * 0.5f + 0.5f) * MAX8);
+		// Keep the code of a zero normal free; the neighbor is as close.
+		return Math.max((u << 8) | v, NO_NORMAL + 1);
+	}
+
+	/**
+	 * Decode an octahedral code to a unit normal.
+	 *
+	 * @param code 8 bit U and V codes in the high and low bytes
+	 * @param n decoded normal, 3 values
+	 */
+	static void decodeNormal(int code, float[] n) {
+		code &= 0xffff;
+		if (code == NO_NORMAL) {
+			n[0] = n[1] = n[2] = 0;
+			return;
+		}
+		float x = (code >> 8) / MAX8 * 2 - 1;
+		float y = (code & 0xff) / MAX8 * 2 - 1;
+		float z = 1 - Math.abs(x) - Math.abs(y);
+		if (z < 0) {
+			float fx = (1 - Math.abs(y)) * (x >= 0 ? 1 : -1);
+			float fy = (1 - Math.abs(x)) * (y >= 0 ? 1 : -1);
+			x = fx;
+			y = fy;
+		}
+		float len = (float) Math.sqrt(x * x + y * y + z * z);
+		n[0] = x / len;
+		n[1] = y / len;
+		n[2] = z / len;
+	}
+
+	/**
+	 * Get the decoded normals of all codes.
+	 *
+	 * @return 3 values per code
+	 */
+	static synchronized float[] getNormalTable() {
+		if (normalTable == null) {
+			float[] table = new float[0x10000 * 3];
+			float[] n = new float[3];
+			for (int code = 0; code < 0x10000; code++) {
+				decodeNormal(code, n);
+				System.arraycopy(n, 0, table, code * 3, 3);
+			}
+			normalTable = table;
+		}
+		return normalTable;
+	}
+
+	/**
+	 * Get a vertex index.
+	 *
+	 * @param chunk chunk holding the triangle
+	 * @param i position in the index buffer
+	 * @return vertex index
+	 */
+	final int index(int chunk, int i) {
+		int base = chunkBases[chunk];
+		return base >= 0 ? base + shortIndices[i] : indices[~base + i - chunkStarts[chunk] * 3];
+	}
+
+	/**
+	 * Get the matrix which decodes the positions and transforms them by a
+	 * world matrix.
+	 *
+	 * @param world world matrix
+	 * @param m matrix to set, other than world
+	 * @return m
+	 */
+	Matrix4f getDecodingMatrix(Matrix4f world, Matrix4f m) {
+		// The scale and the translation composed with the world matrix.
+		float sx = positionStep[0];
+		float sy = positionStep[1];
+		float sz = positionStep[2];
+		float tx = positionMin[0];
+		float ty = positionMin[1];
+		float tz = positionMin[2];
+		m.m00 = sx * world.m00;
+		m.m01 = sx * world.m01;
+		m.m02 = sx * world.m02;
+		m.m03 = sx * world.m03;
+		m.m10 = sy * world.m10;
+		m.m11 = sy * world.m11;
+		m.m12 = sy * world.m12;
+		m.m13 = sy * world.m13;
+		m.m20 = sz * world.m20;
+		m.m21 = sz * world.m21;
+		m.m22 = sz * world.m22;
+		m.m23 = sz * world.m23;
+		m.m30 = tx * world.m00 + ty * world.m10 + tz * world.m20 + world.m30;
+		m.m31 = tx * world.m01 + ty * world.m11 + tz * world.m21 + world.m31;
+		m.m32 = tx * world.m02 + ty * world.m12 + tz * world.m22 + world.m32;
+		m.m33 = tx * world.m03 + ty * world.m13 + tz * world.m23 + world.m33;
+		return m;
+	}
+
+	/**
+	 * Get the bytes of the encoded arrays.
+	 *
+	 * @return bytes
+	 */
+	public long getBytes() {
+		long bytes = 2L * (positions.length + normals.length + uvs.length)
+				+ 4L * (chunkStarts.length + chunkBases.length);
+		return bytes + 2L * shortIndices.length + 4L * indices.length;
+	}
+
+	/**
+	 * Get the number of vertices.
+	 *
+	 * @return vertex count
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Get the number of triangles.
+	 *
+	 * @return triangle count
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Get the center.
+	 *
+	 * @return center
+	 */
+	public Vector3f getCenter() {
+		return center;
+	}
+
+	/**
+	 * Get the radius.
+	 *
+	 * @return radius
+	 */
+	public float getRadius() {
+		return radius;
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: DecompressingChannel.java
+ *
+ * Channel which decompresses a stream on a separate thread.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * <p>
+ * Channel which decompresses a stream on a separate thread.
+ * </p>
+ * The compression is detected from the first bytes, so gzip, zip and zlib
+ * deflate inputs are read like plain text. A daemon thread inflates into a
+ * small ring of large buffers while the parser consumes the filled ones, so
+ * reading, inflating and parsing overlap.
+ *
+ * @author wada
+ */
+public class DecompressingChannel implements ReadableByteChannel {
+	/** Size of a buffer */
+	private static final int CHUNK_SIZE = 1 << 18;
+
+	/** Number of buffers in the ring */
+	private static final int CHUNKS = 4;
+
+	/** Number of first bytes inflated to confirm a zlib stream */
+	private static final int PROBE_SIZE = 512;
+
+	/** Plain text */
+	public static final int NONE = 0;
+
+	/** Gzip */
+	public static final int GZIP = 1;
+
+	/** Zip archive */
+	public static final int ZIP = 2;
+
+	/** Zlib deflate */
+	public static final int DEFLATE = 3;
+
+	/** Decompressed stream */
+	private final InputStream in;
+
+	/** Empty buffers */
+	private final BlockingQueue free = new ArrayBlockingQueue(CHUNKS);
+
+	/** Filled buffers in the stream order */
+	private final BlockingQueue full = new ArrayBlockingQueue(CHUNKS + 1);
+
+	/** Inflating thread */
+	private final Thread thread;
+
+	/** Buffer being consumed */
+	private Chunk current;
+
+	/** Read position in the current buffer */
+	private int pos;
+
+	/** Closed flag */
+	private volatile boolean closed;
+
+	/**
+	 * Filled part of a buffer.
+	 */
+	private static class Chunk {
+		/** Bytes */
+		final byte[] data;
+
+		/** Number of valid bytes, or -1 at the end of the stream */
+		int length;
+
+		/** Error of the inflating thread */
+		IOException error;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param size buffer size
+		 */
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Open a channel on a stream, decompressing it if needed.
+	 *
+	 * @param is input stream
+	 * @return channel of the plain text
+	 * @throws IOException
+	 */
+	public static ReadableByteChannel open(InputStream is) throws IOException {
+		BufferedInputStream bis = new BufferedInputStream(is, ObjParser.BUFFER_SIZE);
+		switch (detect(bis)) {
+		case GZIP:
+			return new DecompressingChannel(new GZIPInputStream(bis, CHUNK_SIZE));
+		case ZIP:
+			return new DecompressingChannel(openEntry(new ZipInputStream(bis)));
+		case DEFLATE:
+			return new DecompressingChannel(new InflaterInputStream(bis, new Inflater(), CHUNK_SIZE) {
+				/**
+				 * Release the inflater given to the stream, which the stream
+				 * does not end itself.
+				 *
+				 * @see java.io.InflaterInputStream#close()
+				 */
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			});
+		default:
+			return Channels.newChannel(bis);
+		}
+	}
+
+	/**
+	 * Get the compression of a stream without consuming it.
+	 *
+	 * @param is input stream supporting mark
+	 * @return NONE, GZIP, ZIP or DEFLATE
+	 * @throws IOException
+	 */
+	public static int detect(InputStream is) throws IOException {
+		byte[] head = new byte[PROBE_SIZE];
+		is.mark(head.length);
+		int n = 0;
+		try {
+			while (n < head.length) {
+				int r = is.read(head, n, head.length - n);
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+		} finally {
+			is.reset();
+		}
+		return detect(head, n);
+	}
+
+	/**
+	 * Get the compression of a file.
+	 *
+	 * @param file file
+	 * @return NONE, GZIP, ZIP or DEFLATE
+	 * @throws IOException
+	 */
+	public static int detect(File file) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(file), PROBE_SIZE);
+		try {
+			return detect(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Get the compression from the first bytes.
+	 *
+	 * @param head first bytes
+	 * @param n number of bytes
+	 * @return NONE, GZIP, ZIP or DEFLATE
+	 */
+	private static int detect(byte[] head, int n) {
+		if (n < 2) {
+			return NONE;
+		}
+		int b0 = head[0] & 0xff;
+		int b1 = head[1] & 0xff;
+		if (b0 == 0x1f && b1 == 0x8b) {
+			return GZIP;
+		}
+		if (n >= 4 && b0 == 'P' && b1 == 'K' && head[2] == 3 && head[3] == 4) {
+			return ZIP;
+		}
+		// Zlib header of deflate with a 32K window, a valid check and no
+		// preset dictionary. Text such as "x^" passes this, so the first
+		// bytes must also inflate.
+		if (b0 == 0x78 && (b0 * 256 + b1) % 31 == 0 && (b1 & 0x20) == 0
+				&& inflates(head, n)) {
+			return DEFLATE;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Test whether the first bytes of a stream inflate without an error.
+	 *
+	 * @param head first bytes including the zlib header
+	 * @param n number of bytes
+	 * @return true if no error was found
+	 */
+	private static boolean inflates(byte[] head, int n) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(head, 0, n);
+			byte[] out = new byte[4096];
+			while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+				if (inflater.inflate(out) == 0 && !inflater.needsInput() && !inflater.finished()) {
+					return false;
+				}
+			}
+			return !inflater.needsDictionary();
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Move to the first .OBJ entry of a zip archive.
+	 *
+	 * @param zis zip stream
+	 * @return the stream positioned at the entry
+	 * @throws IOException
+	 */
+	private static InputStream openEntry(ZipInputStream zis) throws IOException {
+		ZipEntry entry;
+		while ((entry = zis.getNextEntry()) != null) {
+			if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".obj")) {
+				return zis;
+			}
+		}
+		zis.close();
+		throw new IOException("No .OBJ file in the archive");
+	}
+
+	/**
+	 * Constructor. Starts inflating at once.
+	 *
+	 * @param in decompressing stream
+	 */
+	DecompressingChannel(InputStream in) {
+		this.in = in;
+		for (int i = 0; i < CHUNKS; i++) {
+			free.add(new Chunk(CHUNK_SIZE));
+		}
+		thread = new Thread(new Runnable() {
+			/**
+			 * @see java.lang.Runnable#run()
+			 */
+			public void run() {
+				inflate();
+			}
+		}, "Decompressor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Fill free buffers until the end of the stream or until the channel is
+	 * closed. The stream is closed here, not by the reader, so that it is
+	 * never closed during a read.
+	 */
+	private void inflate() {
+		try {
+			while (!closed) {
+				Chunk chunk = (Chunk) free.take();
+				int n = 0;
+				IOException error = null;
+				try {
+					while (n < chunk.data.length) {
+						int r = in.read(chunk.data, n, chunk.data.length - n);
+						if (r < 0) {
+							break;
+						}
+						n += r;
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				if (n > 0) {
+					chunk.length = n;
+					full.put(chunk);
+					if (n == chunk.data.length && error == null) {
+						continue;
+					}
+					chunk = new Chunk(0);
+				}
+				// The end of the stream, or the error to throw to the reader.
+				chunk.length = -1;
+				chunk.error = error;
+				full.put(chunk);
+				return;
+			}
+		} catch (InterruptedException e) {
+			// Closed by the reader.
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing is left to read.
+			}
+		}
+	}
+
+	/**
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		if (current == null) {
+			try {
+				current = (Chunk) full.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			pos = 0;
+		}
+		if (current.error != null) {
+			throw current.error;
+		}
+		if (current.length < 0) {
+			return -1;
+		}
+		int n = Math.min(dst.remaining(), current.length - pos);
+		dst.put(current.data, pos, n);
+		pos += n;
+		if (pos == current.length) {
+			// Give the buffer back to the inflating thread.
+			free.add(current);
+			current = null;
+		}
+		return n;
+	}
+
+	/**
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Stop the inflating thread, which closes the stream when its current
+	 * read returns.
+	 *
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		thread.interrupt();
+	}
+}
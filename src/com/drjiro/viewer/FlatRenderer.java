@@ -13,7 +13,6 @@ package com.drjiro.viewer;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Image;
-import java.util.List;
 
 /**
  * A renderer by a flat shading.
@@ -21,11 +20,35 @@ import java.util.List;
  * @author wada
  */
 public class FlatRenderer extends AbstractRenderer {
-	/** X coordinate of the center */
-	private int centerX;
+	/** X coordinates of a polygon */
+	private int px[] = new int[3];
 
-	/** Y coordinate of the center */
-	private int centerY;
+	/** Y coordinates of a polygon */
+	private int py[] = new int[3];
+
+	/** Faces to draw, grown with the triangle count */
+	private int tmp[] = new int[0];
+
+	/** Depths of the faces to draw */
+	private float tmp_depth[] = new float[0];
+
+	/** Rotated face normals */
+	private float fn[] = new float[0];
+
+	/** Transformed positions, grown with the vertex count */
+	private float sp[] = new float[0];
+
+	/** Face normals in the object space, the sums of the corner normals */
+	private float faceNormals[] = new float[0];
+
+	/** Index array the face normals were computed for */
+	private int cachedIndices[];
+
+	/** Normal array the face normals were computed for */
+	private float cachedNormals[];
+
+	/** Number of faces whose normals were computed */
+	private int cachedFaces;
 
 	/**
 	 * Constructor by width and height of the screen.
@@ -37,8 +60,6 @@ public class FlatRenderer extends AbstractRenderer {
 	 */
 	public FlatRenderer(int screenWidth, int screenHeight) {
 		super(screenWidth, screenHeight);
-		centerX = screenWidth / 2;
-		centerY = screenHeight / 2;
 	}
 
 	/**
@@ -55,60 +76,62 @@ public class FlatRenderer extends AbstractRenderer {
 	 */
 	public void render(Object3D obj, Camera camera, Graphics2D offg,
 			boolean nomal_inverse) {
-		int px[] = new int[3];
-		int py[] = new int[3];
 		int count = 0;
 
-		List faces = obj.getFaces();
-
-		int tmp[] = new int[faces.size()];
+		int triangleCount = obj.getTriangleCount();
+		int vertexCount = obj.getVertexCount();
+		float[] positions = obj.getPositionArray();
+		float[] normals = obj.getNormalArray();
+		int[] indices = obj.getIndexArray();
+
+		// Grow the arrays of the faces, which are kept between frames.
+		if (tmp.length < triangleCount) {
+			tmp = new int[triangleCount];
+			tmp_depth = new float[triangleCount];
+			fn = new float[triangleCount * 3];
+		}
+		if (sp.length < vertexCount * 3) {
+			sp = new float[vertexCount * 3];
+		}
 
-		float tmp_depth[] = new float[faces.size()];
+		// Transform the positions at once.
+		worldMatrix.transformPoints(positions, 0, sp, 0, vertexCount);
 
 		offg.setColor(Color.black);
 
-		// Create a transposed matrix as an inverse matrix.
-		Matrix4f im = new Matrix4f();
-		im.invert(worldMatrix);
-
-		// Get the direction of a light.
-		Vector3f light = im.transform(new Vector3f(-0.2f, 0.2f, -1.0f));
-		light.normalize();
-
-		for (int i = 0; i < faces.size(); i++) {
-			Face face = (Face) faces.get(i);
-
-			// Vertices transform by matrices.
-			Vector3f v1 = worldMatrix.transform(face.vertices[0].v);
-			Vector3f v2 = worldMatrix.transform(face.vertices[1].v);
-			Vector3f v3 = worldMatrix.transform(face.vertices[2].v);
-
-			if (face.vertices[0].n == null) {
-				float a1 = v2.x - v1.x;
-				float a2 = v2.y - v1.y;
-				float a3 = v2.z - v1.z;
-				float b1 = v3.x - v2.x;
-				float b2 = v3.x - v2.x;
-				float b3 = v3.x - v2.x;
-
-				// Compute normals.
-				float nx = a2 * b3 - a3 * b2;
-				float ny = a3 * b1 - a1 * b3;
-				float nz = a1 * b2 - a2 * b1;
-
-				if (nomal_inverse) {
-					nx = -nx;
-					ny = -ny;
-					nz = -nz;
-				}
+		// Compute the face normals once per mesh, and only for the faces
+		// streamed in since the last frame.
+		if (indices != cachedIndices || normals != cachedNormals || triangleCount < cachedFaces) {
+			cachedIndices = indices;
+			cachedNormals = normals;
+			cachedFaces = 0;
+		}
+		if (faceNormals.length < triangleCount * 3) {
+			float[] grown = new float[triangleCount * 3];
+			System.arraycopy(faceNormals, 0, grown, 0, cachedFaces * 3);
+			faceNormals = grown;
+		}
+		for (int i = cachedFaces; i < triangleCount; i++) {
+			int i0 = indices[i * 3] * 3;
+			int i1 = indices[i * 3 + 1] * 3;
+			int i2 = indices[i * 3 + 2] * 3;
+			faceNormals[i * 3] = normals[i0] + normals[i1] + normals[i2];
+			faceNormals[i * 3 + 1] = normals[i0 + 1] + normals[i1 + 1] + normals[i2 + 1];
+			faceNormals[i * 3 + 2] = normals[i0 + 2] + normals[i1 + 2] + normals[i2 + 2];
+		}
+		cachedFaces = triangleCount;
 
-				face.vertices[0].n.x = nx;
-				face.vertices[0].n.y = ny;
-				face.vertices[0].n.z = nz;
-			}
-			if (face.vertices[0].n.z < 0) {
+		// Rotate the face normals at once.
+		worldMatrix.transformVectors(faceNormals, 0, fn, 0, triangleCount);
+
+		float sign = nomal_inverse ? -1.0f : 1.0f;
+		for (int i = 0; i < triangleCount; i++) {
+			int i0 = indices[i * 3] * 3;
+			int i1 = indices[i * 3 + 1] * 3;
+			int i2 = indices[i * 3 + 2] * 3;
+			if (fn[i * 3 + 2] * sign < 0) {
 				tmp[count] = i;
-				tmp_depth[count] = face.getDepth();
+				tmp_depth[count] = (sp[i0 + 2] + sp[i1 + 2] + sp[i2 + 2]) / 3;
 				count++;
 			}
 		}
@@ -141,12 +164,12 @@ public class FlatRenderer extends AbstractRenderer {
 		for (int m = 0; m < count; m++) {
 			int i = tmp[m];
 
-			Face face = (Face) faces.get(i);
-			len = (float) Math.sqrt(face.vertices[0].n.x * face.vertices[0].n.x
-					+ face.vertices[0].n.y * face.vertices[0].n.y
-					+ face.vertices[0].n.z * face.vertices[0].n.z);
+			float nx = fn[i * 3];
+			float ny = fn[i * 3 + 1];
+			float nz = fn[i * 3 + 2] * sign;
+			len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
 
-			B = (int) (75 - 180 * face.vertices[0].n.z / len);
+			B = (int) (75 - 180 * nz / len);
 
 			if (B < 0)
 				B = 0;
@@ -159,8 +182,10 @@ public class FlatRenderer extends AbstractRenderer {
 			offg.setColor(cc);
 
 			for (int j = 0; j < 3; j++) {
-				px[j] = (int) (face.vertices[j].v.x + centerX);
-				py[j] = (int) (-face.vertices[j].v.y + centerY);
+				int p = indices[i * 3 + j] * 3;
+				// Turned around as the buffer of TextureRenderer is shown.
+				px[j] = (int) (screenWidth - 1 - sp[p]);
+				py[j] = (int) (screenHeight - 1 - sp[p + 1]);
 			}
 
 			offg.fillPolygon(px, py, 3);
@@ -46,6 +46,19 @@ public class Index3 {
 		this.n = n;
 	}
 
+	/**
+	 * Compute a hash code of 3 indices.
+	 * 
+	 * @param v index for a vertex
+	 * @param t index for a texture
+	 * @param n index for a normal
+	 * @return hash code
+	 */
+	static int hash(int v, int t, int n) {
+		int h = v * 0x9E3779B1 + t * 0x85EBCA77 + n * 0xC2B2AE3D;
+		return h ^ (h >>> 15);
+	}
+
 	/**
 	 * Dump contents.
 	 */
@@ -0,0 +1,114 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: LoaderBenchmark.java
+ *
+ * Benchmark of .OBJ loaders.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Benchmark of .OBJ loaders.
+ *
+ * @author wada
+ */
+public class LoaderBenchmark {
+	/** Tokenizer loader */
+	private static final int TOKENIZER = 0;
+
+	/** Byte level loader */
+	private static final int BYTES = 1;
+
+	/** Parallel memory mapped loader */
+	private static final int PARALLEL = 2;
+
+	/** Binary mesh cache */
+	private static final int CACHE = 3;
+
+	/** Cache of parsed meshes in memory */
+	private static final int MEMORY = 4;
+
+	/** Names of loaders */
+	private static final String[] NAMES = { "tokenizer", "bytes", "parallel", "cache", "memory" };
+
+	/** Mesh cache of the memory loader */
+	private static final MeshCache MESH_CACHE = new MeshCache(1L << 30);
+
+	/**
+	 * Load a file with a loader.
+	 *
+	 * @param file file to load
+	 * @param mode loader type
+	 * @return loaded object
+	 * @throws IOException
+	 */
+	private static Object3D load(File file, int mode) throws IOException {
+		Object3D obj = new Object3D();
+		obj.setWeld(true);
+		FileInputStream is = new FileInputStream(file);
+		try {
+			switch (mode) {
+			case TOKENIZER:
+				obj.loadWithTokenizer(is);
+				break;
+			case BYTES:
+				obj.load(is.getChannel());
+				break;
+			case PARALLEL:
+				obj.build(new ParallelObjLoader().parse(file));
+				break;
+			case CACHE:
+				obj.load(file);
+				break;
+			case MEMORY:
+				obj.load(file.toURI().toURL(), MESH_CACHE);
+				break;
+			}
+		} finally {
+			is.close();
+		}
+		return obj;
+	}
+
+	/**
+	 * Entry point of this benchmark.
+	 *
+	 * @param args file name and the number of iterations
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: com.drjiro.viewer.LoaderBenchmark filename [iterations]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		double mb = file.length() / (1024.0 * 1024.0);
+
+		for (int mode = 0; mode < NAMES.length; mode++) {
+			// Warm up.
+			Object3D obj = load(file, mode);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				obj = load(file, mode);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			double sec = best / 1e9;
+			System.out.println(NAMES[mode] + ": " + (float) (sec * 1000) + " ms, "
+					+ (float) (mb / sec) + " MB/s, vertices=" + obj.getVertexCount()
+					+ " faces=" + obj.getFaces().size() + " center=" + obj.getCenter()
+					+ " radius=" + obj.getRadius() + " corners/vertex="
+					+ obj.getCornersPerVertex());
+		}
+		System.out.println("mesh cache: hits=" + MESH_CACHE.getHits() + " misses="
+				+ MESH_CACHE.getMisses() + " evictions=" + MESH_CACHE.getEvictions() + " bytes="
+				+ MESH_CACHE.getBytes());
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: LodChain.java
+ *
+ * Chain of simplified levels of detail of an object.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Chain of simplified levels of detail of an object.
+ * </p>
+ * Each level is simplified from the previous one by {@link MeshSimplifier},
+ * keeping the quadrics, and shares the vertex arrays of the source; only
+ * the indices are new. A level is selected for every frame from the screen
+ * size of the bounding sphere, so the triangles drawn follow the covered
+ * pixels instead of the size of the source. The triangles of each material
+ * batch are simplified on their own, so a level keeps the batches; the
+ * borders between them are open borders of the batches and never move.
+ *
+ * @author wada
+ */
+public class LodChain {
+	/** Default ratios of the triangles of the levels to the source */
+	public static final float[] DEFAULT_RATIOS = { 0.5f, 0.25f, 0.1f };
+
+	/** Covered pixels per triangle worth drawing */
+	public static final float PIXELS_PER_TRIANGLE = 1.0f;
+
+	/** Levels from the source to the coarsest */
+	private final Object3D[] levels;
+
+	/**
+	 * Build the default levels of an object.
+	 *
+	 * @param obj source object
+	 */
+	public LodChain(Object3D obj) {
+		this(obj, DEFAULT_RATIOS);
+	}
+
+	/**
+	 * Build levels of an object.
+	 *
+	 * @param obj source object
+	 * @param ratios decreasing ratios of the triangles of the levels to the
+	 *            source
+	 */
+	public LodChain(Object3D obj, float[] ratios) {
+		int triangleCount = obj.triangleCount;
+		float[] positions = obj.positions;
+		int vertexCount = obj.vertexCount;
+		int[] source = obj.indices;
+		MaterialBatches batches = obj.batches;
+		int[] firstTriangles = batches != null && batches.indices == source
+				? batches.firstTriangles : new int[] { 0, triangleCount };
+		int batchCount = firstTriangles.length - 1;
+
+		// Simplify one batch at a time over its own vertices, so one
+		// simplifier sized to the batch is alive.
+		int[][][] parts = new int[ratios.length][batchCount][];
+		int[] local = new int[vertexCount];
+		Arrays.fill(local, -1);
+		for (int b = 0; b < batchCount; b++) {
+			int first = firstTriangles[b];
+			int count = firstTriangles[b + 1] - first;
+
+			// Number the vertices of the batch in their order.
+			int[] used = new int[count * 3];
+			int n = 0;
+			for (int i = first * 3; i < (first + count) * 3; i++) {
+				if (local[source[i]] < 0) {
+					local[source[i]] = 0;
+					used[n++] = source[i];
+				}
+			}
+			Arrays.sort(used, 0, n);
+			float[] batchPositions = new float[n * 3];
+			for (int k = 0; k < n; k++) {
+				local[used[k]] = k;
+				System.arraycopy(positions, used[k] * 3, batchPositions, k * 3, 3);
+			}
+			int[] indices = new int[count * 3];
+			for (int i = 0; i < count * 3; i++) {
+				indices[i] = local[source[first * 3 + i]];
+			}
+
+			MeshSimplifier simplifier = new MeshSimplifier(batchPositions, n, indices, count);
+			for (int i = 0; i < ratios.length; i++) {
+				int[] part = simplifier.simplify((int) (count * ratios[i]));
+				for (int j = 0; j < part.length; j++) {
+					part[j] = used[part[j]];
+				}
+				parts[i][b] = part;
+			}
+			for (int k = 0; k < n; k++) {
+				local[used[k]] = -1;
+			}
+		}
+
+		levels = new Object3D[ratios.length + 1];
+		levels[0] = obj;
+		for (int i = 0; i < ratios.length; i++) {
+			int[] starts = new int[batchCount + 1];
+			for (int b = 0; b < batchCount; b++) {
+				starts[b + 1] = starts[b] + parts[i][b].length / 3;
+			}
+			int[] indices = parts[i][0];
+			if (batchCount > 1) {
+				indices = new int[starts[batchCount] * 3];
+				for (int b = 0; b < batchCount; b++) {
+					System.arraycopy(parts[i][b], 0, indices, starts[b] * 3, parts[i][b].length);
+				}
+			}
+			Object3D level = new Object3D();
+			level.share(obj);
+			level.setMesh(positions, obj.uvs, obj.normals, indices, vertexCount,
+					indices.length / 3);
+			level.batches = batches != null && batches.indices == source
+					? new MaterialBatches(indices, starts, batches.materials) : null;
+			if (obj.meshlets != null) {
+				level.buildMeshlets();
+			}
+			levels[i + 1] = level;
+		}
+	}
+
+	/**
+	 * Get the radius of the bounding sphere of an object on the screen.
+	 *
+	 * @param obj object
+	 * @param world world matrix, with a uniform scale
+	 * @return radius in pixels
+	 */
+	public static float getScreenRadius(Object3D obj, Matrix4f world) {
+		float scale = (float) Math.sqrt(world.m00 * world.m00 + world.m01 * world.m01
+				+ world.m02 * world.m02);
+		return obj.getRadius() * scale;
+	}
+
+	/**
+	 * Select the coarsest level having a triangle for every covered pixel.
+	 *
+	 * @param screenRadius radius of the bounding sphere on the screen
+	 * @return level to draw
+	 */
+	public Object3D select(float screenRadius) {
+		float wanted = (float) Math.PI * screenRadius * screenRadius / PIXELS_PER_TRIANGLE;
+		for (int i = levels.length - 1; i > 0; i--) {
+			if (levels[i].getTriangleCount() >= wanted) {
+				return levels[i];
+			}
+		}
+		return levels[0];
+	}
+
+	/**
+	 * Get the number of levels including the source.
+	 *
+	 * @return level count
+	 */
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * Get a level.
+	 *
+	 * @param i level, 0 for the source
+	 * @return object of the level
+	 */
+	public Object3D getLevel(int i) {
+		return levels[i];
+	}
+}
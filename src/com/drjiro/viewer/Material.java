@@ -0,0 +1,222 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: Material.java
+ *
+ * Material read from a .MTL file.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>
+ * Material read from a .MTL file.
+ * </p>
+ * Only the diffuse color (Kd) and the diffuse texture (map_Kd) are used.
+ * The color is multiplied into the texels when the texture is decoded, so a
+ * renderer only binds the texels of a material. A material without a texture
+ * has a single texel of its color. A texture whose size is not a power of two
+ * is resampled to one, as the renderers wrap the coordinates with masks.
+ *
+ * @author wada
+ */
+public class Material {
+	/** Largest side of a texture */
+	private static final int MAX_SIZE = 4096;
+
+	/** Name of the material */
+	private final String name;
+
+	/** Diffuse color, red, green and blue in [0, 1] */
+	private final float[] diffuse = { 1.0f, 1.0f, 1.0f };
+
+	/** File name of the diffuse texture, or null */
+	private String textureName;
+
+	/** ARGB texels */
+	int[] texels;
+
+	/** Width of the texture */
+	int width;
+
+	/** Height of the texture */
+	int height;
+
+	/**
+	 * Constructor by the name.
+	 *
+	 * @param name name of the material
+	 */
+	Material(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Resolve the materials used by a model. The libraries are read relative
+	 * to the model, and a library which cannot be read is skipped, leaving
+	 * its materials undefined.
+	 *
+	 * @param base URL of the model, or null
+	 * @param libraries file names of the material libraries
+	 * @param names names of the used materials
+	 * @return material of each name, null where undefined
+	 */
+	static Material[] resolve(URL base, List libraries, List names) {
+		Map materials = new HashMap();
+		for (int i = 0; i < libraries.size() && base != null; i++) {
+			try {
+				materials.putAll(read(new URL(base, (String) libraries.get(i))));
+			} catch (IOException e) {
+				// The model is drawn with the default texture.
+			}
+		}
+		Material[] resolved = new Material[names.size()];
+		for (int i = 0; i < resolved.length; i++) {
+			resolved[i] = (Material) materials.get(names.get(i));
+		}
+		return resolved;
+	}
+
+	/**
+	 * Read the materials of a .MTL file and decode their textures.
+	 *
+	 * @param url URL of the file
+	 * @return materials by name
+	 * @throws IOException
+	 */
+	public static Map read(URL url) throws IOException {
+		Map materials = new HashMap();
+		BufferedReader br = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+		try {
+			Material m = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				StringTokenizer st = new StringTokenizer(line);
+				if (!st.hasMoreTokens()) {
+					continue;
+				}
+				String token = st.nextToken();
+				if (token.equals("newmtl") && st.hasMoreTokens()) {
+					// ex. newmtl skin
+					m = new Material(st.nextToken("").trim());
+					materials.put(m.name, m);
+				} else if (m == null) {
+					continue;
+				} else if (token.equals("Kd")) {
+					// ex. Kd 0.800000 0.640000 0.640000
+					for (int i = 0; i < 3 && st.hasMoreTokens(); i++) {
+						m.diffuse[i] = Float.parseFloat(st.nextToken());
+					}
+				} else if (token.equals("map_Kd")) {
+					// ex. map_Kd -s 2 2 1 skin.jpg
+					// Options come first, so the file name is the last token.
+					while (st.hasMoreTokens()) {
+						m.textureName = st.nextToken();
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		for (Iterator it = materials.values().iterator(); it.hasNext();) {
+			((Material) it.next()).decode(url);
+		}
+		return materials;
+	}
+
+	/**
+	 * Decode the texels of this material.
+	 *
+	 * @param base URL of the library
+	 */
+	private void decode(URL base) {
+		BufferedImage image = null;
+		if (textureName != null) {
+			try {
+				image = ImageIO.read(new URL(base, textureName));
+			} catch (IOException e) {
+				// Use the color only.
+			}
+		}
+		if (image == null) {
+			width = 1;
+			height = 1;
+			texels = new int[] { 0xFF000000 };
+		} else {
+			width = powerOfTwo(image.getWidth());
+			height = powerOfTwo(image.getHeight());
+			texels = new int[width * height];
+			for (int y = 0; y < height; y++) {
+				int sy = y * image.getHeight() / height;
+				for (int x = 0; x < width; x++) {
+					texels[y * width + x] = image.getRGB(x * image.getWidth() / width, sy);
+				}
+			}
+		}
+		// Multiply the color into the texels.
+		int r = Math.round(Math.max(0.0f, Math.min(diffuse[0], 1.0f)) * 256);
+		int g = Math.round(Math.max(0.0f, Math.min(diffuse[1], 1.0f)) * 256);
+		int b = Math.round(Math.max(0.0f, Math.min(diffuse[2], 1.0f)) * 256);
+		for (int i = 0; i < texels.length; i++) {
+			int t = image == null ? 0xFFFFFFFF : texels[i];
+			texels[i] = 0xFF000000 | Math.min(((t >> 16) & 0xFF) * r >> 8, 255) << 16
+					| Math.min(((t >> 8) & 0xFF) * g >> 8, 255) << 8
+					| Math.min((t & 0xFF) * b >> 8, 255);
+		}
+	}
+
+	/**
+	 * Get the nearest power of two of a size.
+	 *
+	 * @param size size in pixels
+	 * @return power of two
+	 */
+	private static int powerOfTwo(int size) {
+		int p = 1;
+		while (p < MAX_SIZE && p * 3 / 2 < size) {
+			p *= 2;
+		}
+		return p;
+	}
+
+	/**
+	 * Get the name of this material.
+	 *
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the diffuse color.
+	 *
+	 * @return new vector of red, green and blue
+	 */
+	public Vector3f getDiffuse() {
+		return new Vector3f(diffuse[0], diffuse[1], diffuse[2]);
+	}
+
+	/**
+	 * Get the file name of the diffuse texture.
+	 *
+	 * @return file name, or null
+	 */
+	public String getTextureName() {
+		return textureName;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MaterialBatches.java
+ *
+ * Runs of triangles sharing a material.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Runs of triangles sharing a material.
+ * </p>
+ * The triangles of an object are grouped by material when it is loaded, so
+ * every material is a single run and a renderer binds each texture once per
+ * frame instead of once per face. The batches are used while the index
+ * array they were made for is the one of the object; a reordering keeps the
+ * runs by sorting within each of them.
+ *
+ * @author wada
+ */
+public class MaterialBatches {
+	/** Index array the batches were made for */
+	final int[] indices;
+
+	/** Number of batches */
+	final int count;
+
+	/** First triangle of each batch, and the triangle count at the end */
+	final int[] firstTriangles;
+
+	/** Material of each batch, null for the default texture */
+	final Material[] materials;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param indices vertex indices, 3 per triangle
+	 * @param firstTriangles first triangle of each batch, and the triangle
+	 *            count at the end
+	 * @param materials material of each batch
+	 */
+	MaterialBatches(int[] indices, int[] firstTriangles, Material[] materials) {
+		this.indices = indices;
+		this.firstTriangles = firstTriangles;
+		this.materials = materials;
+		count = materials.length;
+	}
+
+	/**
+	 * Make the batches of triangles grouped by material, dropping empty
+	 * ones.
+	 *
+	 * @param indices vertex indices, 3 per triangle
+	 * @param starts first triangle of the faces without a material, then of
+	 *            each material, and the triangle count at the end
+	 * @param materials material of each index of the names, null where
+	 *            undefined
+	 * @return batches
+	 */
+	static MaterialBatches create(int[] indices, int[] starts, Material[] materials) {
+		int n = 0;
+		int[] first = new int[starts.length];
+		Material[] used = new Material[starts.length - 1];
+		for (int m = 0; m < starts.length - 1; m++) {
+			if (starts[m + 1] > starts[m]) {
+				first[n] = starts[m];
+				used[n++] = m == 0 ? null : materials[m - 1];
+			}
+		}
+		first[n] = starts[starts.length - 1];
+		int[] firstTriangles = new int[n + 1];
+		Material[] batchMaterials = new Material[n];
+		System.arraycopy(first, 0, firstTriangles, 0, n + 1);
+		System.arraycopy(used, 0, batchMaterials, 0, n);
+		return new MaterialBatches(indices, firstTriangles, batchMaterials);
+	}
+
+	/**
+	 * Make the same batches for a reordered index array.
+	 *
+	 * @param reordered vertex indices in the new order
+	 * @return batches of the new order
+	 */
+	MaterialBatches reindex(int[] reordered) {
+		return new MaterialBatches(reordered, firstTriangles, materials);
+	}
+
+	/**
+	 * Regroup an order of the triangles by batch, keeping the order within
+	 * each batch.
+	 *
+	 * @param order triangle indices
+	 * @return triangle indices with the batches in runs
+	 */
+	int[] regroup(int[] order) {
+		int[] batchOf = new int[firstTriangles[count]];
+		for (int b = 0; b < count; b++) {
+			for (int t = firstTriangles[b]; t < firstTriangles[b + 1]; t++) {
+				batchOf[t] = b;
+			}
+		}
+		int[] fill = new int[count];
+		System.arraycopy(firstTriangles, 0, fill, 0, count);
+		int[] grouped = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			grouped[fill[batchOf[order[i]]]++] = order[i];
+		}
+		return grouped;
+	}
+
+	/**
+	 * Get the number of batches.
+	 *
+	 * @return batch count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the material of a batch.
+	 *
+	 * @param b batch
+	 * @return material, or null for the default texture
+	 */
+	public Material getMaterial(int b) {
+		return materials[b];
+	}
+
+	/**
+	 * Get the number of triangles of a batch.
+	 *
+	 * @param b batch
+	 * @return triangle count
+	 */
+	public int getTriangleCount(int b) {
+		return firstTriangles[b + 1] - firstTriangles[b];
+	}
+}
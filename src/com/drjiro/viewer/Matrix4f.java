@@ -339,6 +339,164 @@ public class Matrix4f {
 		return v;
 	}
 
+	/**
+	 * <p>
+	 * Transform a vector by this matrix into another vector.
+	 * </p>
+	 * v = a * M
+	 * 
+	 * @param a
+	 *            a vector to transform
+	 * @param v
+	 *            a vector to set, which may be a
+	 * @return v
+	 */
+	public Vector3f transform(Vector3f a, Vector3f v) {
+		float x = m00 * a.x + m10 * a.y + m20 * a.z + m30;
+		float y = m01 * a.x + m11 * a.y + m21 * a.z + m31;
+		float z = m02 * a.x + m12 * a.y + m22 * a.z + m32;
+		v.x = x;
+		v.y = y;
+		v.z = z;
+
+		return v;
+	}
+
+	/**
+	 * Transform packed points by this matrix.
+	 * 
+	 * @param src
+	 *            coordinates, 3 per point
+	 * @param srcOffset
+	 *            position of the first point in src
+	 * @param dst
+	 *            array to set, which may be src
+	 * @param dstOffset
+	 *            position of the first point in dst
+	 * @param count
+	 *            number of points
+	 */
+	public void transformPoints(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+		transformPoints(src, srcOffset, 3, dst, dstOffset, 3, count);
+	}
+
+	/**
+	 * Transform points by this matrix. A point may be read and written at the
+	 * same position, but the arrays must not overlap otherwise.
+	 * 
+	 * @param src
+	 *            coordinates
+	 * @param srcOffset
+	 *            position of the first point in src
+	 * @param srcStride
+	 *            distance between the points in src
+	 * @param dst
+	 *            array to set, which may be src
+	 * @param dstOffset
+	 *            position of the first point in dst
+	 * @param dstStride
+	 *            distance between the points in dst
+	 * @param count
+	 *            number of points
+	 */
+	public void transformPoints(float[] src, int srcOffset, int srcStride, float[] dst,
+			int dstOffset, int dstStride, int count) {
+		for (int i = 0, s = srcOffset, d = dstOffset; i < count; i++, s += srcStride, d += dstStride) {
+			float x = src[s];
+			float y = src[s + 1];
+			float z = src[s + 2];
+			dst[d] = m00 * x + m10 * y + m20 * z + m30;
+			dst[d + 1] = m01 * x + m11 * y + m21 * z + m31;
+			dst[d + 2] = m02 * x + m12 * y + m22 * z + m32;
+		}
+	}
+
+	/**
+	 * Transform packed vectors, e.g. normals, by the upper 3x3 part of this
+	 * matrix.
+	 * 
+	 * @param src
+	 *            components, 3 per vector
+	 * @param srcOffset
+	 *            position of the first vector in src
+	 * @param dst
+	 *            array to set, which may be src
+	 * @param dstOffset
+	 *            position of the first vector in dst
+	 * @param count
+	 *            number of vectors
+	 */
+	public void transformVectors(float[] src, int srcOffset, float[] dst, int dstOffset, int count) {
+		transformVectors(src, srcOffset, 3, dst, dstOffset, 3, count);
+	}
+
+	/**
+	 * Transform vectors by the upper 3x3 part of this matrix. The vectors are
+	 * not normalized, and normals keep their directions only for rotations
+	 * and uniform scales.
+	 * 
+	 * @param src
+	 *            components
+	 * @param srcOffset
+	 *            position of the first vector in src
+	 * @param srcStride
+	 *            distance between the vectors in src
+	 * @param dst
+	 *            array to set, which may be src
+	 * @param dstOffset
+	 *            position of the first vector in dst
+	 * @param dstStride
+	 *            distance between the vectors in dst
+	 * @param count
+	 *            number of vectors
+	 */
+	public void transformVectors(float[] src, int srcOffset, int srcStride, float[] dst,
+			int dstOffset, int dstStride, int count) {
+		for (int i = 0, s = srcOffset, d = dstOffset; i < count; i++, s += srcStride, d += dstStride) {
+			float x = src[s];
+			float y = src[s + 1];
+			float z = src[s + 2];
+			dst[d] = m00 * x + m10 * y + m20 * z;
+			dst[d + 1] = m01 * x + m11 * y + m21 * z;
+			dst[d + 2] = m02 * x + m12 * y + m22 * z;
+		}
+	}
+
+	/**
+	 * Transform indexed points by this matrix into 16.16 fixed point screen
+	 * coordinates, as the ones of a TLVertex, 3 per index.
+	 * 
+	 * @param positions
+	 *            coordinates, 3 per vertex
+	 * @param indices
+	 *            vertex indices
+	 * @param from
+	 *            position of the first index in indices
+	 * @param count
+	 *            number of indices
+	 * @param dst
+	 *            fixed point X, Y and Z to set
+	 * @param dstOffset
+	 *            position of the first point in dst
+	 */
+	public void project(float[] positions, int[] indices, int from, int count, int[] dst,
+			int dstOffset) {
+		// Scale the matrix once instead of every coordinate.
+		float a00 = m00 * 0x10000, a01 = m01 * 0x10000, a02 = m02 * 0x10000;
+		float a10 = m10 * 0x10000, a11 = m11 * 0x10000, a12 = m12 * 0x10000;
+		float a20 = m20 * 0x10000, a21 = m21 * 0x10000, a22 = m22 * 0x10000;
+		float a30 = m30 * 0x10000, a31 = m31 * 0x10000, a32 = m32 * 0x10000;
+		for (int i = from, d = dstOffset; i < from + count; i++, d += 3) {
+			int p = indices[i] * 3;
+			float x = positions[p];
+			float y = positions[p + 1];
+			float z = positions[p + 2];
+			dst[d] = (int) (a00 * x + a10 * y + a20 * z + a30);
+			dst[d + 1] = (int) (a01 * x + a11 * y + a21 * z + a31);
+			dst[d + 2] = (int) (a02 * x + a12 * y + a22 * z + a32);
+		}
+	}
+
 	/**
 	 * <p>
 	 * Transform a vector by this matrix using Left-Handed coordinate system.
@@ -382,4 +540,45 @@ public class Matrix4f {
 		m32 = 0;
 		m33 = 1.0f;
 	}
+
+	/**
+	 * Create the inverse of an affine matrix, whose last column is
+	 * (0, 0, 0, 1).
+	 * 
+	 * @param m
+	 *            an affine matrix to invert, which may be this matrix
+	 */
+	public void invertAffine(Matrix4f m) {
+		// Cofactors of the upper 3x3 part.
+		float c00 = m.m11 * m.m22 - m.m12 * m.m21;
+		float c01 = m.m02 * m.m21 - m.m01 * m.m22;
+		float c02 = m.m01 * m.m12 - m.m02 * m.m11;
+		float c10 = m.m12 * m.m20 - m.m10 * m.m22;
+		float c11 = m.m00 * m.m22 - m.m02 * m.m20;
+		float c12 = m.m02 * m.m10 - m.m00 * m.m12;
+		float c20 = m.m10 * m.m21 - m.m11 * m.m20;
+		float c21 = m.m01 * m.m20 - m.m00 * m.m21;
+		float c22 = m.m00 * m.m11 - m.m01 * m.m10;
+		float det = m.m00 * c00 + m.m01 * c10 + m.m02 * c20;
+		float inv = 1.0f / det;
+		float tx = m.m30;
+		float ty = m.m31;
+		float tz = m.m32;
+		m00 = c00 * inv;
+		m01 = c01 * inv;
+		m02 = c02 * inv;
+		m03 = 0;
+		m10 = c10 * inv;
+		m11 = c11 * inv;
+		m12 = c12 * inv;
+		m13 = 0;
+		m20 = c20 * inv;
+		m21 = c21 * inv;
+		m22 = c22 * inv;
+		m23 = 0;
+		m30 = -(tx * m00 + ty * m10 + tz * m20);
+		m31 = -(tx * m01 + ty * m11 + tz * m21);
+		m32 = -(tx * m02 + ty * m12 + tz * m22);
+		m33 = 1.0f;
+	}
 }
@@ -0,0 +1,199 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: Mesh.java
+ *
+ * Immutable snapshot of the mesh of an object.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Immutable snapshot of the mesh of an object.
+ * </p>
+ * A snapshot holds the arrays of an {@link Object3D} at one moment. Objects
+ * never write into arrays they have published; an edit such as
+ * {@link Object3D#optimize()} makes new arrays, so a snapshot is not changed
+ * by later edits and may be shared by any number of threads without locks.
+ * The state of a render, the rotation and the transform, is held by views,
+ * which are objects sharing the arrays of the snapshot, and the scratch
+ * buffers are held by the renderers, one per thread.
+ *
+ * @author wada
+ */
+public final class Mesh {
+	/** Vertex coordinates, 3 per vertex */
+	final float[] positions;
+
+	/** UV coordinates, 2 per vertex */
+	final float[] uvs;
+
+	/** Normal vectors, 3 per vertex */
+	final float[] normals;
+
+	/** Vertex indices, 3 per triangle */
+	final int[] indices;
+
+	/** Number of vertices */
+	final int vertexCount;
+
+	/** Number of triangles */
+	final int triangleCount;
+
+	/** Clusters of the triangles, or null */
+	final Meshlets meshlets;
+
+	/** Runs of triangles sharing a material, or null */
+	final MaterialBatches batches;
+
+	/** Ambient occlusion baked per vertex, or null */
+	final AmbientOcclusion occlusion;
+
+	/** Center of the object */
+	private final float centerX;
+
+	/** Center of the object */
+	private final float centerY;
+
+	/** Center of the object */
+	private final float centerZ;
+
+	/** Bounding radius */
+	final float radius;
+
+	/**
+	 * Take a snapshot of an object.
+	 *
+	 * @param obj object
+	 */
+	Mesh(Object3D obj) {
+		// The count first, so the arrays hold that many triangles.
+		triangleCount = obj.triangleCount;
+		positions = obj.positions;
+		uvs = obj.uvs;
+		normals = obj.normals;
+		indices = obj.indices;
+		vertexCount = obj.vertexCount;
+		meshlets = obj.meshlets;
+		batches = obj.batches;
+		occlusion = obj.occlusion;
+		centerX = obj.center.x;
+		centerY = obj.center.y;
+		centerZ = obj.center.z;
+		radius = obj.radius;
+	}
+
+	/**
+	 * Create a view of this mesh. The view has its own rotation and may be
+	 * edited, which makes new arrays and leaves this mesh as it is.
+	 *
+	 * @return object sharing the arrays of this mesh
+	 */
+	public Object3D createView() {
+		Object3D view = new Object3D();
+		view.share(this);
+		return view;
+	}
+
+	/**
+	 * Get the vertex coordinates, 3 per vertex. The array must not be
+	 * written.
+	 *
+	 * @return vertex coordinates
+	 */
+	public float[] getPositionArray() {
+		return positions;
+	}
+
+	/**
+	 * Get the UV coordinates, 2 per vertex. The array must not be written.
+	 *
+	 * @return UV coordinates
+	 */
+	public float[] getUvArray() {
+		return uvs;
+	}
+
+	/**
+	 * Get the normal vectors, 3 per vertex. The array must not be written.
+	 *
+	 * @return normal vectors
+	 */
+	public float[] getNormalArray() {
+		return normals;
+	}
+
+	/**
+	 * Get the vertex indices, 3 per triangle. The array must not be written.
+	 *
+	 * @return vertex indices
+	 */
+	public int[] getIndexArray() {
+		return indices;
+	}
+
+	/**
+	 * Get the vertex count.
+	 *
+	 * @return vertex count
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Get the triangle count.
+	 *
+	 * @return triangle count
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Get the clusters of the triangles.
+	 *
+	 * @return clusters, or null if not built
+	 */
+	public Meshlets getMeshlets() {
+		return meshlets;
+	}
+
+	/**
+	 * Get the runs of triangles sharing a material.
+	 *
+	 * @return batches, or null if the faces have no material
+	 */
+	public MaterialBatches getMaterialBatches() {
+		return batches;
+	}
+
+	/**
+	 * Get the ambient occlusion of the vertices.
+	 *
+	 * @return occlusion, or null if not baked
+	 */
+	public AmbientOcclusion getOcclusion() {
+		return occlusion;
+	}
+
+	/**
+	 * Get the center of the object.
+	 *
+	 * @return new vector of the center
+	 */
+	public Vector3f getCenter() {
+		return new Vector3f(centerX, centerY, centerZ);
+	}
+
+	/**
+	 * Get the bounding radius of the object.
+	 *
+	 * @return bounding radius
+	 */
+	public float getRadius() {
+		return radius;
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MeshBuilder.java
+ *
+ * Collects .OBJ records into primitive arrays.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Collects .OBJ records into primitive arrays.
+ * </p>
+ * Coordinates are kept as 3 floats per record and faces as 9 zero based
+ * (vertex, UV, normal) indices per triangle. Once a material is used, the
+ * material of every face is kept too.
+ *
+ * @author wada
+ */
+class MeshBuilder extends ObjParser {
+	/** Vertex coordinates */
+	float[] positions = new float[3 * 1024];
+
+	/** UV coordinates */
+	float[] uvs = new float[3 * 1024];
+
+	/** Normal vectors */
+	float[] normals = new float[3 * 1024];
+
+	/** Face indices */
+	int[] corners = new int[9 * 1024];
+
+	/** Number of faces */
+	int faceCount;
+
+	/** Positions in corners holding a relative index */
+	int[] relativeSlots = new int[0];
+
+	/** Number of relative slots */
+	int relativeCount;
+
+	/** Material of each face, an index in materialNames or NONE, or null */
+	int[] faceMaterials;
+
+	/** Names of the used materials */
+	List materialNames = new ArrayList();
+
+	/** Names of the material libraries */
+	List libraries = new ArrayList();
+
+	/** Material of the following faces */
+	int material = NONE;
+
+	/** Counts saved by mark() */
+	private final int[] marked = new int[5];
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#vertex(float, float, float)
+	 */
+	protected void vertex(float x, float y, float z) {
+		positions = add(positions, vertexCount - 1, x, y, z);
+	}
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#uv(float, float, float)
+	 */
+	protected void uv(float u, float v, float w) {
+		uvs = add(uvs, uvCount - 1, u, v, w);
+	}
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#normal(float, float, float)
+	 */
+	protected void normal(float x, float y, float z) {
+		normals = add(normals, normalCount - 1, x, y, z);
+	}
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#face(int[])
+	 */
+	protected void face(int[] c) {
+		int off = faceCount * 9;
+		if (off + 9 > corners.length) {
+			corners = grow(corners, off + 9);
+		}
+		System.arraycopy(c, 0, corners, off, 9);
+		if (faceMaterials != null) {
+			if (faceCount >= faceMaterials.length) {
+				faceMaterials = grow(faceMaterials, faceCount + 1);
+			}
+			faceMaterials[faceCount] = material;
+		}
+		if (relative != 0) {
+			// Remember relative indices so that they can be rebased.
+			for (int i = 0; i < 9; i++) {
+				if ((relative & (1 << i)) != 0) {
+					if (relativeCount == relativeSlots.length) {
+						relativeSlots = grow(relativeSlots, relativeCount + 1);
+					}
+					relativeSlots[relativeCount++] = off + i;
+				}
+			}
+		}
+		faceCount++;
+	}
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#material(java.lang.String)
+	 */
+	protected void material(String name) {
+		material = materialNames.indexOf(name);
+		if (material < 0) {
+			material = materialNames.size();
+			materialNames.add(name);
+		}
+		if (faceMaterials == null) {
+			faceMaterials = new int[Math.max(corners.length / 9, 16)];
+			for (int f = 0; f < faceCount; f++) {
+				faceMaterials[f] = NONE;
+			}
+		}
+	}
+
+	/**
+	 * @see com.drjiro.viewer.ObjParser#materialLibrary(java.lang.String)
+	 */
+	protected void materialLibrary(String name) {
+		if (!libraries.contains(name)) {
+			libraries.add(name);
+		}
+	}
+
+	/**
+	 * Group the faces by their material, keeping the order of the faces of
+	 * a material.
+	 *
+	 * @return builder sharing the records, with the faces sorted, or this
+	 *         builder if no material is used
+	 */
+	MeshBuilder groupByMaterial() {
+		if (faceMaterials == null) {
+			return this;
+		}
+		// Count the faces of each material, NONE first.
+		int[] starts = getMaterialStarts();
+		int[] fill = new int[starts.length - 1];
+		MeshBuilder out = new MeshBuilder();
+		out.positions = positions;
+		out.vertexCount = vertexCount;
+		out.uvs = uvs;
+		out.uvCount = uvCount;
+		out.normals = normals;
+		out.normalCount = normalCount;
+		out.faceCount = faceCount;
+		out.corners = new int[faceCount * 9];
+		out.faceMaterials = new int[faceCount];
+		out.materialNames = materialNames;
+		out.libraries = libraries;
+		for (int f = 0; f < faceCount; f++) {
+			int m = faceMaterials[f];
+			int to = starts[m + 1] + fill[m + 1]++;
+			System.arraycopy(corners, f * 9, out.corners, to * 9, 9);
+			out.faceMaterials[to] = m;
+		}
+		return out;
+	}
+
+	/**
+	 * Get the first face of each material in the grouped order.
+	 *
+	 * @return first face of the faces without a material, then of each
+	 *         material, and the face count at the end
+	 */
+	int[] getMaterialStarts() {
+		int[] starts = new int[materialNames.size() + 2];
+		for (int f = 0; f < faceCount; f++) {
+			starts[faceMaterials[f] + 2]++;
+		}
+		for (int m = 1; m < starts.length; m++) {
+			starts[m] += starts[m - 1];
+		}
+		return starts;
+	}
+
+	/**
+	 * Save the numbers of the records and faces.
+	 */
+	void mark() {
+		marked[0] = vertexCount;
+		marked[1] = uvCount;
+		marked[2] = normalCount;
+		marked[3] = faceCount;
+		marked[4] = relativeCount;
+	}
+
+	/**
+	 * Drop the records and faces added since the last mark().
+	 */
+	void reset() {
+		vertexCount = marked[0];
+		uvCount = marked[1];
+		normalCount = marked[2];
+		faceCount = marked[3];
+		relativeCount = marked[4];
+	}
+
+	/**
+	 * Check whether every corner uses the same index for the vertex, UV and
+	 * normal, as many exporters write them.
+	 *
+	 * @return true if the records can be used as vertices directly
+	 */
+	boolean hasSharedIndices() {
+		int withUv = 0;
+		int withNormal = 0;
+		for (int i = 0; i < faceCount * 9; i += 3) {
+			int iv = corners[i];
+			int it = corners[i + 1];
+			int in = corners[i + 2];
+			if (it != NONE) {
+				if (it != iv || it >= uvCount) {
+					return false;
+				}
+				withUv++;
+			}
+			if (in != NONE) {
+				if (in != iv || in >= normalCount) {
+					return false;
+				}
+				withNormal++;
+			}
+		}
+		int n = faceCount * 3;
+		return (withUv == 0 || withUv == n) && (withNormal == 0 || withNormal == n);
+	}
+
+	/**
+	 * Append builders parsed from consecutive parts of a file. Relative
+	 * indices of each part are rebased by the records of the preceding parts.
+	 *
+	 * @param parts builders in file order
+	 * @return a builder holding all records
+	 */
+	static MeshBuilder concat(MeshBuilder[] parts) {
+		MeshBuilder all = new MeshBuilder();
+		int nv = 0, nt = 0, nn = 0, nf = 0;
+		for (int i = 0; i < parts.length; i++) {
+			nv += parts[i].vertexCount;
+			nt += parts[i].uvCount;
+			nn += parts[i].normalCount;
+			nf += parts[i].faceCount;
+		}
+		all.positions = new float[nv * 3];
+		all.uvs = new float[nt * 3];
+		all.normals = new float[nn * 3];
+		all.corners = new int[nf * 9];
+		boolean materials = false;
+		for (int i = 0; i < parts.length; i++) {
+			materials |= parts[i].faceMaterials != null;
+			for (int j = 0; j < parts[i].libraries.size(); j++) {
+				all.materialLibrary((String) parts[i].libraries.get(j));
+			}
+		}
+		if (materials) {
+			all.faceMaterials = new int[nf];
+		}
+
+		for (int i = 0; i < parts.length; i++) {
+			MeshBuilder part = parts[i];
+			int off = all.faceCount * 9;
+			System.arraycopy(part.positions, 0, all.positions, all.vertexCount * 3, part.vertexCount * 3);
+			System.arraycopy(part.uvs, 0, all.uvs, all.uvCount * 3, part.uvCount * 3);
+			System.arraycopy(part.normals, 0, all.normals, all.normalCount * 3, part.normalCount * 3);
+			System.arraycopy(part.corners, 0, all.corners, off, part.faceCount * 9);
+			for (int j = 0; j < part.relativeCount; j++) {
+				int slot = part.relativeSlots[j];
+				switch (slot % 3) {
+				case 0:
+					all.corners[off + slot] += all.vertexCount;
+					break;
+				case 1:
+					all.corners[off + slot] += all.uvCount;
+					break;
+				default:
+					all.corners[off + slot] += all.normalCount;
+					break;
+				}
+			}
+			if (materials) {
+				// Faces before the first material of a part use the last one
+				// of the preceding parts.
+				int inherited = all.material;
+				for (int f = 0; f < part.faceCount; f++) {
+					int m = part.faceMaterials != null ? part.faceMaterials[f] : NONE;
+					if (m != NONE) {
+						all.material((String) part.materialNames.get(m));
+						m = all.material;
+					} else {
+						m = inherited;
+					}
+					all.faceMaterials[all.faceCount + f] = m;
+				}
+				if (part.material != NONE) {
+					all.material((String) part.materialNames.get(part.material));
+				}
+			}
+			all.vertexCount += part.vertexCount;
+			all.uvCount += part.uvCount;
+			all.normalCount += part.normalCount;
+			all.faceCount += part.faceCount;
+		}
+		return all;
+	}
+
+	/**
+	 * Append 3 values to an array.
+	 *
+	 * @param a array
+	 * @param index index of the record
+	 * @param x 1st value
+	 * @param y 2nd value
+	 * @param z 3rd value
+	 * @return the array or a grown copy
+	 */
+	static float[] add(float[] a, int index, float x, float y, float z) {
+		int off = index * 3;
+		if (off + 3 > a.length) {
+			float[] b = new float[Math.max(a.length * 2, off + 3)];
+			System.arraycopy(a, 0, b, 0, a.length);
+			a = b;
+		}
+		a[off] = x;
+		a[off + 1] = y;
+		a[off + 2] = z;
+		return a;
+	}
+
+	/**
+	 * Grow an int array.
+	 *
+	 * @param a array
+	 * @param min minimum length
+	 * @return grown copy
+	 */
+	static int[] grow(int[] a, int min) {
+		int[] b = new int[Math.max(Math.max(a.length * 2, 16), min)];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MeshCache.java
+ *
+ * LRU cache of parsed meshes.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * LRU cache of parsed meshes.
+ * </p>
+ * A mesh is keyed by its URL, the weld setting and the crease angle, and is
+ * valid while the last modified time, the ETag and the size of the source
+ * are unchanged.
+ * Objects loaded through the cache share the mesh arrays, which must be
+ * treated as read only. The least recently used meshes are evicted when
+ * the arrays exceed the byte budget. The cache is thread safe.
+ *
+ * @author wada
+ */
+public class MeshCache {
+	/** Memory budget of the cached meshes in bytes */
+	private final long budget;
+
+	/** Cached meshes in the access order */
+	private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+	/** Bytes of the cached meshes */
+	private long bytes;
+
+	/** Number of hits */
+	private long hits;
+
+	/** Number of misses */
+	private long misses;
+
+	/** Number of evicted meshes */
+	private long evictions;
+
+	/**
+	 * Cached mesh.
+	 */
+	private static class Entry {
+		/** Version of the source */
+		final String version;
+
+		/** Object holding the shared mesh */
+		final Object3D mesh;
+
+		/** Bytes of the arrays */
+		final long bytes;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param version version of the source
+		 * @param mesh object holding the mesh
+		 */
+		Entry(String version, Object3D mesh) {
+			this.version = version;
+			this.mesh = mesh;
+			bytes = 4L * (mesh.positions.length + mesh.uvs.length + mesh.normals.length
+					+ mesh.indices.length);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param budget memory budget of the cached meshes in bytes
+	 */
+	public MeshCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Load the mesh of a URL into an object, from the cache if it is up to
+	 * date.
+	 *
+	 * @param url URL of the .OBJ file
+	 * @param obj object to set up, whose weld setting and crease angle are
+	 *            used
+	 * @throws IOException
+	 */
+	public void load(URL url, Object3D obj) throws IOException {
+		String key = (obj.weld ? "weld:" : "") + obj.creaseAngle + ":" + url.toExternalForm();
+		String version = getVersion(url);
+		Entry entry;
+		synchronized (this) {
+			entry = (Entry) entries.get(key);
+			if (entry != null && entry.version.equals(version)) {
+				hits++;
+			} else {
+				misses++;
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			// Parse outside the lock, so other URLs are served meanwhile.
+			Object3D mesh = new Object3D();
+			mesh.setWeld(obj.weld);
+			mesh.setCreaseAngle(obj.creaseAngle);
+			mesh.load(url);
+			entry = new Entry(version, mesh);
+			put(key, entry);
+		}
+		obj.share(entry.mesh);
+	}
+
+	/**
+	 * Add a mesh and evict the least recently used ones over the budget.
+	 *
+	 * @param key key of the mesh
+	 * @param entry mesh
+	 */
+	private synchronized void put(String key, Entry entry) {
+		Entry old = (Entry) entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+		bytes += entry.bytes;
+		Iterator it = entries.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Map.Entry e = (Map.Entry) it.next();
+			bytes -= ((Entry) e.getValue()).bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Get the version of a source from its last modified time, ETag and
+	 * size.
+	 *
+	 * @param url URL of the source
+	 * @return version
+	 * @throws IOException
+	 */
+	static String getVersion(URL url) throws IOException {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				File file = new File(url.toURI());
+				return file.lastModified() + ":" + file.length();
+			} catch (URISyntaxException e) {
+				// Ask the connection.
+			} catch (IllegalArgumentException e) {
+				// Ask the connection.
+			}
+		}
+		URLConnection conn = url.openConnection();
+		if (conn instanceof HttpURLConnection) {
+			((HttpURLConnection) conn).setRequestMethod("HEAD");
+		}
+		try {
+			return conn.getLastModified() + ":" + conn.getContentLengthLong() + ":"
+					+ conn.getHeaderField("ETag");
+		} finally {
+			if (conn instanceof HttpURLConnection) {
+				((HttpURLConnection) conn).disconnect();
+			} else {
+				conn.getInputStream().close();
+			}
+		}
+	}
+
+	/**
+	 * Remove all meshes.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Get the number of hits.
+	 *
+	 * @return hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of misses.
+	 *
+	 * @return misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of evicted meshes.
+	 *
+	 * @return evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Get the bytes of the cached meshes.
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of cached meshes.
+	 *
+	 * @return mesh count
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
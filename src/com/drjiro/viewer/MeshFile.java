@@ -0,0 +1,398 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MeshFile.java
+ *
+ * Binary mesh cache file.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Binary mesh cache file.
+ * </p>
+ * A little endian file made of a 64 byte header followed by the flat
+ * position, UV, normal and triangle index arrays. The reader memory maps the
+ * file in sections below 2 GB and copies each array out with bulk gets, as
+ * an object keeps its mesh in Java arrays. An object whose faces have
+ * materials is not cached, so that its libraries are read again.
+ *
+ * <pre>
+ *  0 magic "WVMB", version
+ *  8 length and modified time of the source .OBJ file
+ * 24 vertex and triangle counts
+ * 32 center X, Y, Z and radius
+ * 48 weld flag and crease angle the mesh was built with
+ * </pre>
+ *
+ * @author wada
+ */
+public class MeshFile {
+	/** Magic number */
+	private static final int MAGIC = 0x424D5657;
+
+	/** Format version */
+	private static final int VERSION = 4;
+
+	/** Size of the header */
+	static final int HEADER_SIZE = 64;
+
+	/** Largest number of bytes mapped at a time */
+	private static final int SECTION_SIZE = 1 << 30;
+
+	/** Extension of a cache file */
+	public static final String EXTENSION = ".wvm";
+
+	/** Length of the source file */
+	private long sourceLength;
+
+	/** Modified time of the source file */
+	private long sourceModified;
+
+	/** Whether the corners were welded */
+	private boolean weld;
+
+	/** Crease angle of the generated normals */
+	private float creaseAngle;
+
+	/** Number of vertices */
+	int vertexCount;
+
+	/** Number of triangles */
+	int triangleCount;
+
+	/** Center of the object */
+	final Vector3f center = new Vector3f();
+
+	/** Bounding radius */
+	float radius;
+
+	/** Vertex coordinates, 3 per vertex */
+	float[] positions;
+
+	/** UV coordinates, 2 per vertex */
+	float[] uvs;
+
+	/** Normal vectors, 3 per vertex */
+	float[] normals;
+
+	/** Vertex indices, 3 per triangle */
+	int[] indices;
+
+	/**
+	 * Get the cache file for a .OBJ file.
+	 *
+	 * @param source .OBJ file
+	 * @return cache file
+	 */
+	public static File getCacheFile(File source) {
+		String name = source.getName();
+		if (name.toLowerCase().endsWith(".obj")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return new File(source.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Read the cache of a .OBJ file if it is up to date and was built with
+	 * the weld flag and the crease angle of an object.
+	 *
+	 * @param source .OBJ file
+	 * @param obj object to load into
+	 * @return cached mesh, or null if missing or stale
+	 */
+	public static MeshFile readCache(File source, Object3D obj) {
+		if (!isCached(source, obj)) {
+			return null;
+		}
+		try {
+			return read(getCacheFile(source));
+		} catch (IOException e) {
+			// Treat a broken cache as missing.
+			return null;
+		}
+	}
+
+	/**
+	 * Test whether the cache of a .OBJ file is up to date and was built with
+	 * the settings of an object, reading only its header.
+	 *
+	 * @param source .OBJ file
+	 * @param obj object to load into
+	 * @return true if the cache can be read
+	 */
+	public static boolean isCached(File source, Object3D obj) {
+		File file = getCacheFile(source);
+		if (!file.isFile() || file.lastModified() < source.lastModified()) {
+			return false;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				raf.readFully(header.array());
+				MeshFile mesh = readHeader(header, file);
+				return mesh.sourceLength == source.length()
+						&& mesh.sourceModified == source.lastModified() && mesh.weld == obj.weld
+						&& mesh.creaseAngle == obj.creaseAngle;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read a mesh file by memory mapping.
+	 *
+	 * @param file mesh file
+	 * @return mesh
+	 * @throws IOException
+	 */
+	public static MeshFile read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(ch.size(), HEADER_SIZE));
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			MeshFile mesh = readHeader(header, file);
+
+			long n = mesh.vertexCount;
+			long size = HEADER_SIZE + 4L * (8L * n + 3L * mesh.triangleCount);
+			if (size != ch.size()) {
+				throw new IOException("Truncated mesh file: " + file);
+			}
+			long pos = HEADER_SIZE;
+			mesh.positions = new float[mesh.vertexCount * 3];
+			get(ch, pos, mesh.positions);
+			pos += n * 12;
+			mesh.uvs = new float[mesh.vertexCount * 2];
+			get(ch, pos, mesh.uvs);
+			pos += n * 8;
+			mesh.normals = new float[mesh.vertexCount * 3];
+			get(ch, pos, mesh.normals);
+			pos += n * 12;
+			mesh.indices = new int[mesh.triangleCount * 3];
+			get(ch, pos, mesh.indices);
+			return mesh;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Copy floats of a file into an array, mapping a section at a time.
+	 *
+	 * @param ch file channel
+	 * @param pos position of the first float
+	 * @param a array to fill
+	 * @throws IOException
+	 */
+	private static void get(FileChannel ch, long pos, float[] a) throws IOException {
+		for (int i = 0; i < a.length;) {
+			int n = Math.min(a.length - i, SECTION_SIZE / 4);
+			map(ch, pos + i * 4L, n).asFloatBuffer().get(a, i, n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Copy ints of a file into an array, mapping a section at a time.
+	 *
+	 * @param ch file channel
+	 * @param pos position of the first int
+	 * @param a array to fill
+	 * @throws IOException
+	 */
+	private static void get(FileChannel ch, long pos, int[] a) throws IOException {
+		for (int i = 0; i < a.length;) {
+			int n = Math.min(a.length - i, SECTION_SIZE / 4);
+			map(ch, pos + i * 4L, n).asIntBuffer().get(a, i, n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Map a little endian section of a file.
+	 *
+	 * @param ch file channel
+	 * @param pos start position
+	 * @param count number of 4 byte values
+	 * @return mapped section
+	 * @throws IOException
+	 */
+	private static ByteBuffer map(FileChannel ch, long pos, int count) throws IOException {
+		MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, count * 4L);
+		return buf.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read the header of a mesh file.
+	 *
+	 * @param buf little endian buffer holding the header from position 0
+	 * @param file mesh file for messages
+	 * @return mesh without the arrays
+	 * @throws IOException
+	 */
+	static MeshFile readHeader(ByteBuffer buf, File file) throws IOException {
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+			throw new IOException("Not a mesh file: " + file);
+		}
+		MeshFile mesh = new MeshFile();
+		mesh.sourceLength = buf.getLong(8);
+		mesh.sourceModified = buf.getLong(16);
+		mesh.vertexCount = buf.getInt(24);
+		mesh.triangleCount = buf.getInt(28);
+		mesh.center.x = buf.getFloat(32);
+		mesh.center.y = buf.getFloat(36);
+		mesh.center.z = buf.getFloat(40);
+		mesh.radius = buf.getFloat(44);
+		mesh.weld = buf.getInt(48) != 0;
+		mesh.creaseAngle = buf.getFloat(52);
+		return mesh;
+	}
+
+	/**
+	 * Write the cache of a .OBJ file. The file is written under a temporary
+	 * name and renamed, so a reader never sees a partial file. Nothing is
+	 * written for an object having materials.
+	 *
+	 * @param source .OBJ file
+	 * @param obj object loaded from the file
+	 * @throws IOException
+	 */
+	static void writeCache(File source, Object3D obj) throws IOException {
+		if (obj.batches != null) {
+			return;
+		}
+		File file = getCacheFile(source);
+		File tmp = new File(file.getPath() + ".tmp");
+		write(tmp, obj, source.length(), source.lastModified());
+		file.delete();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * Write a mesh file.
+	 *
+	 * @param file file to write
+	 * @param obj object to write
+	 * @param sourceLength length of the source file
+	 * @param sourceModified modified time of the source file
+	 * @throws IOException
+	 */
+	public static void write(File file, Object3D obj, long sourceLength, long sourceModified)
+			throws IOException {
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			FileChannel ch = os.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(ObjParser.BUFFER_SIZE);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putLong(sourceLength);
+			buf.putLong(sourceModified);
+			int n = obj.vertexCount;
+			buf.putInt(n);
+			buf.putInt(obj.triangleCount);
+			buf.putFloat(obj.center.x);
+			buf.putFloat(obj.center.y);
+			buf.putFloat(obj.center.z);
+			buf.putFloat(obj.radius);
+			buf.putInt(obj.weld ? 1 : 0);
+			buf.putFloat(obj.creaseAngle);
+			while (buf.position() < HEADER_SIZE) {
+				buf.put((byte) 0);
+			}
+			put(ch, buf, obj.positions, n * 3);
+			put(ch, buf, obj.uvs, n * 2);
+			put(ch, buf, obj.normals, n * 3);
+			put(ch, buf, obj.indices, obj.triangleCount * 3);
+			buf.flip();
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Write a float array through a buffer.
+	 *
+	 * @param ch channel to write
+	 * @param buf write buffer
+	 * @param a array
+	 * @param count number of values
+	 * @throws IOException
+	 */
+	private static void put(FileChannel ch, ByteBuffer buf, float[] a, int count)
+			throws IOException {
+		for (int i = 0; i < count;) {
+			flush(ch, buf, 4);
+			FloatBuffer fb = buf.asFloatBuffer();
+			int n = Math.min(fb.capacity(), count - i);
+			fb.put(a, i, n);
+			buf.position(buf.position() + n * 4);
+			i += n;
+		}
+	}
+
+	/**
+	 * Write an int array through a buffer.
+	 *
+	 * @param ch channel to write
+	 * @param buf write buffer
+	 * @param a array
+	 * @param count number of values
+	 * @throws IOException
+	 */
+	private static void put(FileChannel ch, ByteBuffer buf, int[] a, int count)
+			throws IOException {
+		for (int i = 0; i < count;) {
+			flush(ch, buf, 4);
+			IntBuffer ib = buf.asIntBuffer();
+			int n = Math.min(ib.capacity(), count - i);
+			ib.put(a, i, n);
+			buf.position(buf.position() + n * 4);
+			i += n;
+		}
+	}
+
+	/**
+	 * Write out a buffer unless it has room for more bytes.
+	 *
+	 * @param ch channel to write
+	 * @param buf write buffer
+	 * @param room bytes needed
+	 * @throws IOException
+	 */
+	private static void flush(FileChannel ch, ByteBuffer buf, int room) throws IOException {
+		if (buf.remaining() >= room) {
+			return;
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		buf.clear();
+	}
+}
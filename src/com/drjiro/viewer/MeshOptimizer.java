@@ -0,0 +1,354 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MeshOptimizer.java
+ *
+ * Reorders triangles and vertices for locality.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Reorders triangles and vertices for locality.
+ * </p>
+ * The triangles are first sorted by the Morton code of their centroids, so
+ * neighbors in the list are neighbors in space. Then they are emitted by
+ * Tom Forsyth's linear-speed vertex cache optimization, which greedily picks
+ * the triangle whose vertices score best in a simulated LRU cache, and
+ * restarts from the next triangle in Morton order when the cache has no
+ * candidate. Finally the vertices are renumbered in the order of first use,
+ * so the vertex arrays are read almost sequentially.
+ *
+ * @author wada
+ */
+public class MeshOptimizer {
+	/** Size of the simulated post-transform cache */
+	public static final int CACHE_SIZE = 32;
+
+	/** Bits of a coordinate of the Morton code */
+	private static final int MORTON_BITS = 10;
+
+	/** Score of the vertices of the last triangle */
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+
+	/** Power of the cache position score */
+	private static final float CACHE_DECAY_POWER = 1.5f;
+
+	/** Scale of the valence score */
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+
+	/** Power of the valence score */
+	private static final float VALENCE_BOOST_POWER = -0.5f;
+
+	/** Scores of the cache positions */
+	private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+
+	/** Scores of the small valences */
+	private static final float[] VALENCE_SCORES = new float[32];
+
+	static {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			CACHE_SCORES[i] = i < 3 ? LAST_TRIANGLE_SCORE
+					: (float) Math.pow(1.0f - (i - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+		}
+		for (int i = 1; i < VALENCE_SCORES.length; i++) {
+			VALENCE_SCORES[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, VALENCE_BOOST_POWER);
+		}
+	}
+
+	/**
+	 * Constructor. All methods are static.
+	 */
+	private MeshOptimizer() {
+	}
+
+	/**
+	 * Reorder the mesh of an object. New arrays are set, so the old ones
+	 * may still be used by a renderer or shared with other objects. The
+	 * triangles of a material stay in one run.
+	 *
+	 * @param obj object to optimize
+	 */
+	public static void optimize(Object3D obj) {
+		int triangleCount = obj.triangleCount;
+		int vertexCount = obj.vertexCount;
+		float[] positions = obj.positions;
+		MaterialBatches batches = obj.batches;
+		if (batches != null && batches.indices != obj.indices) {
+			batches = null;
+		}
+		int[] indices = new int[triangleCount * 3];
+		int[] order = sortByMorton(positions, obj.indices, triangleCount);
+		order = sortForCache(obj.indices, order, vertexCount);
+		if (batches != null) {
+			order = batches.regroup(order);
+		}
+		for (int t = 0; t < triangleCount; t++) {
+			System.arraycopy(obj.indices, order[t] * 3, indices, t * 3, 3);
+		}
+
+		// Renumber the vertices in the order of first use.
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int[] source = new int[vertexCount];
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int v = indices[i];
+			if (remap[v] < 0) {
+				source[next] = v;
+				remap[v] = next++;
+			}
+			indices[i] = remap[v];
+		}
+		// Unused vertices go last.
+		for (int v = 0; v < vertexCount; v++) {
+			if (remap[v] < 0) {
+				source[next] = v;
+				remap[v] = next++;
+			}
+		}
+		float[] newPositions = new float[vertexCount * 3];
+		float[] newUvs = new float[vertexCount * 2];
+		float[] newNormals = new float[vertexCount * 3];
+		for (int i = 0; i < vertexCount; i++) {
+			int v = source[i];
+			System.arraycopy(positions, v * 3, newPositions, i * 3, 3);
+			System.arraycopy(obj.uvs, v * 2, newUvs, i * 2, 2);
+			System.arraycopy(obj.normals, v * 3, newNormals, i * 3, 3);
+		}
+		AmbientOcclusion occlusion = obj.occlusion;
+		if (occlusion != null && occlusion.positions == positions) {
+			byte[] values = new byte[vertexCount];
+			for (int i = 0; i < vertexCount; i++) {
+				values[i] = occlusion.values[source[i]];
+			}
+			occlusion = new AmbientOcclusion(newPositions, values);
+		}
+		obj.setMesh(newPositions, newUvs, newNormals, indices, vertexCount, triangleCount);
+		obj.occlusion = occlusion;
+		if (batches != null) {
+			obj.batches = batches.reindex(indices);
+		}
+	}
+
+	/**
+	 * Sort the triangles by the Morton code of their centroids.
+	 *
+	 * @param positions vertex coordinates
+	 * @param indices vertex indices
+	 * @param triangleCount number of triangles
+	 * @return triangle indices in the Morton order
+	 */
+	static int[] sortByMorton(float[] positions, int[] indices, int triangleCount) {
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = 0; i < triangleCount * 3; i++) {
+			int p = indices[i] * 3;
+			for (int k = 0; k < 3; k++) {
+				min[k] = Math.min(min[k], positions[p + k]);
+				max[k] = Math.max(max[k], positions[p + k]);
+			}
+		}
+		float[] scale = new float[3];
+		for (int k = 0; k < 3; k++) {
+			scale[k] = max[k] > min[k] ? ((1 << MORTON_BITS) - 1) / (max[k] - min[k]) / 3 : 0;
+		}
+
+		// Sort the codes with the triangle index in the low bits.
+		long[] keys = new long[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			long code = 0;
+			for (int k = 0; k < 3; k++) {
+				float sum = positions[indices[t * 3] * 3 + k] + positions[indices[t * 3 + 1] * 3 + k]
+						+ positions[indices[t * 3 + 2] * 3 + k];
+				code |= spread((int) ((sum - min[k] * 3) * scale[k])) << k;
+			}
+			keys[t] = code << 32 | t;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			order[t] = (int) keys[t];
+		}
+		return order;
+	}
+
+	/**
+	 * Spread the bits of a coordinate to every third bit.
+	 *
+	 * @param x coordinate of MORTON_BITS bits
+	 * @return spread bits
+	 */
+	private static long spread(int x) {
+		long v = x & 0x3ff;
+		v = (v | v << 16) & 0x030000ffL;
+		v = (v | v << 8) & 0x0300f00fL;
+		v = (v | v << 4) & 0x030c30c3L;
+		v = (v | v << 2) & 0x09249249L;
+		return v;
+	}
+
+	/**
+	 * Order the triangles for the post-transform vertex cache.
+	 *
+	 * @param indices vertex indices
+	 * @param start triangles in the order to restart from
+	 * @param vertexCount number of vertices
+	 * @return triangle indices in the emitting order
+	 */
+	static int[] sortForCache(int[] indices, int[] start, int vertexCount) {
+		int triangleCount = start.length;
+
+		// Triangles of each vertex.
+		int[] offsets = new int[vertexCount + 1];
+		for (int i = 0; i < triangleCount * 3; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = new int[vertexCount];
+		int[] adjacency = new int[triangleCount * 3];
+		for (int i = 0; i < triangleCount * 3; i++) {
+			int v = indices[i];
+			adjacency[offsets[v] + fill[v]++] = i / 3;
+		}
+		// fill now counts the triangles left to emit for each vertex.
+		int[] valence = fill;
+
+		float[] vertexScore = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexScore[v] = score(-1, valence[v]);
+		}
+		float[] triangleScore = new float[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			triangleScore[t] = vertexScore[indices[t * 3]] + vertexScore[indices[t * 3 + 1]]
+					+ vertexScore[indices[t * 3 + 2]];
+		}
+
+		boolean[] emitted = new boolean[triangleCount];
+		int[] order = new int[triangleCount];
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cached = 0;
+		int cursor = 0;
+		int best = -1;
+		for (int n = 0; n < triangleCount; n++) {
+			if (best < 0) {
+				// No candidate in the cache; go on in the Morton order.
+				while (emitted[start[cursor]]) {
+					cursor++;
+				}
+				best = start[cursor];
+			}
+			emitted[best] = true;
+			order[n] = best;
+
+			// Put the vertices of the triangle in front of the cache.
+			int newCached = 0;
+			for (int j = 0; j < 3; j++) {
+				int v = indices[best * 3 + j];
+				newCache[newCached++] = v;
+				valence[v]--;
+				// Drop the triangle from the list of the vertex.
+				int end = offsets[v] + valence[v];
+				for (int a = offsets[v]; a <= end; a++) {
+					if (adjacency[a] == best) {
+						adjacency[a] = adjacency[end];
+						adjacency[end] = best;
+						break;
+					}
+				}
+			}
+			for (int i = 0; i < cached; i++) {
+				int v = cache[i];
+				if (v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+					newCache[newCached++] = v;
+				}
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cached = newCached;
+
+			// Rescore the cached vertices and their triangles.
+			for (int i = 0; i < cached; i++) {
+				int v = cache[i];
+				float s = score(i < CACHE_SIZE ? i : -1, valence[v]);
+				float d = s - vertexScore[v];
+				vertexScore[v] = s;
+				for (int a = offsets[v]; a < offsets[v] + valence[v]; a++) {
+					triangleScore[adjacency[a]] += d;
+				}
+			}
+			cached = Math.min(cached, CACHE_SIZE);
+
+			// Pick the best triangle touching the cache.
+			best = -1;
+			float bestScore = 0;
+			for (int i = 0; i < cached; i++) {
+				int v = cache[i];
+				for (int a = offsets[v]; a < offsets[v] + valence[v]; a++) {
+					int t = adjacency[a];
+					if (triangleScore[t] > bestScore) {
+						bestScore = triangleScore[t];
+						best = t;
+					}
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Score a vertex by its cache position and its remaining triangles.
+	 *
+	 * @param position position in the cache, or -1 if not cached
+	 * @param valence number of triangles left to emit
+	 * @return score
+	 */
+	private static float score(int position, int valence) {
+		if (valence == 0) {
+			return -1;
+		}
+		float s = position >= 0 ? CACHE_SCORES[position] : 0;
+		return s + (valence < VALENCE_SCORES.length ? VALENCE_SCORES[valence]
+				: VALENCE_BOOST_SCALE * (float) Math.pow(valence, VALENCE_BOOST_POWER));
+	}
+
+	/**
+	 * Get the average cache miss ratio, the number of vertices transformed
+	 * per triangle with a FIFO post-transform cache.
+	 *
+	 * @param indices vertex indices
+	 * @param triangleCount number of triangles
+	 * @param cacheSize number of cached vertices
+	 * @return misses per triangle
+	 */
+	public static float getAcmr(int[] indices, int triangleCount, int cacheSize) {
+		if (triangleCount == 0) {
+			return 0;
+		}
+		int vertexCount = 0;
+		for (int i = 0; i < triangleCount * 3; i++) {
+			vertexCount = Math.max(vertexCount, indices[i] + 1);
+		}
+		// Time each vertex entered the cache; it is cached while within size.
+		long[] entered = new long[vertexCount];
+		Arrays.fill(entered, Long.MIN_VALUE / 2);
+		long time = 0;
+		long misses = 0;
+		for (int i = 0; i < triangleCount * 3; i++) {
+			int v = indices[i];
+			if (time - entered[v] >= cacheSize) {
+				entered[v] = time++;
+				misses++;
+			}
+		}
+		return (float) misses / triangleCount;
+	}
+}
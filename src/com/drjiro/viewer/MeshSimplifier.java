@@ -0,0 +1,371 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: MeshSimplifier.java
+ *
+ * Simplifies a mesh by quadric edge collapses.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Simplifies a mesh by quadric edge collapses.
+ * </p>
+ * Every vertex has the quadric of the planes of its faces, weighted by their
+ * areas, as in Garland and Heckbert. An edge collapse moves one vertex onto
+ * the other, so the attributes of the kept vertex are used as they are, and
+ * costs the error of the summed quadrics at the kept position. The cheapest
+ * collapses which neither flip a face nor touch a neighborhood changed
+ * before are done in passes until the target is met.
+ * <p>
+ * Vertices on a UV or normal seam, where corners were not welded, and on an
+ * open border never move, so the seams and the silhouette of the borders
+ * are kept. The vertex arrays are not changed; only new indices are made.
+ *
+ * @author wada
+ */
+class MeshSimplifier {
+	/** Numbers in a quadric */
+	private static final int QUADRIC_SIZE = 10;
+
+	/** Vertex coordinates, 3 per vertex */
+	private final float[] positions;
+
+	/** Number of vertices */
+	private final int vertexCount;
+
+	/** Current vertex indices, 3 per triangle */
+	private int[] indices;
+
+	/** Current number of triangles */
+	private int triangleCount;
+
+	/** Quadrics, 10 per vertex */
+	private final double[] quadrics;
+
+	/** Vertices which never move */
+	private final boolean[] locked;
+
+	/** First triangle of each vertex in adjacency, and the end */
+	private final int[] offsets;
+
+	/** Triangles around each vertex */
+	private int[] adjacency;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param positions vertex coordinates, 3 per vertex
+	 * @param vertexCount number of vertices
+	 * @param indices vertex indices, 3 per triangle, which are not changed
+	 * @param triangleCount number of triangles
+	 */
+	MeshSimplifier(float[] positions, int vertexCount, int[] indices, int triangleCount) {
+		this.positions = positions;
+		this.vertexCount = vertexCount;
+		this.triangleCount = triangleCount;
+		this.indices = new int[triangleCount * 3];
+		System.arraycopy(indices, 0, this.indices, 0, this.indices.length);
+		quadrics = new double[vertexCount * QUADRIC_SIZE];
+		locked = new boolean[vertexCount];
+		offsets = new int[vertexCount + 1];
+
+		for (int t = 0; t < triangleCount; t++) {
+			addPlane(t);
+		}
+		lockSeams();
+		buildAdjacency();
+		lockBorders();
+	}
+
+	/**
+	 * Add the plane of a triangle to the quadrics of its vertices.
+	 *
+	 * @param t triangle
+	 */
+	private void addPlane(int t) {
+		int p0 = indices[t * 3] * 3;
+		int p1 = indices[t * 3 + 1] * 3;
+		int p2 = indices[t * 3 + 2] * 3;
+		double ax = positions[p1] - positions[p0];
+		double ay = positions[p1 + 1] - positions[p0 + 1];
+		double az = positions[p1 + 2] - positions[p0 + 2];
+		double bx = positions[p2] - positions[p0];
+		double by = positions[p2 + 1] - positions[p0 + 1];
+		double bz = positions[p2 + 2] - positions[p0 + 2];
+		double nx = ay * bz - az * by;
+		double ny = az * bx - ax * bz;
+		double nz = ax * by - ay * bx;
+		double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (len == 0) {
+			return;
+		}
+		// The area weight is half the length, which cancels in the unit normal.
+		double w = 0.5 / len;
+		double a = nx;
+		double b = ny;
+		double c = nz;
+		double d = -(a * positions[p0] + b * positions[p0 + 1] + c * positions[p0 + 2]);
+		for (int j = 0; j < 3; j++) {
+			int q = indices[t * 3 + j] * QUADRIC_SIZE;
+			quadrics[q] += w * a * a;
+			quadrics[q + 1] += w * a * b;
+			quadrics[q + 2] += w * a * c;
+			quadrics[q + 3] += w * a * d;
+			quadrics[q + 4] += w * b * b;
+			quadrics[q + 5] += w * b * c;
+			quadrics[q + 6] += w * b * d;
+			quadrics[q + 7] += w * c * c;
+			quadrics[q + 8] += w * c * d;
+			quadrics[q + 9] += w * d * d;
+		}
+	}
+
+	/**
+	 * Lock the vertices at the same position as another vertex.
+	 */
+	private void lockSeams() {
+		VertexWelder welder = new VertexWelder(vertexCount);
+		int[] first = new int[vertexCount];
+		Arrays.fill(first, -1);
+		for (int v = 0; v < vertexCount; v++) {
+			// Adding 0 turns -0 into 0.
+			int id = welder.add(Float.floatToIntBits(positions[v * 3] + 0.0f),
+					Float.floatToIntBits(positions[v * 3 + 1] + 0.0f),
+					Float.floatToIntBits(positions[v * 3 + 2] + 0.0f));
+			if (first[id] < 0) {
+				first[id] = v;
+			} else {
+				locked[v] = true;
+				locked[first[id]] = true;
+			}
+		}
+	}
+
+	/**
+	 * Lock the vertices of the edges used by only one triangle.
+	 */
+	private void lockBorders() {
+		for (int t = 0; t < triangleCount; t++) {
+			for (int j = 0; j < 3; j++) {
+				int a = indices[t * 3 + j];
+				int b = indices[t * 3 + (j + 1) % 3];
+				if (!hasEdge(b, a)) {
+					locked[a] = true;
+					locked[b] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test whether a triangle has a directed edge.
+	 *
+	 * @param a start vertex
+	 * @param b end vertex
+	 * @return true if a triangle around a goes from a to b
+	 */
+	private boolean hasEdge(int a, int b) {
+		for (int k = offsets[a]; k < offsets[a + 1]; k++) {
+			int t = adjacency[k];
+			for (int j = 0; j < 3; j++) {
+				if (indices[t * 3 + j] == a && indices[t * 3 + (j + 1) % 3] == b) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Make the lists of the triangles around the vertices.
+	 */
+	private void buildAdjacency() {
+		Arrays.fill(offsets, 0);
+		for (int i = 0; i < triangleCount * 3; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		if (adjacency == null || adjacency.length < triangleCount * 3) {
+			adjacency = new int[triangleCount * 3];
+		}
+		int[] fill = new int[vertexCount];
+		for (int i = 0; i < triangleCount * 3; i++) {
+			int v = indices[i];
+			adjacency[offsets[v] + fill[v]++] = i / 3;
+		}
+	}
+
+	/**
+	 * Collapse edges until the triangle count is at most the target or no
+	 * edge can collapse.
+	 *
+	 * @param target number of triangles
+	 * @return vertex indices of the simplified mesh, 3 per triangle
+	 */
+	int[] simplify(int target) {
+		int[] remap = new int[vertexCount];
+		boolean[] touched = new boolean[vertexCount];
+		while (triangleCount > target) {
+			buildAdjacency();
+
+			// Cost of the cheaper direction of every edge, taken once.
+			long[] keys = new long[triangleCount * 3];
+			int[] from = new int[triangleCount * 3];
+			int[] to = new int[triangleCount * 3];
+			int n = 0;
+			for (int i = 0; i < triangleCount * 3; i++) {
+				int a = indices[i];
+				int b = indices[i - i % 3 + (i + 1) % 3];
+				if (a > b && hasEdge(b, a) || locked[a] && locked[b]) {
+					continue;
+				}
+				double ab = locked[a] ? Double.MAX_VALUE : cost(a, b);
+				double ba = locked[b] ? Double.MAX_VALUE : cost(b, a);
+				from[n] = ab <= ba ? a : b;
+				to[n] = ab <= ba ? b : a;
+				// Non-negative floats sort as their bits.
+				keys[n] = (long) Float.floatToIntBits((float) Math.min(ab, ba)) << 32 | n;
+				n++;
+			}
+			Arrays.sort(keys, 0, n);
+
+			for (int v = 0; v < vertexCount; v++) {
+				remap[v] = v;
+			}
+			Arrays.fill(touched, false);
+			int removed = 0;
+			for (int k = 0; k < n && triangleCount - removed > target; k++) {
+				int e = (int) keys[k];
+				int u = from[e];
+				int v = to[e];
+				if (touched[u] || touched[v] || flips(u, v)) {
+					continue;
+				}
+				remap[u] = v;
+				for (int q = 0; q < QUADRIC_SIZE; q++) {
+					quadrics[v * QUADRIC_SIZE + q] += quadrics[u * QUADRIC_SIZE + q];
+				}
+				for (int a = offsets[u]; a < offsets[u + 1]; a++) {
+					int t = adjacency[a];
+					boolean shared = false;
+					for (int j = 0; j < 3; j++) {
+						int w = indices[t * 3 + j];
+						touched[w] = true;
+						shared |= w == v;
+					}
+					if (shared) {
+						removed++;
+					}
+				}
+			}
+			if (removed == 0) {
+				break;
+			}
+
+			// Drop the triangles which became degenerate.
+			int count = 0;
+			for (int t = 0; t < triangleCount; t++) {
+				int a = remap[indices[t * 3]];
+				int b = remap[indices[t * 3 + 1]];
+				int c = remap[indices[t * 3 + 2]];
+				if (a != b && b != c && c != a) {
+					indices[count * 3] = a;
+					indices[count * 3 + 1] = b;
+					indices[count * 3 + 2] = c;
+					count++;
+				}
+			}
+			triangleCount = count;
+		}
+		int[] result = new int[triangleCount * 3];
+		System.arraycopy(indices, 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Get the error of moving a vertex onto another.
+	 *
+	 * @param u vertex to move
+	 * @param v vertex to keep
+	 * @return error of the summed quadrics at v
+	 */
+	private double cost(int u, int v) {
+		double x = positions[v * 3];
+		double y = positions[v * 3 + 1];
+		double z = positions[v * 3 + 2];
+		int a = u * QUADRIC_SIZE;
+		int b = v * QUADRIC_SIZE;
+		double e = (quadrics[a] + quadrics[b]) * x * x
+				+ 2 * (quadrics[a + 1] + quadrics[b + 1]) * x * y
+				+ 2 * (quadrics[a + 2] + quadrics[b + 2]) * x * z
+				+ 2 * (quadrics[a + 3] + quadrics[b + 3]) * x
+				+ (quadrics[a + 4] + quadrics[b + 4]) * y * y
+				+ 2 * (quadrics[a + 5] + quadrics[b + 5]) * y * z
+				+ 2 * (quadrics[a + 6] + quadrics[b + 6]) * y
+				+ (quadrics[a + 7] + quadrics[b + 7]) * z * z
+				+ 2 * (quadrics[a + 8] + quadrics[b + 8]) * z
+				+ (quadrics[a + 9] + quadrics[b + 9]);
+		return Math.max(e, 0);
+	}
+
+	/**
+	 * Test whether moving a vertex onto another flips a triangle around it.
+	 *
+	 * @param u vertex to move
+	 * @param v vertex to keep
+	 * @return true if a remaining triangle turns over
+	 */
+	private boolean flips(int u, int v) {
+		for (int a = offsets[u]; a < offsets[u + 1]; a++) {
+			int t = adjacency[a];
+			int j = 0;
+			while (indices[t * 3 + j] != u) {
+				j++;
+			}
+			int p1 = indices[t * 3 + (j + 1) % 3];
+			int p2 = indices[t * 3 + (j + 2) % 3];
+			if (p1 == v || p2 == v) {
+				continue;
+			}
+			float[] p = positions;
+			float ax = p[p1 * 3] - p[u * 3];
+			float ay = p[p1 * 3 + 1] - p[u * 3 + 1];
+			float az = p[p1 * 3 + 2] - p[u * 3 + 2];
+			float bx = p[p2 * 3] - p[u * 3];
+			float by = p[p2 * 3 + 1] - p[u * 3 + 1];
+			float bz = p[p2 * 3 + 2] - p[u * 3 + 2];
+			float cx = p[p1 * 3] - p[v * 3];
+			float cy = p[p1 * 3 + 1] - p[v * 3 + 1];
+			float cz = p[p1 * 3 + 2] - p[v * 3 + 2];
+			float dx = p[p2 * 3] - p[v * 3];
+			float dy = p[p2 * 3 + 1] - p[v * 3 + 1];
+			float dz = p[p2 * 3 + 2] - p[v * 3 + 2];
+			float nx = ay * bz - az * by;
+			float ny = az * bx - ax * bz;
+			float nz = ax * by - ay * bx;
+			float mx = cy * dz - cz * dy;
+			float my = cz * dx - cx * dz;
+			float mz = cx * dy - cy * dx;
+			if (nx * mx + ny * my + nz * mz <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the current number of triangles.
+	 *
+	 * @return triangle count
+	 */
+	int getTriangleCount() {
+		return triangleCount;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: Meshlets.java
+ *
+ * Clusters of triangles with bounds for culling.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Clusters of triangles with bounds for culling.
+ * </p>
+ * Runs of consecutive triangles are cut into clusters of at most
+ * MAX_TRIANGLES triangles and MAX_VERTICES vertices, so the triangles should
+ * be in a spatially coherent order, as made by {@link MeshOptimizer}. A
+ * cluster never crosses the start of a material batch. Every
+ * cluster has a bounding sphere and a cone holding the normals of its
+ * vertices. A renderer skips a cluster which is off the screen, or whose
+ * vertices all face away from the eye, before transforming any vertex.
+ *
+ * @author wada
+ */
+public class Meshlets {
+	/** Largest number of triangles in a cluster */
+	public static final int MAX_TRIANGLES = 124;
+
+	/** Largest number of vertices in a cluster */
+	public static final int MAX_VERTICES = 64;
+
+	/** Sine of a cone which can never face away */
+	private static final float NO_CONE = 2.0f;
+
+	/** Margin of the cone test against rounding */
+	private static final float CONE_MARGIN = 1e-4f;
+
+	/** Index array the clusters were made of */
+	final int[] indices;
+
+	/** Number of clusters */
+	final int count;
+
+	/** First triangle of each cluster, and the triangle count at the end */
+	final int[] firstTriangles;
+
+	/** Bounding spheres, center and radius per cluster */
+	final float[] spheres;
+
+	/** Normal cones, unit axis and sine of the half angle per cluster */
+	final float[] cones;
+
+	/**
+	 * Make the clusters of an object.
+	 *
+	 * @param obj object
+	 */
+	public Meshlets(Object3D obj) {
+		int triangleCount = obj.triangleCount;
+		indices = obj.indices;
+		float[] positions = obj.positions;
+		float[] normals = obj.normals;
+
+		// Cut the triangles where a cluster is full or a batch starts.
+		MaterialBatches batches = obj.batches;
+		int[] batchStarts = batches != null && batches.indices == indices ? batches.firstTriangles
+				: new int[] { 0, triangleCount };
+		int batch = 0;
+		int[] starts = new int[triangleCount / MAX_TRIANGLES + batchStarts.length + 16];
+		int[] stamps = new int[obj.vertexCount];
+		int n = 0;
+		int vertices = 0;
+		for (int t = 0; t < triangleCount; t++) {
+			boolean cut = false;
+			while (batch < batchStarts.length - 1 && batchStarts[batch + 1] <= t) {
+				batch++;
+				cut = true;
+			}
+			int added = 0;
+			for (int j = 0; j < 3; j++) {
+				int v = indices[t * 3 + j];
+				if (n == 0 || stamps[v] != n) {
+					added++;
+				}
+			}
+			if (n == 0 || cut || t - starts[n - 1] >= MAX_TRIANGLES
+					|| vertices + added > MAX_VERTICES) {
+				if (n + 1 >= starts.length) {
+					starts = MeshBuilder.grow(starts, n + 2);
+				}
+				starts[n++] = t;
+				vertices = 0;
+			}
+			for (int j = 0; j < 3; j++) {
+				int v = indices[t * 3 + j];
+				if (stamps[v] != n) {
+					stamps[v] = n;
+					vertices++;
+				}
+			}
+		}
+		count = n;
+		firstTriangles = new int[n + 1];
+		System.arraycopy(starts, 0, firstTriangles, 0, n);
+		firstTriangles[n] = triangleCount;
+
+		spheres = new float[n * 4];
+		cones = new float[n * 4];
+		for (int k = 0; k < n; k++) {
+			bound(k, positions, normals);
+		}
+	}
+
+	/**
+	 * Compute the bounding sphere and the normal cone of a cluster.
+	 *
+	 * @param k cluster
+	 * @param positions vertex coordinates
+	 * @param normals normal vectors
+	 */
+	private void bound(int k, float[] positions, float[] normals) {
+		int from = firstTriangles[k] * 3;
+		int to = firstTriangles[k + 1] * 3;
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		float ax = 0;
+		float ay = 0;
+		float az = 0;
+		boolean zero = false;
+		for (int i = from; i < to; i++) {
+			int p = indices[i] * 3;
+			for (int j = 0; j < 3; j++) {
+				min[j] = Math.min(min[j], positions[p + j]);
+				max[j] = Math.max(max[j], positions[p + j]);
+			}
+			float len = length(normals, p);
+			if (len == 0) {
+				zero = true;
+			} else {
+				ax += normals[p] / len;
+				ay += normals[p + 1] / len;
+				az += normals[p + 2] / len;
+			}
+		}
+
+		float cx = (min[0] + max[0]) / 2;
+		float cy = (min[1] + max[1]) / 2;
+		float cz = (min[2] + max[2]) / 2;
+		float r = 0;
+		for (int i = from; i < to; i++) {
+			int p = indices[i] * 3;
+			float dx = positions[p] - cx;
+			float dy = positions[p + 1] - cy;
+			float dz = positions[p + 2] - cz;
+			r = Math.max(r, dx * dx + dy * dy + dz * dz);
+		}
+		spheres[k * 4] = cx;
+		spheres[k * 4 + 1] = cy;
+		spheres[k * 4 + 2] = cz;
+		spheres[k * 4 + 3] = (float) Math.sqrt(r);
+
+		// A zero normal faces the eye in every direction.
+		float len = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		float sin = NO_CONE;
+		if (!zero && len > 0) {
+			ax /= len;
+			ay /= len;
+			az /= len;
+			float cutoff = 1;
+			for (int i = from; i < to; i++) {
+				int p = indices[i] * 3;
+				float dot = (ax * normals[p] + ay * normals[p + 1] + az * normals[p + 2])
+						/ length(normals, p);
+				cutoff = Math.min(cutoff, dot);
+			}
+			if (cutoff > 0) {
+				sin = (float) Math.sqrt(1 - cutoff * cutoff) + CONE_MARGIN;
+			}
+		}
+		cones[k * 4] = ax;
+		cones[k * 4 + 1] = ay;
+		cones[k * 4 + 2] = az;
+		cones[k * 4 + 3] = sin;
+	}
+
+	/**
+	 * Get the length of a vector.
+	 *
+	 * @param a vectors
+	 * @param p offset of the vector
+	 * @return length
+	 */
+	private static float length(float[] a, int p) {
+		return (float) Math.sqrt(a[p] * a[p] + a[p + 1] * a[p + 1] + a[p + 2] * a[p + 2]);
+	}
+
+	/**
+	 * Test whether all the vertex normals of a cluster face away from a
+	 * direction.
+	 *
+	 * @param k cluster
+	 * @param x X of the unit direction to the eye
+	 * @param y Y of the unit direction to the eye
+	 * @param z Z of the unit direction to the eye
+	 * @return true if every normal has a negative dot product with it
+	 */
+	final boolean facesAway(int k, float x, float y, float z) {
+		return cones[k * 4] * x + cones[k * 4 + 1] * y + cones[k * 4 + 2] * z < -cones[k * 4 + 3];
+	}
+
+	/**
+	 * Get the number of clusters.
+	 *
+	 * @return cluster count
+	 */
+	public int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: ModelWatcher.java
+ *
+ * Watches a .OBJ file, its materials and its texture and reloads them on
+ * change.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+/**
+ * <p>
+ * Watches a .OBJ file, its materials and its texture and reloads them on
+ * change.
+ * </p>
+ * The parsed records of the .OBJ file are kept with a checksum of the
+ * parsed bytes, so when the file grew and its parsed part is unchanged
+ * just the new part is parsed. Otherwise the whole file is parsed again.
+ * A change of a .MTL file named by the model builds the object again from
+ * the kept records; the textures named in the .MTL files are not watched.
+ * A new object is built from the records and handed to the listener, which
+ * swaps it in between frames.
+ *
+ * @author wada
+ */
+public class ModelWatcher implements Runnable {
+	/** Bytes read at a time */
+	private static final int BLOCK_SIZE = 65536;
+
+	/** Time to wait for more changes in milliseconds */
+	private static final long SETTLE_TIME = 100;
+
+	/**
+	 * Receiver of reloaded files. Methods are called on the watching thread.
+	 */
+	public interface Listener {
+		/**
+		 * The model was reloaded.
+		 *
+		 * @param obj object holding the new mesh
+		 */
+		void modelChanged(Object3D obj);
+
+		/**
+		 * The texture was reloaded.
+		 *
+		 * @param texture new texture
+		 */
+		void textureChanged(BufferedImage texture);
+	}
+
+	/** .OBJ file */
+	private final File model;
+
+	/** Texture file, or null */
+	private final File texture;
+
+	/** Merge face corners */
+	private final boolean weld;
+
+	/** Receiver of reloaded files */
+	private final Listener listener;
+
+	/** Records parsed so far */
+	private MeshBuilder builder;
+
+	/** End of the last complete line parsed */
+	private long parsedEnd;
+
+	/** Checksum of the bytes before parsedEnd */
+	private long parsedChecksum;
+
+	/** Modified time of the model when parsed */
+	private long modelModified;
+
+	/** Hash of the modified times of the .MTL files when read */
+	private long materialsModified;
+
+	/** Modified time of the texture when read */
+	private long textureModified;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param model .OBJ file
+	 * @param texture texture file, or null
+	 * @param weld true to merge face corners
+	 * @param listener receiver of reloaded files
+	 */
+	public ModelWatcher(File model, File texture, boolean weld, Listener listener) {
+		this.model = model.getAbsoluteFile();
+		this.texture = texture != null ? texture.getAbsoluteFile() : null;
+		this.weld = weld;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start watching on a daemon thread.
+	 *
+	 * @return the watching thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "ModelWatcher");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			WatchService watcher = FileSystems.getDefault().newWatchService();
+			try {
+				register(watcher, model);
+				if (texture != null && !texture.getParentFile().equals(model.getParentFile())) {
+					register(watcher, texture);
+				}
+				textureModified = texture != null ? texture.lastModified() : 0;
+				// Keep the records to parse only appended bytes later.
+				try {
+					reload();
+					materialsModified = getMaterialsModified();
+				} catch (Exception e) {
+					// Parse it again on the next change.
+				}
+				registerLibraries(watcher);
+				while (true) {
+					WatchKey key = watcher.take();
+					boolean changed = drain(key);
+					// Let a writer finish before reading.
+					Thread.sleep(SETTLE_TIME);
+					WatchKey more;
+					while ((more = watcher.poll()) != null) {
+						changed |= drain(more);
+					}
+					if (changed) {
+						check();
+						registerLibraries(watcher);
+					}
+				}
+			} finally {
+				watcher.close();
+			}
+		} catch (InterruptedException e) {
+			// Stopped.
+		} catch (IOException e) {
+			// Watching is not supported.
+		}
+	}
+
+	/**
+	 * Register the directory of a file.
+	 *
+	 * @param watcher watch service
+	 * @param file file to watch
+	 * @throws IOException
+	 */
+	private static void register(WatchService watcher, File file) throws IOException {
+		file.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Register the directories of the .MTL files named by the model.
+	 *
+	 * @param watcher watch service
+	 * @throws IOException
+	 */
+	private void registerLibraries(WatchService watcher) throws IOException {
+		for (int i = 0; builder != null && i < builder.libraries.size(); i++) {
+			File file = getLibrary(i);
+			if (file.getParentFile().isDirectory()) {
+				register(watcher, file);
+			}
+		}
+	}
+
+	/**
+	 * Get a .MTL file named by the model.
+	 *
+	 * @param i index of the library
+	 * @return file
+	 */
+	private File getLibrary(int i) {
+		return new File(model.getParentFile(), (String) builder.libraries.get(i)).getAbsoluteFile();
+	}
+
+	/**
+	 * Test whether a file is a .MTL file named by the model.
+	 *
+	 * @param file file
+	 * @return true if it is a library
+	 */
+	private boolean isLibrary(File file) {
+		for (int i = 0; builder != null && i < builder.libraries.size(); i++) {
+			if (file.equals(getLibrary(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hash the modified times of the .MTL files named by the model.
+	 *
+	 * @return hash
+	 */
+	private long getMaterialsModified() {
+		long hash = 0;
+		for (int i = 0; builder != null && i < builder.libraries.size(); i++) {
+			hash = hash * 31 + getLibrary(i).lastModified();
+		}
+		return hash;
+	}
+
+	/**
+	 * Take the events of a key.
+	 *
+	 * @param key watch key
+	 * @return true if an event is on the watched files
+	 */
+	private boolean drain(WatchKey key) {
+		boolean changed = false;
+		Path dir = (Path) key.watchable();
+		for (Iterator it = key.pollEvents().iterator(); it.hasNext();) {
+			WatchEvent event = (WatchEvent) it.next();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				changed = true;
+				continue;
+			}
+			File file = dir.resolve((Path) event.context()).toFile();
+			changed |= file.equals(model) || file.equals(texture) || isLibrary(file);
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Reload the files which were modified.
+	 */
+	private void check() {
+		boolean modelChanged = model.lastModified() != modelModified;
+		if (modelChanged || getMaterialsModified() != materialsModified) {
+			try {
+				if (modelChanged) {
+					reload();
+				}
+				materialsModified = getMaterialsModified();
+				Object3D obj = new Object3D();
+				// Resolve the materials and the caches next to the model.
+				obj.url = model.toURI().toURL();
+				obj.setWeld(weld);
+				obj.build(builder);
+				listener.modelChanged(obj);
+			} catch (Exception e) {
+				// The file may be half written; try again on the next change.
+			}
+		}
+		if (texture != null && texture.lastModified() != textureModified) {
+			textureModified = texture.lastModified();
+			try {
+				BufferedImage image = ImageIO.read(texture);
+				if (image != null) {
+					listener.textureChanged(image);
+				}
+			} catch (IOException e) {
+				// Try again on the next change.
+			}
+		}
+	}
+
+	/**
+	 * Parse the appended bytes of the model, or the whole file if it was
+	 * changed otherwise.
+	 *
+	 * @throws IOException
+	 */
+	private void reload() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(model, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			long modified = model.lastModified();
+			long size = ch.size();
+			CRC32 crc = new CRC32();
+			if (builder != null && size > parsedEnd
+					&& checksum(ch, 0, parsedEnd, crc) == parsedChecksum) {
+				// Drop the unterminated last line parsed before, and continue.
+				builder.reset();
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, parsedEnd, size - parsedEnd);
+				int done = builder.parse(buf, 0, buf.limit(), false);
+				finish(ch, crc, parsedEnd, parsedEnd + done, size);
+			} else {
+				long end = lastLineEnd(ch, size);
+				builder = end > 0 ? new ParallelObjLoader().parse(ch, end) : new MeshBuilder();
+				crc.reset();
+				finish(ch, crc, 0, end, size);
+			}
+			modelModified = modified;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Remember the end of the complete lines and parse an unterminated last
+	 * line, which is dropped when more bytes come.
+	 *
+	 * @param ch model file
+	 * @param crc checksum of the bytes before start
+	 * @param start start of the newly parsed lines
+	 * @param end end of the complete lines
+	 * @param size file size
+	 * @throws IOException
+	 */
+	private void finish(FileChannel ch, CRC32 crc, long start, long end, long size)
+			throws IOException {
+		parsedEnd = end;
+		parsedChecksum = checksum(ch, start, end, crc);
+		builder.mark();
+		if (size > end) {
+			ByteBuffer last = ByteBuffer.wrap(read(ch, end, (int) (size - end)));
+			builder.parse(last, 0, last.limit(), true);
+		}
+	}
+
+	/**
+	 * Find the end of the last complete line.
+	 *
+	 * @param ch file channel
+	 * @param size file size
+	 * @return position after the last newline, or 0
+	 * @throws IOException
+	 */
+	private static long lastLineEnd(FileChannel ch, long size) throws IOException {
+		long pos = size;
+		while (pos > 0) {
+			int len = (int) Math.min(BLOCK_SIZE, pos);
+			byte[] b = read(ch, pos - len, len);
+			for (int i = len - 1; i >= 0; i--) {
+				if (b[i] == '\n') {
+					return pos - len + i + 1;
+				}
+			}
+			pos -= len;
+		}
+		return 0;
+	}
+
+	/**
+	 * Add bytes of a file to a checksum.
+	 *
+	 * @param ch file channel
+	 * @param from start position
+	 * @param to end position
+	 * @param crc checksum to update
+	 * @return the updated value
+	 * @throws IOException
+	 */
+	private static long checksum(FileChannel ch, long from, long to, CRC32 crc) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+		for (long pos = from; pos < to;) {
+			buf.clear();
+			buf.limit((int) Math.min(BLOCK_SIZE, to - pos));
+			int n = ch.read(buf, pos);
+			if (n < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			buf.flip();
+			crc.update(buf);
+			pos += n;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Read bytes of a file.
+	 *
+	 * @param ch file channel
+	 * @param pos position
+	 * @param len number of bytes
+	 * @return bytes
+	 * @throws IOException
+	 */
+	private static byte[] read(FileChannel ch, long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		return buf.array();
+	}
+}
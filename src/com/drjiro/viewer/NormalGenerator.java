@@ -0,0 +1,461 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: NormalGenerator.java
+ *
+ * Generates smooth vertex normals at load time.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Generates smooth vertex normals at load time.
+ * </p>
+ * The face normals and the corner angles are computed in parallel. Then the
+ * faces around every vertex are summed once, weighted by their area and
+ * their angle at the vertex. When all of them are within half the crease
+ * angle of the sum, so within the crease angle of each other, the corners
+ * of the vertex share the sum. Otherwise a face starts a group when it is
+ * over the crease angle from the first faces of the groups so far, every
+ * face joins the group of the nearest first face, and the corners of a
+ * group share its sum. A vertex is handled by one thread, so
+ * the threads need no locks or merged accumulators, and a crease splits a
+ * vertex only where it is needed.
+ *
+ * @author wada
+ */
+public class NormalGenerator {
+	/** Default crease angle in degrees */
+	public static final float DEFAULT_CREASE_ANGLE = 60.0f;
+
+	/** Number of faces or vertices handled by a task without splitting */
+	private static final int GRAIN = 1 << 13;
+
+	/** Pass computing the face normals */
+	private static final int FACES = 0;
+
+	/** Pass gathering the corner normals */
+	private static final int CORNERS = 1;
+
+	/** Pass writing the normal records */
+	private static final int RECORDS = 2;
+
+	/** Margin keeping the shared sum away from the crease angle */
+	private static final float MARGIN = 1.0e-5f;
+
+	/** Vertex coordinates, 3 per vertex */
+	private final float[] positions;
+
+	/** Vertex of each corner is at vertexIndex[corner * stride] */
+	private final int[] vertexIndex;
+
+	/** Step between the vertices of two corners */
+	private final int stride;
+
+	/** Number of faces */
+	private final int faceCount;
+
+	/** Number of vertices */
+	private final int vertexCount;
+
+	/** Cosine of the crease angle */
+	private final float cosCrease;
+
+	/** Cosine of half the crease angle with a margin */
+	private final float cosHalfCrease;
+
+	/** Unit face normals, 3 per face */
+	private final float[] faceNormals;
+
+	/** Twice the face areas */
+	private final float[] faceAreas;
+
+	/** Angles of the corners */
+	private final float[] angles;
+
+	/** First corner of each vertex in adjacency, and the end */
+	private final int[] offsets;
+
+	/** Corners around each vertex */
+	private final int[] adjacency;
+
+	/** Normals of the corners, 3 per corner */
+	private final float[] cornerNormals;
+
+	/** Normal of each corner among the distinct normals of its vertex */
+	private final int[] slots;
+
+	/** Number of distinct normals of each vertex, then the first record */
+	private final int[] firstRecords;
+
+	/** Generated normal records, 3 per record */
+	private float[] records;
+
+	/** Corners with the record index in the normal slots */
+	private int[] corners;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param positions vertex coordinates, 3 per vertex
+	 * @param vertexCount number of vertices
+	 * @param vertexIndex vertex indices of the corners
+	 * @param stride step between the vertices of two corners
+	 * @param faceCount number of faces
+	 * @param creaseAngle crease angle in degrees
+	 */
+	private NormalGenerator(float[] positions, int vertexCount, int[] vertexIndex, int stride,
+			int faceCount, float creaseAngle) {
+		this.positions = positions;
+		this.vertexCount = vertexCount;
+		this.vertexIndex = vertexIndex;
+		this.stride = stride;
+		this.faceCount = faceCount;
+		cosCrease = (float) Math.cos(Math.toRadians(creaseAngle));
+		cosHalfCrease = (float) Math.cos(Math.toRadians(creaseAngle / 2)) + MARGIN;
+		faceNormals = new float[faceCount * 3];
+		faceAreas = new float[faceCount];
+		angles = new float[faceCount * 3];
+		offsets = new int[vertexCount + 1];
+		adjacency = new int[faceCount * 3];
+		cornerNormals = new float[faceCount * 9];
+		slots = new int[faceCount * 3];
+		firstRecords = new int[vertexCount + 1];
+	}
+
+	/**
+	 * Generate normals for parsed records which have none.
+	 *
+	 * @param b parsed records, which are not changed
+	 * @param creaseAngle faces meeting at a larger angle are not smoothed
+	 *            together, in degrees
+	 * @return records sharing the positions and UVs of b, with normals
+	 */
+	static MeshBuilder generate(MeshBuilder b, float creaseAngle) {
+		NormalGenerator g = new NormalGenerator(b.positions, b.vertexCount, b.corners, 3,
+				b.faceCount, creaseAngle);
+		g.corners = new int[b.faceCount * 9];
+		System.arraycopy(b.corners, 0, g.corners, 0, g.corners.length);
+		g.run();
+
+		MeshBuilder out = new MeshBuilder();
+		out.positions = b.positions;
+		out.vertexCount = b.vertexCount;
+		out.uvs = b.uvs;
+		out.uvCount = b.uvCount;
+		out.normals = g.records;
+		out.normalCount = g.firstRecords[g.vertexCount];
+		out.corners = g.corners;
+		out.faceCount = b.faceCount;
+		return out;
+	}
+
+	/**
+	 * Generate a smooth normal for every vertex of an indexed mesh. Vertices
+	 * are not split, so no crease angle is applied.
+	 *
+	 * @param obj object whose normal array is replaced
+	 */
+	public static void generate(Object3D obj) {
+		int triangleCount = obj.triangleCount;
+		float[] positions = obj.positions;
+		int[] indices = obj.indices;
+		int vertexCount = obj.vertexCount;
+		NormalGenerator g = new NormalGenerator(positions, vertexCount, indices, 1,
+				triangleCount, 180.0f);
+		g.run();
+		// A new array, as the old one may be shared by a snapshot.
+		float[] normals = new float[vertexCount * 3];
+		System.arraycopy(obj.normals, 0, normals, 0, vertexCount * 3);
+		for (int v = 0; v < vertexCount; v++) {
+			if (g.firstRecords[v + 1] > g.firstRecords[v]) {
+				System.arraycopy(g.records, g.firstRecords[v] * 3, normals, v * 3, 3);
+			}
+		}
+		obj.setMesh(positions, obj.uvs, normals, indices, vertexCount, triangleCount);
+	}
+
+	/**
+	 * Run all passes.
+	 */
+	private void run() {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.invoke(new Pass(FACES, 0, faceCount));
+
+		// Corners around each vertex.
+		for (int i = 0; i < faceCount * 3; i++) {
+			offsets[vertexIndex[i * stride] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = new int[vertexCount];
+		for (int i = 0; i < faceCount * 3; i++) {
+			int v = vertexIndex[i * stride];
+			adjacency[offsets[v] + fill[v]++] = i;
+		}
+
+		pool.invoke(new Pass(CORNERS, 0, vertexCount));
+
+		// Number the records of the vertices in order.
+		int total = 0;
+		for (int v = 0; v < vertexCount; v++) {
+			int n = firstRecords[v];
+			firstRecords[v] = total;
+			total += n;
+		}
+		firstRecords[vertexCount] = total;
+		records = new float[Math.max(total, 1) * 3];
+
+		pool.invoke(new Pass(RECORDS, 0, faceCount));
+	}
+
+	/**
+	 * Compute the normals, areas and corner angles of faces.
+	 *
+	 * @param from first face
+	 * @param to last face (exclusive)
+	 */
+	private void computeFaces(int from, int to) {
+		for (int f = from; f < to; f++) {
+			int p0 = vertexIndex[f * 3 * stride] * 3;
+			int p1 = vertexIndex[(f * 3 + 1) * stride] * 3;
+			int p2 = vertexIndex[(f * 3 + 2) * stride] * 3;
+			float ax = positions[p1] - positions[p0];
+			float ay = positions[p1 + 1] - positions[p0 + 1];
+			float az = positions[p1 + 2] - positions[p0 + 2];
+			float bx = positions[p2] - positions[p0];
+			float by = positions[p2 + 1] - positions[p0 + 1];
+			float bz = positions[p2 + 2] - positions[p0 + 2];
+			float cx = positions[p2] - positions[p1];
+			float cy = positions[p2 + 1] - positions[p1 + 1];
+			float cz = positions[p2 + 2] - positions[p1 + 2];
+
+			// Compute normal vector by a cross product.
+			float nx = ay * bz - az * by;
+			float ny = az * bx - ax * bz;
+			float nz = ax * by - ay * bx;
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			faceAreas[f] = len;
+			if (len > 0) {
+				faceNormals[f * 3] = nx / len;
+				faceNormals[f * 3 + 1] = ny / len;
+				faceNormals[f * 3 + 2] = nz / len;
+			}
+			angles[f * 3] = angle(ax, ay, az, bx, by, bz);
+			angles[f * 3 + 1] = angle(-ax, -ay, -az, cx, cy, cz);
+			angles[f * 3 + 2] = (float) Math.PI - angles[f * 3] - angles[f * 3 + 1];
+		}
+	}
+
+	/**
+	 * Get the angle between two edges.
+	 *
+	 * @return angle in radians
+	 */
+	private static float angle(float ax, float ay, float az, float bx, float by, float bz) {
+		float la = ax * ax + ay * ay + az * az;
+		float lb = bx * bx + by * by + bz * bz;
+		if (la == 0 || lb == 0) {
+			return 0;
+		}
+		float c = (ax * bx + ay * by + az * bz) / (float) Math.sqrt(la * lb);
+		return (float) Math.acos(Math.max(-1, Math.min(1, c)));
+	}
+
+	/**
+	 * Gather the normals of the corners around vertices, and find the
+	 * distinct ones.
+	 *
+	 * @param from first vertex
+	 * @param to last vertex (exclusive)
+	 */
+	private void gatherCorners(int from, int to) {
+		int[] seeds = new int[16];
+		float[] sums = new float[16 * 3];
+		for (int v = from; v < to; v++) {
+			int start = offsets[v];
+			int end = offsets[v + 1];
+			float x = 0;
+			float y = 0;
+			float z = 0;
+			for (int a = start; a < end; a++) {
+				int c = adjacency[a];
+				int f = c / 3;
+				float w = faceAreas[f] * angles[c];
+				x += faceNormals[f * 3] * w;
+				y += faceNormals[f * 3 + 1] * w;
+				z += faceNormals[f * 3 + 2] * w;
+			}
+			float len = (float) Math.sqrt(x * x + y * y + z * z);
+
+			// Share the sum when no two faces meet over the crease angle.
+			boolean smooth = cosCrease <= -1.0f;
+			if (!smooth && len > 0) {
+				smooth = true;
+				for (int a = start; a < end && smooth; a++) {
+					int f = adjacency[a] / 3;
+					smooth = faceNormals[f * 3] * x + faceNormals[f * 3 + 1] * y
+							+ faceNormals[f * 3 + 2] * z >= cosHalfCrease * len;
+				}
+			}
+			if (smooth) {
+				if (len > 0) {
+					x /= len;
+					y /= len;
+					z /= len;
+				}
+				for (int a = start; a < end; a++) {
+					int c = adjacency[a];
+					cornerNormals[c * 3] = x;
+					cornerNormals[c * 3 + 1] = y;
+					cornerNormals[c * 3 + 2] = z;
+					slots[c] = 0;
+				}
+				firstRecords[v] = end > start ? 1 : 0;
+				continue;
+			}
+
+			// Start the groups by faces over the crease angle from each other.
+			if (seeds.length < end - start) {
+				seeds = new int[end - start];
+				sums = new float[(end - start) * 3];
+			}
+			int groups = 0;
+			for (int a = start; a < end; a++) {
+				int f = adjacency[a] / 3;
+				int k = 0;
+				while (k < groups && seeds[k] != f && dot(f, seeds[k]) < cosCrease) {
+					k++;
+				}
+				if (k == groups) {
+					seeds[k] = f;
+					sums[k * 3] = 0;
+					sums[k * 3 + 1] = 0;
+					sums[k * 3 + 2] = 0;
+					groups++;
+				}
+			}
+
+			// Sum every face into the group of the nearest first face.
+			for (int a = start; a < end; a++) {
+				int c = adjacency[a];
+				int f = c / 3;
+				int k = 0;
+				float best = dot(f, seeds[0]);
+				for (int i = 1; i < groups && seeds[k] != f; i++) {
+					float d = seeds[i] == f ? 2.0f : dot(f, seeds[i]);
+					if (d > best) {
+						best = d;
+						k = i;
+					}
+				}
+				float w = faceAreas[f] * angles[c];
+				sums[k * 3] += faceNormals[f * 3] * w;
+				sums[k * 3 + 1] += faceNormals[f * 3 + 1] * w;
+				sums[k * 3 + 2] += faceNormals[f * 3 + 2] * w;
+				slots[c] = k;
+			}
+			for (int k = 0; k < groups; k++) {
+				float l = (float) Math.sqrt(sums[k * 3] * sums[k * 3] + sums[k * 3 + 1]
+						* sums[k * 3 + 1] + sums[k * 3 + 2] * sums[k * 3 + 2]);
+				if (l > 0) {
+					sums[k * 3] /= l;
+					sums[k * 3 + 1] /= l;
+					sums[k * 3 + 2] /= l;
+				}
+			}
+			for (int a = start; a < end; a++) {
+				int c = adjacency[a];
+				int k = slots[c];
+				cornerNormals[c * 3] = sums[k * 3];
+				cornerNormals[c * 3 + 1] = sums[k * 3 + 1];
+				cornerNormals[c * 3 + 2] = sums[k * 3 + 2];
+			}
+			firstRecords[v] = groups;
+		}
+	}
+
+	/**
+	 * Get the cosine of the angle between two faces.
+	 *
+	 * @param f face
+	 * @param g face
+	 * @return dot product of the face normals
+	 */
+	private float dot(int f, int g) {
+		return faceNormals[f * 3] * faceNormals[g * 3] + faceNormals[f * 3 + 1]
+				* faceNormals[g * 3 + 1] + faceNormals[f * 3 + 2] * faceNormals[g * 3 + 2];
+	}
+
+	/**
+	 * Write the normal records and the record indices of corners.
+	 *
+	 * @param from first face
+	 * @param to last face (exclusive)
+	 */
+	private void writeRecords(int from, int to) {
+		for (int c = from * 3; c < to * 3; c++) {
+			int v = vertexIndex[c * stride];
+			int record = firstRecords[v] + slots[c];
+			// Equal normals write equal values.
+			records[record * 3] = cornerNormals[c * 3];
+			records[record * 3 + 1] = cornerNormals[c * 3 + 1];
+			records[record * 3 + 2] = cornerNormals[c * 3 + 2];
+			if (corners != null) {
+				corners[c * 3 + 2] = record;
+			}
+		}
+	}
+
+	/**
+	 * Pass over a range of faces or vertices.
+	 */
+	private class Pass extends RecursiveAction {
+		/** Serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** FACES, CORNERS or RECORDS */
+		private final int pass;
+
+		/** First element */
+		private final int from;
+
+		/** Last element (exclusive) */
+		private final int to;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param pass FACES, CORNERS or RECORDS
+		 * @param from first element
+		 * @param to last element (exclusive)
+		 */
+		Pass(int pass, int from, int to) {
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		protected void compute() {
+			if (to - from > GRAIN) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Pass(pass, from, mid), new Pass(pass, mid, to));
+			} else if (pass == FACES) {
+				computeFaces(from, to);
+			} else if (pass == CORNERS) {
+				gatherCorners(from, to);
+			} else {
+				writeRecords(from, to);
+			}
+		}
+	}
+}
@@ -0,0 +1,566 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: ObjIndex.java
+ *
+ * Byte offset index of the groups in a .OBJ file.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Byte offset index of the groups in a .OBJ file.
+ * </p>
+ * A group runs from an <code>o</code> or <code>g</code> line to the next
+ * one; records before the first of them form an unnamed group. The index
+ * keeps the byte range of every group and the numbers of vertex, UV and
+ * normal records before it, so a group is parsed alone from its range.
+ * Records of other groups referred by its faces are read from their
+ * ranges too. The material libraries of the file and the material in
+ * effect at the start of every group are kept as well, so the faces of a
+ * group parsed alone keep their materials. The index is saved next to the
+ * source file.
+ *
+ * <pre>
+ *  magic "WVGI", version
+ *  length and modified time of the source .OBJ file
+ *  library count and names
+ *  group count, and per group:
+ *  name, start and end offsets, vertex, UV and normal bases,
+ *  vertex, UV, normal and face counts, material flag and name
+ * </pre>
+ *
+ * @author wada
+ */
+public class ObjIndex {
+	/** Magic number */
+	private static final int MAGIC = 0x49475657;
+
+	/** Format version */
+	private static final int VERSION = 2;
+
+	/** Extension of an index file */
+	public static final String EXTENSION = ".wvg";
+
+	/** Vertex records */
+	private static final int V = 0;
+
+	/** UV records */
+	private static final int T = 1;
+
+	/** Normal records */
+	private static final int N = 2;
+
+	/** Length of the source file */
+	private long sourceLength;
+
+	/** Modified time of the source file */
+	private long sourceModified;
+
+	/** Number of groups */
+	private int groupCount;
+
+	/** Group names */
+	private String[] names = new String[16];
+
+	/** Start offsets of the groups */
+	private long[] starts = new long[16];
+
+	/** End offsets of the groups (exclusive) */
+	private long[] ends = new long[16];
+
+	/** Records before each group, 3 per group for vertex, UV and normal */
+	private int[] bases = new int[16 * 3];
+
+	/** Records in each group, 3 per group for vertex, UV and normal */
+	private int[] counts = new int[16 * 3];
+
+	/** Faces in each group */
+	private int[] faces = new int[16];
+
+	/** Material in effect at the start of each group, or null */
+	private String[] materials = new String[16];
+
+	/** Names of the material libraries */
+	private List libraries = new ArrayList();
+
+	/**
+	 * Get the index file for a .OBJ file.
+	 *
+	 * @param source .OBJ file
+	 * @return index file
+	 */
+	public static File getIndexFile(File source) {
+		String name = source.getName();
+		if (name.toLowerCase().endsWith(".obj")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return new File(source.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Get the index of a .OBJ file. A saved index is used while it is up to
+	 * date; otherwise the file is indexed and the index is saved.
+	 *
+	 * @param source .OBJ file
+	 * @return index
+	 * @throws IOException
+	 */
+	public static ObjIndex get(File source) throws IOException {
+		File file = getIndexFile(source);
+		if (file.isFile()) {
+			try {
+				ObjIndex index = read(file);
+				if (index.sourceLength == source.length()
+						&& index.sourceModified == source.lastModified()) {
+					return index;
+				}
+			} catch (IOException e) {
+				// Treat a broken index as missing.
+			}
+		}
+		ObjIndex index = build(source);
+		try {
+			index.write(file);
+		} catch (IOException e) {
+			// The index file is optional, e.g. on a read only directory.
+		}
+		return index;
+	}
+
+	/**
+	 * Index a .OBJ file in one pass. Only the first bytes of the lines are
+	 * looked at; numbers are not decoded.
+	 *
+	 * @param source .OBJ file
+	 * @return index
+	 * @throws IOException
+	 */
+	public static ObjIndex build(File source) throws IOException {
+		final ObjIndex index = new ObjIndex();
+		index.sourceLength = source.length();
+		index.sourceModified = source.lastModified();
+		index.add("", 0);
+		ObjParser indexer = new ObjParser() {
+			/** Offset of the current line */
+			private long offset;
+
+			/** Material in effect, or null */
+			private String material;
+
+			/**
+			 * @see com.drjiro.viewer.ObjParser#parseLine(java.nio.ByteBuffer, int, int)
+			 */
+			protected void parseLine(ByteBuffer buf, int start, int end) {
+				long line = offset;
+				offset += end - start + 1;
+				if (end - start < 2) {
+					return;
+				}
+				byte c0 = buf.get(start);
+				byte c1 = buf.get(start + 1);
+				int g = index.groupCount - 1;
+				if (c0 == 'v') {
+					if (isSpace(c1)) {
+						index.counts[g * 3 + V]++;
+					} else if (c1 == 't' && end - start > 2 && isSpace(buf.get(start + 2))) {
+						index.counts[g * 3 + T]++;
+					} else if (c1 == 'n' && end - start > 2 && isSpace(buf.get(start + 2))) {
+						index.counts[g * 3 + N]++;
+					}
+				} else if (c0 == 'f' && isSpace(c1)) {
+					index.faces[g]++;
+				} else if ((c0 == 'o' || c0 == 'g') && isSpace(c1)) {
+					index.ends[g] = line;
+					index.add(parseName(buf, start + 2, end), line);
+					index.materials[g + 1] = material;
+				} else if (c0 == 'u' && startsWith(buf, start, end, "usemtl")) {
+					material = parseName(buf, start + 6, end);
+				} else if (c0 == 'm' && startsWith(buf, start, end, "mtllib")) {
+					String name = parseName(buf, start + 6, end);
+					if (!index.libraries.contains(name)) {
+						index.libraries.add(name);
+					}
+				}
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void vertex(float x, float y, float z) {
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void uv(float u, float v, float w) {
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void normal(float x, float y, float z) {
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void face(int[] corners) {
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void material(String name) {
+			}
+
+			/** Not called, as the lines are not parsed. */
+			protected void materialLibrary(String name) {
+			}
+		};
+		FileInputStream is = new FileInputStream(source);
+		try {
+			indexer.parse(is.getChannel());
+		} finally {
+			is.close();
+		}
+		index.ends[index.groupCount - 1] = index.sourceLength;
+		return index;
+	}
+
+	/**
+	 * Start a new group.
+	 *
+	 * @param name group name
+	 * @param start start offset
+	 */
+	private void add(String name, long start) {
+		int g = groupCount;
+		if (g == names.length) {
+			int n = g * 2;
+			String[] s = new String[n];
+			System.arraycopy(names, 0, s, 0, g);
+			names = s;
+			long[] l = new long[n];
+			System.arraycopy(starts, 0, l, 0, g);
+			starts = l;
+			l = new long[n];
+			System.arraycopy(ends, 0, l, 0, g);
+			ends = l;
+			bases = MeshBuilder.grow(bases, n * 3);
+			counts = MeshBuilder.grow(counts, n * 3);
+			faces = MeshBuilder.grow(faces, n);
+			s = new String[n];
+			System.arraycopy(materials, 0, s, 0, g);
+			materials = s;
+		}
+		names[g] = name;
+		starts[g] = start;
+		for (int k = 0; k < 3; k++) {
+			bases[g * 3 + k] = g == 0 ? 0 : bases[(g - 1) * 3 + k] + counts[(g - 1) * 3 + k];
+		}
+		groupCount++;
+	}
+
+	/**
+	 * Read an index file.
+	 *
+	 * @param file index file
+	 * @return index
+	 * @throws IOException
+	 */
+	public static ObjIndex read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index file: " + file);
+			}
+			ObjIndex index = new ObjIndex();
+			index.sourceLength = in.readLong();
+			index.sourceModified = in.readLong();
+			int libraryCount = in.readInt();
+			for (int i = 0; i < libraryCount; i++) {
+				index.libraries.add(in.readUTF());
+			}
+			int n = in.readInt();
+			for (int g = 0; g < n; g++) {
+				index.add(in.readUTF(), in.readLong());
+				index.ends[g] = in.readLong();
+				for (int k = 0; k < 3; k++) {
+					index.bases[g * 3 + k] = in.readInt();
+				}
+				for (int k = 0; k < 3; k++) {
+					index.counts[g * 3 + k] = in.readInt();
+				}
+				index.faces[g] = in.readInt();
+				if (in.readBoolean()) {
+					index.materials[g] = in.readUTF();
+				}
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the index to a file.
+	 *
+	 * @param file index file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeInt(libraries.size());
+			for (int i = 0; i < libraries.size(); i++) {
+				out.writeUTF((String) libraries.get(i));
+			}
+			out.writeInt(groupCount);
+			for (int g = 0; g < groupCount; g++) {
+				out.writeUTF(names[g]);
+				out.writeLong(starts[g]);
+				out.writeLong(ends[g]);
+				for (int k = 0; k < 3; k++) {
+					out.writeInt(bases[g * 3 + k]);
+				}
+				for (int k = 0; k < 3; k++) {
+					out.writeInt(counts[g * 3 + k]);
+				}
+				out.writeInt(faces[g]);
+				out.writeBoolean(materials[g] != null);
+				if (materials[g] != null) {
+					out.writeUTF(materials[g]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Get the number of groups.
+	 *
+	 * @return group count
+	 */
+	public int getGroupCount() {
+		return groupCount;
+	}
+
+	/**
+	 * Get the name of a group.
+	 *
+	 * @param group group index
+	 * @return name, empty for the records before the first group
+	 */
+	public String getGroupName(int group) {
+		return names[group];
+	}
+
+	/**
+	 * Get the number of faces in a group.
+	 *
+	 * @param group group index
+	 * @return face count
+	 */
+	public int getFaceCount(int group) {
+		return faces[group];
+	}
+
+	/**
+	 * Find a group by the name.
+	 *
+	 * @param name group name
+	 * @return group index, or -1 if not found
+	 */
+	public int findGroup(String name) {
+		for (int g = 0; g < groupCount; g++) {
+			if (names[g].equals(name)) {
+				return g;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse some groups of the source file.
+	 *
+	 * @param source .OBJ file
+	 * @param groups group indices
+	 * @return parsed records, numbered locally
+	 * @throws IOException
+	 */
+	MeshBuilder load(File source, int[] groups) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(source, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			GroupLoader loader = new GroupLoader();
+			for (int i = 0; i < libraries.size(); i++) {
+				loader.materialLibrary((String) libraries.get(i));
+			}
+			boolean[] loaded = new boolean[groupCount];
+			int[] order = groups.clone();
+			Arrays.sort(order);
+			for (int i = 0; i < order.length; i++) {
+				if (!loaded[order[i]]) {
+					loader.load(ch, order[i], true);
+					loaded[order[i]] = true;
+				}
+			}
+
+			// Read the records which the faces refer in other groups.
+			int[] c = loader.corners;
+			for (int i = 0; i < loader.faceCount * 9; i++) {
+				if (c[i] != ObjParser.NONE) {
+					int g = findOwner(i % 3, c[i]);
+					if (g >= 0 && !loaded[g]) {
+						loader.load(ch, g, false);
+						loaded[g] = true;
+					}
+				}
+			}
+			loader.renumber();
+			return loader;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Find the group holding a record.
+	 *
+	 * @param kind V, T or N
+	 * @param record record index in the file
+	 * @return group index, or -1 if out of the file
+	 */
+	private int findOwner(int kind, int record) {
+		int lo = 0;
+		int hi = groupCount - 1;
+		while (lo <= hi) {
+			int g = (lo + hi) >>> 1;
+			int base = bases[g * 3 + kind];
+			if (record < base) {
+				hi = g - 1;
+			} else if (record >= base + counts[g * 3 + kind]) {
+				lo = g + 1;
+			} else {
+				return g;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parser of group ranges. Records are stored in the loading order while
+	 * the faces keep the file indices until they are renumbered.
+	 */
+	private class GroupLoader extends MeshBuilder {
+		/** Records stored, 3 for vertex, UV and normal */
+		private final int[] stored = new int[3];
+
+		/** Local index of the first record of each group, 3 per group */
+		private final int[] locals = new int[groupCount * 3];
+
+		/** True to collect faces */
+		private boolean withFaces;
+
+		/**
+		 * Parse a group from its byte range.
+		 *
+		 * @param ch source file
+		 * @param g group index
+		 * @param withFaces true to collect faces, false for records only
+		 * @throws IOException
+		 */
+		void load(FileChannel ch, int g, boolean withFaces) throws IOException {
+			this.withFaces = withFaces;
+			for (int k = 0; k < 3; k++) {
+				locals[g * 3 + k] = stored[k];
+			}
+			vertexCount = bases[g * 3 + V];
+			uvCount = bases[g * 3 + T];
+			normalCount = bases[g * 3 + N];
+			if (withFaces) {
+				// Continue the material of the lines before the group.
+				if (materials[g] != null) {
+					material(materials[g]);
+				} else {
+					material = NONE;
+				}
+			}
+			long start = starts[g];
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, ends[g] - start);
+			parse(buf, 0, buf.limit(), true);
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#vertex(float, float, float)
+		 */
+		protected void vertex(float x, float y, float z) {
+			positions = add(positions, stored[V]++, x, y, z);
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#uv(float, float, float)
+		 */
+		protected void uv(float u, float v, float w) {
+			uvs = add(uvs, stored[T]++, u, v, w);
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#normal(float, float, float)
+		 */
+		protected void normal(float x, float y, float z) {
+			normals = add(normals, stored[N]++, x, y, z);
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#material(java.lang.String)
+		 */
+		protected void material(String name) {
+			if (withFaces) {
+				super.material(name);
+			}
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#face(int[])
+		 */
+		protected void face(int[] c) {
+			if (withFaces) {
+				super.face(c);
+			}
+		}
+
+		/**
+		 * Convert the file indices of the faces to the local ones.
+		 */
+		void renumber() {
+			for (int i = 0; i < faceCount * 9; i++) {
+				if (corners[i] != NONE) {
+					int kind = i % 3;
+					int g = findOwner(kind, corners[i]);
+					if (g < 0) {
+						throw new IndexOutOfBoundsException("Bad index " + (corners[i] + 1));
+					}
+					corners[i] += locals[g * 3 + kind] - bases[g * 3 + kind];
+				}
+			}
+			relativeCount = 0;
+			vertexCount = stored[V];
+			uvCount = stored[T];
+			normalCount = stored[N];
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: ObjParser.java
+ *
+ * Byte level parser for WaveFront .OBJ records.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>
+ * Byte level parser for WaveFront .OBJ records.
+ * </p>
+ * Lines are scanned directly from a byte buffer and numbers are decoded in
+ * place, so no String or token object is created per record. Parsed records
+ * are handed to the callbacks implemented by a subclass.
+ *
+ * @author wada
+ */
+abstract class ObjParser {
+	/** Default size of the read buffer */
+	static final int BUFFER_SIZE = 1 << 16;
+
+	/** Index value for a missing UV or normal index */
+	static final int NONE = -1;
+
+	/** Powers of ten which are exact in a double */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Number of vertex records parsed */
+	protected int vertexCount;
+
+	/** Number of UV records parsed */
+	protected int uvCount;
+
+	/** Number of normal records parsed */
+	protected int normalCount;
+
+	/** Face indices (vertex, UV, normal) for 3 corners */
+	private final int[] corners = new int[9];
+
+	/** Bit mask of the face indices which were given as relative indices */
+	protected int relative;
+
+	/** Scratch characters for the slow float path */
+	private char[] chars = new char[64];
+
+	/** Current position in the buffer */
+	private int p;
+
+	/**
+	 * Vertex record callback.
+	 *
+	 * @param x X coordinate
+	 * @param y Y coordinate
+	 * @param z Z coordinate
+	 */
+	protected abstract void vertex(float x, float y, float z);
+
+	/**
+	 * UV record callback.
+	 *
+	 * @param u U coordinate
+	 * @param v V coordinate
+	 * @param w W coordinate
+	 */
+	protected abstract void uv(float u, float v, float w);
+
+	/**
+	 * Normal record callback.
+	 *
+	 * @param x X value
+	 * @param y Y value
+	 * @param z Z value
+	 */
+	protected abstract void normal(float x, float y, float z);
+
+	/**
+	 * Face record callback.
+	 *
+	 * @param corners zero based (vertex, UV, normal) indices of 3 corners,
+	 *            NONE for a missing index. The array is reused.
+	 */
+	protected abstract void face(int[] corners);
+
+	/**
+	 * Material use callback, for the faces which follow.
+	 *
+	 * @param name material name
+	 */
+	protected abstract void material(String name);
+
+	/**
+	 * Material library callback.
+	 *
+	 * @param name .MTL file name relative to the .OBJ file
+	 */
+	protected abstract void materialLibrary(String name);
+
+	/**
+	 * Parse all records from a channel.
+	 *
+	 * @param ch channel to read
+	 * @throws IOException
+	 */
+	public void parse(ReadableByteChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		boolean eof = false;
+		while (!eof) {
+			// Fill the buffer.
+			while (buf.hasRemaining()) {
+				if (ch.read(buf) < 0) {
+					eof = true;
+					break;
+				}
+			}
+			int end = buf.position();
+			int done = parse(buf, 0, end, eof);
+			if (done == 0 && end == buf.capacity()) {
+				// A line is longer than the buffer.
+				ByteBuffer larger = ByteBuffer.allocate(buf.capacity() * 2);
+				buf.flip();
+				larger.put(buf);
+				buf = larger;
+				continue;
+			}
+			// Keep a partial line for the next read.
+			buf.limit(end);
+			buf.position(done);
+			buf.compact();
+		}
+	}
+
+	/**
+	 * Parse the lines within a range of a buffer.
+	 *
+	 * @param buf buffer
+	 * @param start start position
+	 * @param end end position (exclusive)
+	 * @param eof true if the last line has no more bytes to come
+	 * @return the position after the last parsed line
+	 */
+	public int parse(ByteBuffer buf, int start, int end, boolean eof) {
+		int line = start;
+		while (line < end) {
+			int eol = line;
+			while (eol < end && buf.get(eol) != '\n') {
+				eol++;
+			}
+			if (eol == end && !eof) {
+				// Incomplete line.
+				return line;
+			}
+			parseLine(buf, line, eol);
+			line = eol + 1;
+		}
+		return end;
+	}
+
+	/**
+	 * Parse a line.
+	 *
+	 * @param buf buffer
+	 * @param start start of the line
+	 * @param end end of the line (exclusive)
+	 */
+	protected void parseLine(ByteBuffer buf, int start, int end) {
+		if (end > start && buf.get(end - 1) == '\r') {
+			end--;
+		}
+		if (end - start < 2) {
+			return;
+		}
+		byte c0 = buf.get(start);
+		byte c1 = buf.get(start + 1);
+		if (c0 == 'v') {
+			if (isSpace(c1)) {
+				// Vertex coordinates
+				p = start + 1;
+				float x = parseFloat(buf, end);
+				float y = parseFloat(buf, end);
+				float z = parseFloat(buf, end);
+				vertexCount++;
+				vertex(x, y, z);
+			} else if (c1 == 't' && start + 2 < end && isSpace(buf.get(start + 2))) {
+				// UV coordinate
+				p = start + 2;
+				float u = parseFloat(buf, end);
+				float v = parseFloat(buf, end);
+				float w = hasMore(buf, end) ? parseFloat(buf, end) : 0.0f;
+				uvCount++;
+				uv(u, v, w);
+			} else if (c1 == 'n' && start + 2 < end && isSpace(buf.get(start + 2))) {
+				// Normal vector
+				p = start + 2;
+				float x = parseFloat(buf, end);
+				float y = parseFloat(buf, end);
+				float z = parseFloat(buf, end);
+				normalCount++;
+				normal(x, y, z);
+			}
+		} else if (c0 == 'f' && isSpace(c1)) {
+			// Face indices vertex/UV/normal, only the first 3 corners are used.
+			p = start + 1;
+			relative = 0;
+			for (int i = 0; i < 9; i += 3) {
+				corners[i] = resolve(parseInt(buf, end), vertexCount, i);
+				corners[i + 1] = NONE;
+				corners[i + 2] = NONE;
+				if (p < end && buf.get(p) == '/') {
+					p++;
+					if (p < end && buf.get(p) != '/') {
+						corners[i + 1] = resolve(parseInt(buf, end), uvCount, i + 1);
+					}
+					if (p < end && buf.get(p) == '/') {
+						p++;
+						corners[i + 2] = resolve(parseInt(buf, end), normalCount, i + 2);
+					}
+				}
+			}
+			face(corners);
+		} else if (c0 == 'u' && startsWith(buf, start, end, "usemtl")) {
+			material(parseName(buf, start + 6, end));
+		} else if (c0 == 'm' && startsWith(buf, start, end, "mtllib")) {
+			materialLibrary(parseName(buf, start + 6, end));
+		}
+	}
+
+	/**
+	 * Check whether a line starts with a keyword followed by a separator.
+	 *
+	 * @param buf buffer
+	 * @param start start of the line
+	 * @param end end of the line
+	 * @param keyword keyword
+	 * @return true if the line starts with the keyword
+	 */
+	static boolean startsWith(ByteBuffer buf, int start, int end, String keyword) {
+		int n = keyword.length();
+		if (end - start <= n || !isSpace(buf.get(start + n))) {
+			return false;
+		}
+		for (int i = 1; i < n; i++) {
+			if (buf.get(start + i) != keyword.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decode the rest of a line as a name. Names are rare, so a String is
+	 * created.
+	 *
+	 * @param buf buffer
+	 * @param start position after the keyword
+	 * @param end end of the line
+	 * @return name without the surrounding spaces
+	 */
+	static String parseName(ByteBuffer buf, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buf.get(start + i);
+		}
+		try {
+			return new String(bytes, "UTF-8").trim();
+		} catch (UnsupportedEncodingException e) {
+			return new String(bytes).trim();
+		}
+	}
+
+	/**
+	 * Convert a 1-based or negative relative index to a zero based index.
+	 *
+	 * @param index index in the file
+	 * @param count number of records parsed so far
+	 * @param slot position in the face indices
+	 * @return zero based index
+	 */
+	private int resolve(int index, int count, int slot) {
+		if (index < 0) {
+			relative |= 1 << slot;
+			return count + index;
+		}
+		return index - 1;
+	}
+
+	/**
+	 * Check whether a byte is a separator.
+	 *
+	 * @param c byte
+	 * @return true if a space or tab
+	 */
+	static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t';
+	}
+
+	/**
+	 * Check whether another token follows the current position.
+	 *
+	 * @param buf buffer
+	 * @param end end of the line
+	 * @return true if a token exists
+	 */
+	private boolean hasMore(ByteBuffer buf, int end) {
+		while (p < end && isSpace(buf.get(p))) {
+			p++;
+		}
+		return p < end;
+	}
+
+	/**
+	 * Decode an integer at the current position.
+	 *
+	 * @param buf buffer
+	 * @param end end of the line
+	 * @return decoded value
+	 */
+	int parseInt(ByteBuffer buf, int end) {
+		if (!hasMore(buf, end)) {
+			throw new NumberFormatException("Missing index");
+		}
+		boolean negative = false;
+		byte c = buf.get(p);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			p++;
+		}
+		int start = p;
+		int value = 0;
+		while (p < end) {
+			c = buf.get(p);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+			p++;
+		}
+		if (p == start) {
+			throw new NumberFormatException("Bad index at " + start);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Decode a float at the current position.
+	 *
+	 * @param buf buffer
+	 * @param end end of the line
+	 * @return decoded value
+	 */
+	float parseFloat(ByteBuffer buf, int end) {
+		if (!hasMore(buf, end)) {
+			throw new NumberFormatException("Missing value");
+		}
+		int start = p;
+		boolean negative = false;
+		byte c = buf.get(p);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			p++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exp = 0;
+		boolean any = false;
+		boolean exact = true;
+		// Integer part
+		while (p < end && (c = buf.get(p)) >= '0' && c <= '9') {
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exp++;
+				exact &= c == '0';
+			}
+			any = true;
+			p++;
+		}
+		// Fraction part
+		if (p < end && buf.get(p) == '.') {
+			p++;
+			while (p < end && (c = buf.get(p)) >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					exp--;
+				} else {
+					exact &= c == '0';
+				}
+				any = true;
+				p++;
+			}
+		}
+		// Exponent part
+		if (any && p < end && ((c = buf.get(p)) == 'e' || c == 'E')) {
+			p++;
+			boolean expNegative = false;
+			if (p < end && ((c = buf.get(p)) == '-' || c == '+')) {
+				expNegative = c == '-';
+				p++;
+			}
+			int e = 0;
+			while (p < end && (c = buf.get(p)) >= '0' && c <= '9') {
+				if (e < 10000) {
+					e = e * 10 + (c - '0');
+				}
+				p++;
+			}
+			exp += expNegative ? -e : e;
+		}
+		if (any && (p == end || isSpace(buf.get(p)))) {
+			if (mantissa == 0) {
+				return negative ? -0.0f : 0.0f;
+			}
+			if (exact && mantissa < (1L << 53) && exp >= -22 && exp <= 22) {
+				// Both operands are exact, so the double is correctly rounded.
+				double d = exp < 0 ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+				// Rounding it again to a float is correct unless it fell on
+				// the midpoint of two floats, whose side is then unknown.
+				if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) != 0x10000000L) {
+					return (float) (negative ? -d : d);
+				}
+			}
+		}
+		// Rare forms (long mantissa, huge exponent, NaN, Infinity).
+		while (p < end && !isSpace(buf.get(p))) {
+			p++;
+		}
+		int len = p - start;
+		if (chars.length < len) {
+			chars = new char[len];
+		}
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) buf.get(start + i);
+		}
+		return Float.parseFloat(new String(chars, 0, len));
+	}
+}
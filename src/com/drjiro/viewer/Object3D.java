@@ -11,32 +11,65 @@
 package com.drjiro.viewer;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.StringTokenizer;
 
 /**
+ * <p>
  * A 3D object using WebFront .OBJ file.
+ * </p>
+ * The mesh is held in primitive arrays: per vertex positions, UVs and
+ * normals, and 3 vertex indices per triangle. The mesh may grow while it
+ * is rendered; a reader gets the triangle count first and then the arrays,
+ * which hold at least that many triangles. Published elements of the
+ * arrays are never written; an edit sets new arrays, so the arrays may be
+ * shared by immutable snapshots, see {@link #snapshot()}.
  * 
  * @author wada
  */
 public class Object3D {
-	/** Vertex list */
-	protected List vertices;
+	/** Vertex coordinates, 3 per vertex */
+	protected volatile float[] positions = new float[0];
 
-	/** UV coordinate list */
-	protected List uvs;
+	/** UV coordinates, 2 per vertex */
+	protected volatile float[] uvs = new float[0];
 
-	/** Normal vector list */
-	protected List normals;
+	/** Normal vectors, 3 per vertex */
+	protected volatile float[] normals = new float[0];
 
-	/** Face index list */
-	protected List faces;
+	/** Vertex indices, 3 per triangle */
+	protected volatile int[] indices = new int[0];
+
+	/** Number of vertices */
+	protected volatile int vertexCount;
+
+	/** Number of triangles */
+	protected volatile int triangleCount;
+
+	/** Clusters of the triangles, or null */
+	protected volatile Meshlets meshlets;
+
+	/** Runs of triangles sharing a material, or null */
+	protected volatile MaterialBatches batches;
+
+	/** Ambient occlusion baked per vertex, or null */
+	protected volatile AmbientOcclusion occlusion;
+
+	/** Merge face corners sharing a vertex, UV and normal when loading */
+	protected boolean weld;
+
+	/** Crease angle of generated normals in degrees */
+	protected float creaseAngle = NormalGenerator.DEFAULT_CREASE_ANGLE;
 
 	/** Rotation vector list */
 	protected Vector3f rot;
@@ -49,20 +82,16 @@ public class Object3D {
 
 	/** Center of the object */
 	protected Vector3f center = new Vector3f();
-	
+
 	/** Scaling factor to view */
 	protected float scale = 10.0f;
 
 	float radius = 0.000001f; // temporary minimum value
-	
+
 	/**
 	 * Deafult constructor.
 	 */
 	public Object3D() {
-		vertices = new ArrayList();
-		uvs = new ArrayList();
-		normals = new ArrayList();
-		faces = new ArrayList();
 	}
 
 	/**
@@ -71,24 +100,137 @@ public class Object3D {
 	 * @param url URL to load a object
 	 */
 	public void load(URL url) throws IOException {
+		this.url = url;
+		if ("file".equals(url.getProtocol())) {
+			try {
+				// Map a local file instead of streaming it.
+				load(new File(url.toURI()));
+				return;
+			} catch (URISyntaxException e) {
+				// Read it as a stream.
+			} catch (IllegalArgumentException e) {
+				// Read it as a stream.
+			}
+		}
 		load(url.openStream());
 	}
 
 	/**
-	 * Load an 3D object from a stream.
+	 * Load an 3D object through a cache of parsed meshes. The mesh arrays
+	 * may be shared with other objects and must not be modified.
+	 * 
+	 * @param url URL to load a object
+	 * @param cache cache of parsed meshes
+	 * @throws IOException
+	 */
+	public void load(URL url, MeshCache cache) throws IOException {
+		cache.load(url, this);
+	}
+
+	/**
+	 * Load an 3D object from a stream. A gzip, zip or deflate compressed
+	 * stream is decompressed on another thread while parsing.
 	 * 
 	 * @param is input stream
 	 * @throws IOException
 	 */
 	public void load(InputStream is) throws IOException {
+		ReadableByteChannel ch = DecompressingChannel.open(is);
+		try {
+			load(ch);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Load an 3D object from a channel.
+	 * 
+	 * @param ch channel to read
+	 * @throws IOException
+	 */
+	public void load(ReadableByteChannel ch) throws IOException {
+		MeshBuilder b = new MeshBuilder();
+		b.parse(ch);
+		build(b);
+	}
+
+	/**
+	 * Load an 3D object from the remaining bytes of a buffer.
+	 * 
+	 * @param buf buffer holding .OBJ text
+	 */
+	public void load(ByteBuffer buf) {
+		MeshBuilder b = new MeshBuilder();
+		b.parse(buf, buf.position(), buf.limit(), true);
+		build(b);
+	}
+
+	/**
+	 * Load an 3D object from a local .OBJ file. The file is memory mapped
+	 * and parsed by all cores. A binary cache is written next to the file
+	 * and used instead of parsing while it is up to date and was built with
+	 * the same weld flag and crease angle. A compressed file is streamed
+	 * through a decompressor instead of mapped.
+	 * 
+	 * @param file file to load
+	 * @throws IOException
+	 */
+	public void load(File file) throws IOException {
+		url = file.toURI().toURL();
+		MeshFile mesh = MeshFile.readCache(file, this);
+		if (mesh != null) {
+			build(mesh);
+			return;
+		}
+		if (DecompressingChannel.detect(file) != DecompressingChannel.NONE) {
+			load(new FileInputStream(file));
+		} else {
+			build(new ParallelObjLoader().parse(file));
+		}
+		try {
+			MeshFile.writeCache(file, this);
+		} catch (IOException e) {
+			// The cache is optional, e.g. on a read only directory.
+		}
+	}
+
+	/**
+	 * Load some groups of a local .OBJ file. Only the byte ranges of the
+	 * groups and of the records they refer are parsed, using a group index
+	 * which is saved next to the file.
+	 * 
+	 * @param file file to load
+	 * @param groups names of the groups
+	 * @throws IOException
+	 */
+	public void load(File file, String[] groups) throws IOException {
+		url = file.toURI().toURL();
+		ObjIndex index = ObjIndex.get(file);
+		int[] g = new int[groups.length];
+		for (int i = 0; i < groups.length; i++) {
+			g[i] = index.findGroup(groups[i]);
+			if (g[i] < 0) {
+				throw new IOException("No group " + groups[i] + " in " + file);
+			}
+		}
+		build(index.load(file, g));
+	}
+
+	/**
+	 * Load an 3D object from a stream using a line tokenizer.
+	 * Kept to compare with {@link #load(InputStream)} in LoaderBenchmark.
+	 * 
+	 * @param is input stream
+	 * @throws IOException
+	 */
+	public void loadWithTokenizer(InputStream is) throws IOException {
 		BufferedReader br = null;
 		try {
 			br = new BufferedReader(new InputStreamReader(is));
+			MeshBuilder b = new MeshBuilder();
+			int[] c = new int[9];
 
-			float totalx = 0.0f;
-			float totaly = 0.0f;
-			float totalz = 0.0f;
-			int totaln = 0;
 			String line;
 			while ((line = br.readLine()) != null) {
 				if (line.length() == 0 || line.startsWith("#") || line.startsWith(" ")) {
@@ -104,108 +246,37 @@ public class Object3D {
 					float x = Float.parseFloat(st.nextToken());
 					float y = Float.parseFloat(st.nextToken());
 					float z = Float.parseFloat(st.nextToken());
-					// Add a vertex to the list.
-					vertices.add(new Vector3f(x, y, z));
-					if (Math.abs(x) > radius)
-						radius = Math.abs(x);
-					if (Math.abs(y) > radius)
-						radius = Math.abs(y);
-					if (Math.abs(z) > radius)
-						radius = Math.abs(z);
-					totalx += x;
-					totaly += y;
-					totalz += z;
-					totaln++;
-
-//					System.out.println("vertex x=" + x + " y=" + y + " z=" + z);
+					b.vertexCount++;
+					b.vertex(x, y, z);
 				} else if (token.equals("vt")) {
 					// UV coordinate.
 					// ex. vt 0.213384 0.643933 0.000000
 					float u = Float.parseFloat(st.nextToken());
 					float v = Float.parseFloat(st.nextToken());
-					float w = Float.parseFloat(st.nextToken());
-					// Add UV coordinate to the list.
-					uvs.add(new Vector3f(u, v, w));
-//					System.out.println("uv u=" + u + " v=" + v + " w=" + w);
+					float w = st.hasMoreTokens() ? Float.parseFloat(st.nextToken()) : 0.0f;
+					b.uvCount++;
+					b.uv(u, v, w);
 				} else if (token.equals("vn")) {
 					// Normal vector
 					// ex. vn -0.237367 -0.151809 0.945690
 					float x = Float.parseFloat(st.nextToken());
 					float y = Float.parseFloat(st.nextToken());
 					float z = Float.parseFloat(st.nextToken());
-					// Add a normal vector to the list.
-					normals.add(new Vector3f(x, y, z));
-//					System.out.println("in v=" + x + " t=" + y + " n=" + z);
+					b.normalCount++;
+					b.normal(x, y, z);
 				} else if (token.equals("f")) {
 					// Face indices vertex/UV/normal
 					// ex. f 149/149/149 155/155/155 2/2/2
-					token = st.nextToken();
-					if (token.indexOf("/") >= 0) {
-						// First vertex
-						String[] args = token.split("/");
-						int iv0 = Integer.parseInt(args[0]) - 1;
-						int it0 = Integer.parseInt(args[1]) - 1;
-						int in0 = 0;
-						if (args.length > 2) {
-							in0 = Integer.parseInt(args[2]) - 1;
-						}
-						// 2nd vertex
-						args = st.nextToken().split("/");
-						int iv1 = Integer.parseInt(args[0]) - 1;
-						int it1 = Integer.parseInt(args[1]) - 1;
-						int in1 = 0;
-						if (args.length > 2) {
-							in1 = Integer.parseInt(args[2]) - 1;
-						}
-						// 3rd vertex
-						args = st.nextToken().split("/");
-						int iv2 = Integer.parseInt(args[0]) - 1;
-						int it2 = Integer.parseInt(args[1]) - 1;
-						int in2 = 0;
-						if (args.length > 2) {
-							in2 = Integer.parseInt(args[2]) - 1;
-						}
-						// Add face to the list.
-						Face face = null;
-						if (args.length > 2) {
-							face = new Face(
-									new Vertex((Vector3f)vertices.get(iv0), (Vector3f)uvs.get(it0), (Vector3f)normals.get(in0)),
-									new Vertex((Vector3f)vertices.get(iv1), (Vector3f)uvs.get(it1), (Vector3f)normals.get(in1)),
-									new Vertex((Vector3f)vertices.get(iv2), (Vector3f)uvs.get(it2), (Vector3f)normals.get(in2)));
-						}
-						else {
-							face = new Face(
-									new Vertex((Vector3f)vertices.get(iv0), (Vector3f)uvs.get(it0)),
-									new Vertex((Vector3f)vertices.get(iv1), (Vector3f)uvs.get(it1)),
-									new Vertex((Vector3f)vertices.get(iv2), (Vector3f)uvs.get(it2)));
-						}
-						/*
-						Face face = new Face(new Index3(iv0, it0, in0), new Index3(iv1, it1, in1),
-								new Index3(iv2, it2, in2));
-						*/
-						faces.add(face);
-//						System.out.println("face=" + face);
-					} else {
-						int iv0 = Integer.parseInt(token) - 1;
-						int iv1 = Integer.parseInt(st.nextToken()) - 1;
-						int iv2 = Integer.parseInt(st.nextToken()) - 1;
-						Face face = new Face(
-								new Vertex((Vector3f)vertices.get(iv0)),
-								new Vertex((Vector3f)vertices.get(iv1)),
-								new Vertex((Vector3f)vertices.get(iv2)));
-						faces.add(face);
+					for (int i = 0; i < 9; i += 3) {
+						String[] args = st.nextToken().split("/");
+						c[i] = Integer.parseInt(args[0]) - 1;
+						c[i + 1] = args.length > 1 ? Integer.parseInt(args[1]) - 1 : ObjParser.NONE;
+						c[i + 2] = args.length > 2 ? Integer.parseInt(args[2]) - 1 : ObjParser.NONE;
 					}
+					b.face(c);
 				}
 			}
-			if (totaln > 0) {
-				center.x = totalx / totaln;
-				center.y = totaly / totaln;
-				center.z = totalz / totaln;
-			}
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			throw e;
+			build(b);
 		} finally {
 			try {
 				if (br != null) {
@@ -218,39 +289,445 @@ public class Object3D {
 	}
 
 	/**
-	 * Get the face list.
+	 * Set up the mesh from parsed records. Faces having materials are
+	 * grouped by material, and the materials are read from the libraries
+	 * next to the URL of the object.
+	 * 
+	 * @param b parsed records
+	 */
+	void build(MeshBuilder b) {
+		int[] starts = null;
+		Material[] materials = null;
+		if (b.faceMaterials != null) {
+			b = b.groupByMaterial();
+			starts = b.getMaterialStarts();
+			materials = Material.resolve(url, b.libraries, b.materialNames);
+		}
+		float totalx = 0.0f;
+		float totaly = 0.0f;
+		float totalz = 0.0f;
+		float[] p = b.positions;
+		for (int i = 0; i < b.vertexCount * 3; i += 3) {
+			float x = p[i];
+			float y = p[i + 1];
+			float z = p[i + 2];
+			if (Math.abs(x) > radius)
+				radius = Math.abs(x);
+			if (Math.abs(y) > radius)
+				radius = Math.abs(y);
+			if (Math.abs(z) > radius)
+				radius = Math.abs(z);
+			totalx += x;
+			totaly += y;
+			totalz += z;
+		}
+		if (b.vertexCount > 0) {
+			center.x = totalx / b.vertexCount;
+			center.y = totaly / b.vertexCount;
+			center.z = totalz / b.vertexCount;
+		}
+		if (b.normalCount == 0 && b.faceCount > 0) {
+			// Generate smooth normals once instead of in every frame.
+			b = NormalGenerator.generate(b, creaseAngle);
+		}
+		if (b.hasSharedIndices()) {
+			buildShared(b);
+		} else if (weld) {
+			VertexWelder.weld(b, this);
+		} else {
+			buildCorners(b);
+		}
+		batches = starts != null ? MaterialBatches.create(indices, starts, materials) : null;
+	}
+
+	/**
+	 * Set up the mesh when every corner uses the same index for the vertex,
+	 * UV and normal, so that the records are used as vertices directly.
+	 * 
+	 * @param b parsed records
+	 */
+	private void buildShared(MeshBuilder b) {
+		int n = b.vertexCount;
+		int triangleCount = b.faceCount;
+		float[] positions = new float[n * 3];
+		float[] uvs = new float[n * 2];
+		float[] normals = new float[n * 3];
+		int[] indices = new int[triangleCount * 3];
+		int[] c = b.corners;
+		System.arraycopy(b.positions, 0, positions, 0, n * 3);
+		if (triangleCount > 0 && c[1] != ObjParser.NONE) {
+			for (int i = 0; i < Math.min(n, b.uvCount); i++) {
+				uvs[i * 2] = b.uvs[i * 3];
+				uvs[i * 2 + 1] = b.uvs[i * 3 + 1];
+			}
+		}
+		if (triangleCount > 0 && c[2] != ObjParser.NONE) {
+			System.arraycopy(b.normals, 0, normals, 0, Math.min(n, b.normalCount) * 3);
+		}
+		for (int i = 0, j = 0; i < triangleCount * 3; i++, j += 3) {
+			indices[i] = c[j];
+		}
+		setMesh(positions, uvs, normals, indices, n, triangleCount);
+	}
+
+	/**
+	 * Set up the mesh using a vertex for every corner of the faces.
+	 * 
+	 * @param b parsed records
+	 */
+	private void buildCorners(MeshBuilder b) {
+		int n = b.faceCount * 3;
+		float[] positions = new float[n * 3];
+		float[] uvs = new float[n * 2];
+		float[] normals = new float[n * 3];
+		int[] indices = new int[n];
+		int[] c = b.corners;
+		for (int i = 0; i < n; i++) {
+			int iv = c[i * 3] * 3;
+			int it = c[i * 3 + 1];
+			int in = c[i * 3 + 2];
+			positions[i * 3] = b.positions[iv];
+			positions[i * 3 + 1] = b.positions[iv + 1];
+			positions[i * 3 + 2] = b.positions[iv + 2];
+			if (it != ObjParser.NONE) {
+				uvs[i * 2] = b.uvs[it * 3];
+				uvs[i * 2 + 1] = b.uvs[it * 3 + 1];
+			}
+			if (in != ObjParser.NONE) {
+				normals[i * 3] = b.normals[in * 3];
+				normals[i * 3 + 1] = b.normals[in * 3 + 1];
+				normals[i * 3 + 2] = b.normals[in * 3 + 2];
+			}
+			indices[i] = i;
+		}
+		setMesh(positions, uvs, normals, indices, n, b.faceCount);
+	}
+
+	/**
+	 * Set up the mesh from a binary mesh file.
+	 * 
+	 * @param mesh mesh file
+	 */
+	void build(MeshFile mesh) {
+		center.initialize(mesh.center);
+		radius = mesh.radius;
+		// The arrays were copied out of the mapping, so they are adopted.
+		setMesh(mesh.positions, mesh.uvs, mesh.normals, mesh.indices, mesh.vertexCount,
+				mesh.triangleCount);
+		batches = null;
+	}
+
+	/**
+	 * Share the mesh of another object.
+	 * 
+	 * @param obj object holding the mesh
+	 */
+	void share(Object3D obj) {
+		url = obj.url;
+		center.initialize(obj.center);
+		radius = obj.radius;
+		int triangleCount = obj.triangleCount;
+		setMesh(obj.positions, obj.uvs, obj.normals, obj.indices, obj.vertexCount, triangleCount);
+		meshlets = obj.meshlets;
+		batches = obj.batches;
+		occlusion = obj.occlusion;
+	}
+
+	/**
+	 * Share the arrays of a snapshot.
+	 * 
+	 * @param mesh snapshot holding the mesh
+	 */
+	void share(Mesh mesh) {
+		center.initialize(mesh.getCenter());
+		radius = mesh.radius;
+		setMesh(mesh.positions, mesh.uvs, mesh.normals, mesh.indices, mesh.vertexCount,
+				mesh.triangleCount);
+		meshlets = mesh.meshlets;
+		batches = mesh.batches;
+		occlusion = mesh.occlusion;
+	}
+
+	/**
+	 * Take an immutable snapshot of the mesh, which may be shared by threads
+	 * rendering it at the same time. Later edits of this object do not
+	 * change it.
+	 * 
+	 * @return snapshot sharing the arrays of this object
+	 */
+	public Mesh snapshot() {
+		return new Mesh(this);
+	}
+
+	/**
+	 * Reorder the triangles and vertices for the vertex cache and for
+	 * spatial locality.
+	 * 
+	 * @see MeshOptimizer
+	 */
+	public void optimize() {
+		MeshOptimizer.optimize(this);
+	}
+
+	/**
+	 * Cluster the triangles for culling. The clusters are used while the
+	 * mesh is not changed.
+	 * 
+	 * @see Meshlets
+	 */
+	public void buildMeshlets() {
+		meshlets = new Meshlets(this);
+	}
+
+	/**
+	 * Get the clusters of the triangles.
+	 * 
+	 * @return clusters, or null if not built
+	 */
+	public Meshlets getMeshlets() {
+		return meshlets;
+	}
+
+	/**
+	 * Bake the ambient occlusion of the vertices with the default rays. The
+	 * result is kept next to a local .OBJ file, so it is baked once.
+	 * 
+	 * @see AmbientOcclusion
+	 */
+	public void bakeOcclusion() {
+		bakeOcclusion(AmbientOcclusion.DEFAULT_SAMPLES, AmbientOcclusion.DEFAULT_DISTANCE);
+	}
+
+	/**
+	 * Bake the ambient occlusion of the vertices. The occlusion is used
+	 * while the vertex coordinates are not changed.
+	 * 
+	 * @param samples rays per vertex
+	 * @param distance distance of an occluder, relative to the bounding
+	 *            radius
+	 */
+	public void bakeOcclusion(int samples, float distance) {
+		File file = null;
+		if (url != null && "file".equals(url.getProtocol())) {
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				// Bake without the cache.
+			} catch (IllegalArgumentException e) {
+				// Bake without the cache.
+			}
+		}
+		occlusion = file != null ? AmbientOcclusion.load(file, this, samples, distance)
+				: AmbientOcclusion.bake(this, samples, distance);
+	}
+
+	/**
+	 * Get the ambient occlusion of the vertices.
+	 * 
+	 * @return occlusion, or null if not baked
+	 */
+	public AmbientOcclusion getOcclusion() {
+		return occlusion;
+	}
+
+	/**
+	 * Get the runs of triangles sharing a material.
+	 * 
+	 * @return batches, or null if the faces have no material
+	 */
+	public MaterialBatches getMaterialBatches() {
+		return batches;
+	}
+
+	/**
+	 * Set the mesh arrays. The triangle count is written last, so a reader
+	 * which gets the count first sees arrays holding that many triangles.
+	 * 
+	 * @param positions vertex coordinates, 3 per vertex
+	 * @param uvs UV coordinates, 2 per vertex
+	 * @param normals normal vectors, 3 per vertex
+	 * @param indices vertex indices, 3 per triangle
+	 * @param vertexCount number of vertices
+	 * @param triangleCount number of triangles
+	 */
+	protected void setMesh(float[] positions, float[] uvs, float[] normals, int[] indices,
+			int vertexCount, int triangleCount) {
+		this.positions = positions;
+		this.uvs = uvs;
+		this.normals = normals;
+		this.indices = indices;
+		this.vertexCount = vertexCount;
+		this.triangleCount = triangleCount;
+	}
+
+	/**
+	 * Get the vertex coordinates, 3 per vertex.
+	 * 
+	 * @return vertex coordinates
+	 */
+	public float[] getPositionArray() {
+		return positions;
+	}
+
+	/**
+	 * Get the UV coordinates, 2 per vertex.
+	 * 
+	 * @return UV coordinates
+	 */
+	public float[] getUvArray() {
+		return uvs;
+	}
+
+	/**
+	 * Get the normal vectors, 3 per vertex.
+	 * 
+	 * @return normal vectors
+	 */
+	public float[] getNormalArray() {
+		return normals;
+	}
+
+	/**
+	 * Get the vertex indices, 3 per triangle.
+	 * 
+	 * @return vertex indices
+	 */
+	public int[] getIndexArray() {
+		return indices;
+	}
+
+	/**
+	 * Set whether face corners sharing the same vertex, UV and normal are
+	 * merged into one vertex when loading. Otherwise every corner gets its
+	 * own vertex unless the file uses the same index for all three.
+	 * 
+	 * @param weld true to merge corners
+	 */
+	public void setWeld(boolean weld) {
+		this.weld = weld;
+	}
+
+	/**
+	 * Set the crease angle of the normals generated for a file which has
+	 * none. Faces meeting at a larger angle are not smoothed together.
+	 * 
+	 * @param creaseAngle crease angle in degrees
+	 */
+	public void setCreaseAngle(float creaseAngle) {
+		this.creaseAngle = creaseAngle;
+	}
+
+	/**
+	 * Get the average number of face corners referring to a vertex.
+	 * 
+	 * @return corners per vertex
+	 */
+	public float getCornersPerVertex() {
+		return vertexCount == 0 ? 0 : triangleCount * 3.0f / vertexCount;
+	}
+
+	/**
+	 * Get the triangle count.
+	 * 
+	 * @return triangle count
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Get the face list. The list is a read only view which creates a face
+	 * for each access.
 	 * 
 	 * @return return the face list
 	 */
 	public List getFaces() {
-		return faces;
+		return new AbstractList() {
+			public Object get(int i) {
+				return new Face(getVertex(indices[i * 3]), getVertex(indices[i * 3 + 1]),
+						getVertex(indices[i * 3 + 2]));
+			}
+
+			public int size() {
+				return triangleCount;
+			}
+		};
+	}
+
+	/**
+	 * Create a vertex object of the mesh.
+	 * 
+	 * @param i vertex index
+	 * @return vertex
+	 */
+	private Vertex getVertex(int i) {
+		return new Vertex(new Vector3f(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]),
+				new Vector3f(uvs[i * 2], uvs[i * 2 + 1], 0),
+				new Vector3f(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]));
 	}
 
 	/**
-	 * Get the vertex list.
+	 * Get the vertex list. The list is a read only view.
 	 * 
 	 * @return return the vertex list
 	 */
 	public List getVertices() {
-		return vertices;
+		return new VectorList(positions, 3);
 	}
 
 	/**
-	 * Get the UV list.
+	 * Get the UV list. The list is a read only view.
 	 * 
 	 * @return return the UV list
 	 */
 	public List getUvs() {
-		return uvs;
+		return new VectorList(uvs, 2);
 	}
 
 	/**
-	 * Get the normal vector list.
+	 * Get the normal vector list. The list is a read only view.
 	 * 
 	 * @return return the normal vector list
 	 */
 	public List getNormals() {
-		return normals;
+		return new VectorList(normals, 3);
+	}
+
+	/**
+	 * Read only list of vectors over a float array.
+	 */
+	private class VectorList extends AbstractList {
+		/** Values */
+		private final float[] a;
+
+		/** Values per vector */
+		private final int stride;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param a values
+		 * @param stride values per vector
+		 */
+		VectorList(float[] a, int stride) {
+			this.a = a;
+			this.stride = stride;
+		}
+
+		/**
+		 * @see java.util.AbstractList#get(int)
+		 */
+		public Object get(int i) {
+			int off = i * stride;
+			return new Vector3f(a[off], a[off + 1], stride > 2 ? a[off + 2] : 0);
+		}
+
+		/**
+		 * @see java.util.AbstractCollection#size()
+		 */
+		public int size() {
+			return vertexCount;
+		}
 	}
 
 	/**
@@ -259,7 +736,7 @@ public class Object3D {
 	 * @return vertex count
 	 */
 	public int getVertexCount() {
-		return vertices.size();
+		return vertexCount;
 	}
 
 	/**
@@ -0,0 +1,336 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: PagedMesh.java
+ *
+ * Out-of-core mesh paged from a memory mapped mesh file.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Out-of-core mesh paged from a memory mapped mesh file.
+ * </p>
+ * The triangles of a {@link MeshFile} are split into fixed size pages. A
+ * page is faulted in on demand by gathering its vertices from the mapped
+ * file into small local arrays, and the pages are kept in an LRU cache
+ * bounded by a byte budget. The heap use stays flat whatever the size of
+ * the file, which may exceed both the heap and a single mapping.
+ *
+ * @author wada
+ */
+public class PagedMesh {
+	/** Default number of triangles in a page */
+	public static final int PAGE_TRIANGLES = 1 << 14;
+
+	/** Size of a mapped segment, a multiple of 4 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	/** Mapped segments of the file */
+	private final MappedByteBuffer[] segments;
+
+	/** Number of vertices */
+	private final int vertexCount;
+
+	/** Number of triangles */
+	private final int triangleCount;
+
+	/** Center of the object */
+	private final Vector3f center;
+
+	/** Bounding radius */
+	private final float radius;
+
+	/** Offsets of the position, UV, normal and index arrays */
+	private final long positionOffset, uvOffset, normalOffset, indexOffset;
+
+	/** Number of triangles in a page */
+	private final int pageTriangles;
+
+	/** Memory budget of the resident pages in bytes */
+	private final long budget;
+
+	/** Resident pages in the access order */
+	private final LinkedHashMap pages = new LinkedHashMap(16, 0.75f, true);
+
+	/** Bytes of the resident pages */
+	private long residentBytes;
+
+	/** Number of page hits */
+	private long hits;
+
+	/** Number of page misses */
+	private long misses;
+
+	/** Number of evicted pages */
+	private long evictions;
+
+	/**
+	 * Page of triangles with their own vertex arrays.
+	 */
+	static class Page {
+		/** Vertex coordinates, 3 per vertex */
+		float[] positions;
+
+		/** UV coordinates, 2 per vertex */
+		float[] uvs;
+
+		/** Normal vectors, 3 per vertex */
+		float[] normals;
+
+		/** Local vertex indices, 3 per triangle */
+		int[] indices;
+
+		/** Number of triangles */
+		int triangleCount;
+
+		/**
+		 * Get the heap size of the arrays.
+		 *
+		 * @return bytes
+		 */
+		long bytes() {
+			return 4L * (positions.length + uvs.length + normals.length + indices.length);
+		}
+	}
+
+	/**
+	 * Open a mesh file with the default page size.
+	 *
+	 * @param file mesh file
+	 * @param budget memory budget of the resident pages in bytes
+	 * @throws IOException
+	 */
+	public PagedMesh(File file, long budget) throws IOException {
+		this(file, budget, PAGE_TRIANGLES);
+	}
+
+	/**
+	 * Open a mesh file.
+	 *
+	 * @param file mesh file
+	 * @param budget memory budget of the resident pages in bytes
+	 * @param pageTriangles number of triangles in a page
+	 * @throws IOException
+	 */
+	public PagedMesh(File file, long budget, int pageTriangles) throws IOException {
+		this.budget = budget;
+		this.pageTriangles = pageTriangles;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			long size = ch.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long pos = i * SEGMENT_SIZE;
+				segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(SEGMENT_SIZE, size - pos));
+				segments[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			ByteBuffer header = segments.length > 0 ? segments[0] : ByteBuffer.allocate(0);
+			MeshFile mesh = MeshFile.readHeader(header, file);
+			vertexCount = mesh.vertexCount;
+			triangleCount = mesh.triangleCount;
+			center = mesh.center;
+			radius = mesh.radius;
+
+			long n = vertexCount;
+			positionOffset = MeshFile.HEADER_SIZE;
+			uvOffset = positionOffset + n * 12;
+			normalOffset = uvOffset + n * 8;
+			indexOffset = normalOffset + n * 12;
+			if (indexOffset + triangleCount * 12L != size) {
+				throw new IOException("Truncated mesh file: " + file);
+			}
+		} finally {
+			// The mappings stay valid after closing the file.
+			raf.close();
+		}
+	}
+
+	/**
+	 * Get a float of the file.
+	 *
+	 * @param offset byte offset, a multiple of 4
+	 * @return value
+	 */
+	private float getFloat(long offset) {
+		return segments[(int) (offset / SEGMENT_SIZE)].getFloat((int) (offset % SEGMENT_SIZE));
+	}
+
+	/**
+	 * Get an int of the file.
+	 *
+	 * @param offset byte offset, a multiple of 4
+	 * @return value
+	 */
+	private int getInt(long offset) {
+		return segments[(int) (offset / SEGMENT_SIZE)].getInt((int) (offset % SEGMENT_SIZE));
+	}
+
+	/**
+	 * Get the number of pages.
+	 *
+	 * @return page count
+	 */
+	public int getPageCount() {
+		return (triangleCount + pageTriangles - 1) / pageTriangles;
+	}
+
+	/**
+	 * Get a page, faulting it in if not resident.
+	 *
+	 * @param index page index
+	 * @return page
+	 */
+	synchronized Page getPage(int index) {
+		Integer key = Integer.valueOf(index);
+		Page page = (Page) pages.get(key);
+		if (page != null) {
+			hits++;
+			return page;
+		}
+		misses++;
+		page = load(index);
+		residentBytes += page.bytes();
+		pages.put(key, page);
+
+		// Evict the least recently used pages, keeping the new one.
+		Iterator it = pages.entrySet().iterator();
+		while (residentBytes > budget && pages.size() > 1) {
+			Map.Entry e = (Map.Entry) it.next();
+			residentBytes -= ((Page) e.getValue()).bytes();
+			it.remove();
+			evictions++;
+		}
+		return page;
+	}
+
+	/**
+	 * Read a page from the mapped file.
+	 *
+	 * @param index page index
+	 * @return page
+	 */
+	private Page load(int index) {
+		int first = index * pageTriangles;
+		int count = Math.min(pageTriangles, triangleCount - first);
+		Page page = new Page();
+		page.triangleCount = count;
+		page.indices = new int[count * 3];
+
+		// Number the vertices used by the page locally.
+		VertexWelder local = new VertexWelder(count);
+		int[] global = new int[count * 3];
+		long offset = indexOffset + first * 12L;
+		for (int i = 0; i < count * 3; i++, offset += 4) {
+			int v = getInt(offset);
+			int before = local.size();
+			int l = local.add(v, 0, 0);
+			if (local.size() > before) {
+				global[l] = v;
+			}
+			page.indices[i] = l;
+		}
+
+		int n = local.size();
+		page.positions = new float[n * 3];
+		page.uvs = new float[n * 2];
+		page.normals = new float[n * 3];
+		for (int i = 0; i < n; i++) {
+			long v = global[i];
+			for (int j = 0; j < 3; j++) {
+				page.positions[i * 3 + j] = getFloat(positionOffset + (v * 3 + j) * 4);
+				page.normals[i * 3 + j] = getFloat(normalOffset + (v * 3 + j) * 4);
+			}
+			page.uvs[i * 2] = getFloat(uvOffset + v * 8);
+			page.uvs[i * 2 + 1] = getFloat(uvOffset + v * 8 + 4);
+		}
+		return page;
+	}
+
+	/**
+	 * Get the number of vertices.
+	 *
+	 * @return vertex count
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Get the number of triangles.
+	 *
+	 * @return triangle count
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Get the center.
+	 *
+	 * @return center
+	 */
+	public Vector3f getCenter() {
+		return center;
+	}
+
+	/**
+	 * Get the radius.
+	 *
+	 * @return radius
+	 */
+	public float getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Get the number of page hits.
+	 *
+	 * @return hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of page misses.
+	 *
+	 * @return misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of evicted pages.
+	 *
+	 * @return evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Get the heap used by the resident pages.
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+}
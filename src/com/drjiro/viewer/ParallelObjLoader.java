@@ -0,0 +1,200 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: ParallelObjLoader.java
+ *
+ * Parallel loader of a local .OBJ file.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Parallel loader of a local .OBJ file.
+ * </p>
+ * The file is memory mapped and cut into newline aligned chunks which are
+ * parsed on a fork-join pool. The chunk results are concatenated in file
+ * order.
+ *
+ * @author wada
+ */
+public class ParallelObjLoader {
+	/** Minimum size of a chunk */
+	private static final long MIN_CHUNK = 1L << 20;
+
+	/** Maximum size of a chunk, which must fit a mapped buffer */
+	private static final long MAX_CHUNK = 1L << 28;
+
+	/** Pool to parse chunks */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a loader using the common pool.
+	 */
+	public ParallelObjLoader() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a loader using a pool.
+	 *
+	 * @param pool pool to parse chunks
+	 */
+	public ParallelObjLoader(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Parse a file.
+	 *
+	 * @param file .OBJ file
+	 * @return parsed records
+	 * @throws IOException
+	 */
+	MeshBuilder parse(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			return parse(ch, ch.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parse the first bytes of a file.
+	 *
+	 * @param ch file channel
+	 * @param size number of bytes to parse
+	 * @return parsed records
+	 * @throws IOException
+	 */
+	MeshBuilder parse(FileChannel ch, long size) throws IOException {
+		if (size == 0) {
+			// e.g. a file truncated by an editor before it is written.
+			return new MeshBuilder();
+		}
+		long[] bounds = split(ch, size);
+		MeshBuilder[] parts = new MeshBuilder[bounds.length - 1];
+		pool.invoke(new ChunkTask(ch, bounds, parts, 0, parts.length));
+		return parts.length == 1 ? parts[0] : MeshBuilder.concat(parts);
+	}
+
+	/**
+	 * Cut a file into chunks which start at the beginning of a line.
+	 *
+	 * @param ch file channel
+	 * @param size file size
+	 * @return chunk boundaries including 0 and the size
+	 * @throws IOException
+	 */
+	private long[] split(FileChannel ch, long size) throws IOException {
+		long chunk = size / (pool.getParallelism() * 4L);
+		chunk = Math.min(Math.max(chunk, MIN_CHUNK), MAX_CHUNK);
+		int n = (int) ((size + chunk - 1) / chunk);
+		long[] bounds = new long[n + 1];
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		int count = 1;
+		for (int i = 1; i < n; i++) {
+			long pos = Math.max(i * chunk, bounds[count - 1]);
+			// Move the boundary after the next newline.
+			search: while (pos < size) {
+				buf.clear();
+				int len = ch.read(buf, pos);
+				if (len <= 0) {
+					pos = size;
+					break;
+				}
+				for (int j = 0; j < len; j++) {
+					if (buf.get(j) == '\n') {
+						pos += j + 1;
+						break search;
+					}
+				}
+				pos += len;
+			}
+			if (pos < size && pos > bounds[count - 1]) {
+				bounds[count++] = pos;
+			}
+		}
+		bounds[count++] = size;
+		if (count == bounds.length) {
+			return bounds;
+		}
+		long[] b = new long[count];
+		System.arraycopy(bounds, 0, b, 0, count);
+		return b;
+	}
+
+	/**
+	 * Task to parse a range of chunks.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		/** Serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** File channel */
+		private final FileChannel ch;
+
+		/** Chunk boundaries */
+		private final long[] bounds;
+
+		/** Results of chunks */
+		private final MeshBuilder[] parts;
+
+		/** First chunk */
+		private final int from;
+
+		/** Last chunk (exclusive) */
+		private final int to;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param ch file channel
+		 * @param bounds chunk boundaries
+		 * @param parts results of chunks
+		 * @param from first chunk
+		 * @param to last chunk (exclusive)
+		 */
+		ChunkTask(FileChannel ch, long[] bounds, MeshBuilder[] parts, int from, int to) {
+			this.ch = ch;
+			this.bounds = bounds;
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ChunkTask(ch, bounds, parts, from, mid),
+						new ChunkTask(ch, bounds, parts, mid, to));
+				return;
+			}
+			long start = bounds[from];
+			int len = (int) (bounds[from + 1] - start);
+			try {
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, len);
+				MeshBuilder part = new MeshBuilder();
+				part.parse(buf, 0, len, true);
+				parts[from] = part;
+			} catch (IOException e) {
+				completeExceptionally(e);
+			}
+		}
+	}
+}
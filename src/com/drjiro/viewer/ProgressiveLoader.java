@@ -0,0 +1,294 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: ProgressiveLoader.java
+ *
+ * Loads a .OBJ file on a background thread and publishes it in batches.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>
+ * Loads a .OBJ file on a background thread and publishes it in batches.
+ * </p>
+ * Faces are added to the object as they are parsed, so the renderer can
+ * draw a partial model while the rest is streaming. Corners are welded as
+ * they arrive and the arrays grow by doubling; published parts of the
+ * arrays are never changed.
+ *
+ * @author wada
+ */
+public class ProgressiveLoader implements Runnable {
+	/** Faces in the first batch */
+	private static final int FIRST_BATCH = 1024;
+
+	/** Maximum faces in a batch */
+	private static final int MAX_BATCH = 1 << 16;
+
+	/**
+	 * Receiver of the loading progress. Methods are called on the loading
+	 * thread.
+	 */
+	public interface Listener {
+		/**
+		 * A batch of faces was added to the object.
+		 *
+		 * @param obj object being loaded
+		 */
+		void batchLoaded(Object3D obj);
+
+		/**
+		 * Loading finished.
+		 *
+		 * @param obj loaded object
+		 * @param e exception on failure, or null
+		 */
+		void loadFinished(Object3D obj, Exception e);
+	}
+
+	/** Object to load */
+	private final Object3D obj;
+
+	/** URL to load, or null */
+	private final URL url;
+
+	/** Local file to load, or null */
+	private final File file;
+
+	/** Receiver of the progress */
+	private final Listener listener;
+
+	/**
+	 * Create a loader of a URL.
+	 *
+	 * @param obj object to load
+	 * @param url URL of the .OBJ file
+	 * @param listener receiver of the progress
+	 */
+	public ProgressiveLoader(Object3D obj, URL url, Listener listener) {
+		this.obj = obj;
+		this.url = url;
+		this.file = null;
+		this.listener = listener;
+	}
+
+	/**
+	 * Create a loader of a local file.
+	 *
+	 * @param obj object to load
+	 * @param file .OBJ file
+	 * @param listener receiver of the progress
+	 */
+	public ProgressiveLoader(Object3D obj, File file, Listener listener) {
+		this.obj = obj;
+		this.url = null;
+		this.file = file;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start loading on a daemon thread.
+	 *
+	 * @return the loading thread
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "ProgressiveLoader");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			if (file != null && MeshFile.isCached(file, obj)) {
+				// The cache is loaded at once.
+				obj.load(file);
+				listener.batchLoaded(obj);
+			} else {
+				// Material libraries are read relative to the model.
+				obj.url = url != null ? url : file.toURI().toURL();
+				InputStream is = url != null ? url.openStream() : new FileInputStream(file);
+				ReadableByteChannel ch = DecompressingChannel.open(is);
+				try {
+					Streamer streamer = new Streamer();
+					streamer.parse(ch);
+					streamer.publish();
+					if (streamer.normalCount == 0 && streamer.faceCount > 0
+							|| streamer.faceMaterials != null) {
+						// Rebuild with the normals generated from all faces,
+						// or with the faces grouped by material.
+						obj.build(streamer);
+						listener.batchLoaded(obj);
+					}
+				} finally {
+					ch.close();
+				}
+				if (file != null) {
+					try {
+						MeshFile.writeCache(file, obj);
+					} catch (IOException e) {
+						// The cache is optional.
+					}
+				}
+			}
+			listener.loadFinished(obj, null);
+		} catch (Exception e) {
+			listener.loadFinished(obj, e);
+		}
+	}
+
+	/**
+	 * Parser which publishes faces in batches.
+	 */
+	private class Streamer extends MeshBuilder {
+		/** Welder of corners */
+		private final VertexWelder welder = new VertexWelder(1024);
+
+		/** Vertex coordinates */
+		private float[] p = new float[3 * 1024];
+
+		/** UV coordinates */
+		private float[] t = new float[2 * 1024];
+
+		/** Normal vectors */
+		private float[] n = new float[3 * 1024];
+
+		/** Vertex indices */
+		private int[] idx = new int[3 * 1024];
+
+		/** Number of published faces */
+		private int published;
+
+		/** Faces in the next batch */
+		private int batch = FIRST_BATCH;
+
+		/** Total of coordinates for the center */
+		private float totalx, totaly, totalz;
+
+		/** Maximum absolute coordinate */
+		private float maxAbs = obj.radius;
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#vertex(float, float, float)
+		 */
+		protected void vertex(float x, float y, float z) {
+			super.vertex(x, y, z);
+			maxAbs = Math.max(maxAbs, Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z))));
+			totalx += x;
+			totaly += y;
+			totalz += z;
+		}
+
+		/**
+		 * @see com.drjiro.viewer.MeshBuilder#face(int[])
+		 */
+		protected void face(int[] c) {
+			super.face(c);
+			if (faceCount - published >= batch) {
+				publish();
+				batch = Math.min(batch * 2, MAX_BATCH);
+			}
+		}
+
+		/**
+		 * Weld the new faces and publish them to the object.
+		 */
+		void publish() {
+			int vertexCount = welder.size();
+			int end = faceCount * 3;
+			if (idx.length < end) {
+				idx = copyOf(idx, Math.max(idx.length * 2, end));
+			}
+			for (int i = published * 3; i < end; i++) {
+				int iv = corners[i * 3];
+				int it = corners[i * 3 + 1];
+				int in = corners[i * 3 + 2];
+				int index = welder.add(iv, it, in);
+				if (index == vertexCount) {
+					addVertex(index, iv, it, in);
+					vertexCount++;
+				}
+				idx[i] = index;
+			}
+			published = faceCount;
+
+			// Bounds first, then the mesh, whose triangle count is written last.
+			if (this.vertexCount > 0) {
+				obj.center.x = totalx / this.vertexCount;
+				obj.center.y = totaly / this.vertexCount;
+				obj.center.z = totalz / this.vertexCount;
+			}
+			obj.radius = maxAbs;
+			obj.setMesh(p, t, n, idx, vertexCount, faceCount);
+			listener.batchLoaded(obj);
+		}
+
+		/**
+		 * Add a welded vertex.
+		 *
+		 * @param index vertex index
+		 * @param iv vertex record
+		 * @param it UV record
+		 * @param in normal record
+		 */
+		private void addVertex(int index, int iv, int it, int in) {
+			if (p.length < (index + 1) * 3) {
+				// Grown copies, so that published arrays are not changed.
+				p = copyOf(p, p.length * 2);
+				t = copyOf(t, t.length * 2);
+				n = copyOf(n, n.length * 2);
+			}
+			p[index * 3] = positions[iv * 3];
+			p[index * 3 + 1] = positions[iv * 3 + 1];
+			p[index * 3 + 2] = positions[iv * 3 + 2];
+			if (it != NONE) {
+				t[index * 2] = uvs[it * 3];
+				t[index * 2 + 1] = uvs[it * 3 + 1];
+			}
+			if (in != NONE) {
+				n[index * 3] = normals[in * 3];
+				n[index * 3 + 1] = normals[in * 3 + 1];
+				n[index * 3 + 2] = normals[in * 3 + 2];
+			}
+		}
+	}
+
+	/**
+	 * Copy a float array into a larger one.
+	 *
+	 * @param a array
+	 * @param length new length
+	 * @return copy
+	 */
+	private static float[] copyOf(float[] a, int length) {
+		float[] b = new float[length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * Copy an int array into a larger one.
+	 *
+	 * @param a array
+	 * @param length new length
+	 * @return copy
+	 */
+	private static int[] copyOf(int[] a, int length) {
+		int[] b = new int[length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
@@ -0,0 +1,838 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: RenderBenchmark.java
+ *
+ * Benchmark of the texture renderer.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmark of the texture renderer. Renders a rotating model offscreen and
+ * reports the frame time and the heap used by the model.
+ *
+ * @author wada
+ */
+public class RenderBenchmark {
+	/** Width and height of the screen */
+	private static final int SIZE = 400;
+
+	/**
+	 * Get the used heap after a garbage collection.
+	 *
+	 * @return used bytes
+	 */
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Load a texture for a .OBJ file, or create a checker texture.
+	 *
+	 * @param file .OBJ file
+	 * @return texture
+	 * @throws IOException
+	 */
+	static BufferedImage loadTexture(File file) throws IOException {
+		String name = file.getPath();
+		File jpg = new File(name.substring(0, name.length() - 4) + ".jpg");
+		if (jpg.isFile()) {
+			return ImageIO.read(jpg);
+		}
+		BufferedImage texture = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				texture.setRGB(x, y, ((x ^ y) & 32) != 0 ? 0xffffff : 0x808080);
+			}
+		}
+		return texture;
+	}
+
+	/**
+	 * Create the world matrix as the viewer does.
+	 *
+	 * @param obj 3D object
+	 * @param angle rotation around the Y axis
+	 * @return world matrix
+	 */
+	static Matrix4f createMatrix(Object3D obj, float angle) {
+		return createMatrix(obj.getCenter(), obj.getRadius(), angle);
+	}
+
+	/**
+	 * Create the world matrix for a bounding sphere.
+	 *
+	 * @param center center of the object
+	 * @param radius bounding radius
+	 * @param angle rotation around the Y axis
+	 * @return world matrix
+	 */
+	static Matrix4f createMatrix(Vector3f center, float radius, float angle) {
+		return createMatrix(center, radius, angle, SIZE);
+	}
+
+	/**
+	 * Create the world matrix for a bounding sphere drawn at a size.
+	 *
+	 * @param center center of the object
+	 * @param radius bounding radius
+	 * @param angle rotation around the Y axis
+	 * @param size diameter of the bounding sphere on the screen
+	 * @return world matrix
+	 */
+	static Matrix4f createMatrix(Vector3f center, float radius, float angle, float size) {
+		Matrix4f m = new Matrix4f();
+		float scale = 1.0f / (radius * 2);
+		m.scale(size * scale, size * scale, size * scale);
+		m.rotateX(0.3f);
+		m.rotateY(angle);
+		int dx = (int) (SIZE / 2 - (center.x * size * scale));
+		int dy = (int) (SIZE / 2 - (center.y * size * scale));
+		m.translate(dx, dy, 0);
+		return m;
+	}
+
+	/**
+	 * Render an out-of-core mesh and report the page cache.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @param budget memory budget of the pages in bytes
+	 * @throws IOException
+	 */
+	static void renderPaged(File file, int frames, long budget) throws IOException {
+		if (!MeshFile.isCached(file, new Object3D())) {
+			// Write the mesh file once.
+			new Object3D().load(file);
+		}
+		long before = usedHeap();
+		PagedMesh mesh = new PagedMesh(MeshFile.getCacheFile(file), budget);
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			renderer.setTransform(createMatrix(mesh.getCenter(), mesh.getRadius(), i * 0.05f));
+			renderer.render(mesh, camera, g);
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / frames;
+		long heap = usedHeap() - before;
+		System.out.println("vertices=" + mesh.getVertexCount() + " triangles="
+				+ mesh.getTriangleCount() + " pages=" + mesh.getPageCount() + " resident="
+				+ mesh.getResidentBytes() / 1024 + " KB heap=" + heap / 1024 + " KB hits="
+				+ mesh.getHits() + " misses=" + mesh.getMisses() + " evictions="
+				+ mesh.getEvictions() + " frame=" + (float) ms + " ms");
+	}
+
+	/**
+	 * Render a quantized mesh and compare it with the float mesh.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderCompressed(File file, int frames) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		CompressedMesh mesh = new CompressedMesh(obj);
+		long bytes = 4L * (obj.getPositionArray().length + obj.getUvArray().length
+				+ obj.getNormalArray().length + obj.getIndexArray().length);
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		BufferedImage reference = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Camera camera = new Camera();
+
+		// Count the pixels which differ from the float mesh by more than 8.
+		renderer.setTransform(createMatrix(obj, 0));
+		renderer.render(obj, camera, reference.createGraphics(), false);
+		renderer.render(mesh, camera, image.createGraphics());
+		int differ = 0;
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int a = reference.getRGB(x, y);
+				int b = image.getRGB(x, y);
+				for (int shift = 0; shift < 24; shift += 8) {
+					if (Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)) > 8) {
+						differ++;
+						break;
+					}
+				}
+			}
+		}
+
+		Graphics2D g = image.createGraphics();
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			renderer.setTransform(createMatrix(mesh.getCenter(), mesh.getRadius(), i * 0.05f));
+			renderer.render(mesh, camera, g);
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / frames;
+		System.out.println("vertices=" + mesh.getVertexCount() + " triangles="
+				+ mesh.getTriangleCount() + " mesh=" + bytes / 1024 + " KB compressed="
+				+ mesh.getBytes() / 1024 + " KB ratio=" + (float) bytes / mesh.getBytes()
+				+ " differing pixels=" + differ + " frame=" + (float) ms + " ms");
+	}
+
+	/**
+	 * Render a rotating object after warming up.
+	 *
+	 * @param file .OBJ file
+	 * @param obj 3D object
+	 * @param frames number of frames
+	 * @return time of a frame in milliseconds
+	 * @throws IOException
+	 */
+	static double renderFrames(File file, Object3D obj, int frames) throws IOException {
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+
+		// Warm up.
+		for (int i = 0; i < Math.max(frames / 10, 1); i++) {
+			renderer.setTransform(createMatrix(obj, i * 0.05f));
+			renderer.render(obj, camera, g, false);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			renderer.setTransform(createMatrix(obj, i * 0.05f));
+			renderer.render(obj, camera, g, false);
+		}
+		return (System.nanoTime() - start) / 1e6 / frames;
+	}
+
+	/**
+	 * Render a mesh in the file order and optimized, and report the cache
+	 * miss ratios and the frame times.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderOptimized(File file, int frames) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		float acmr = MeshOptimizer.getAcmr(obj.getIndexArray(), obj.getTriangleCount(),
+				MeshOptimizer.CACHE_SIZE);
+		double ms = renderFrames(file, obj, frames);
+
+		long start = System.nanoTime();
+		obj.optimize();
+		double optimizeMs = (System.nanoTime() - start) / 1e6;
+		float optimizedAcmr = MeshOptimizer.getAcmr(obj.getIndexArray(), obj.getTriangleCount(),
+				MeshOptimizer.CACHE_SIZE);
+		double optimizedMs = renderFrames(file, obj, frames);
+		System.out.println("vertices=" + obj.getVertexCount() + " triangles="
+				+ obj.getTriangleCount() + " optimize=" + (float) optimizeMs + " ms ACMR="
+				+ acmr + " -> " + optimizedAcmr + " frame=" + (float) ms + " -> "
+				+ (float) optimizedMs + " ms");
+	}
+
+	/**
+	 * Render a mesh at decreasing screen sizes with and without levels of
+	 * detail, and report the triangles drawn and the frame times.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderLod(File file, int frames) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		long start = System.nanoTime();
+		LodChain lods = new LodChain(obj);
+		double simplifyMs = (System.nanoTime() - start) / 1e6;
+		System.out.print("simplify=" + (float) simplifyMs + " ms levels=");
+		for (int i = 0; i < lods.getLevelCount(); i++) {
+			System.out.print((i > 0 ? "," : "") + lods.getLevel(i).getTriangleCount());
+		}
+		System.out.println();
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+		float[] sizes = { SIZE, SIZE / 2, SIZE / 4, SIZE / 10 };
+		for (int s = 0; s < sizes.length; s++) {
+			double[] ms = new double[2];
+			Object3D level = obj;
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = -Math.max(frames / 10, 1); i < frames; i++) {
+					if (i == 0) {
+						start = System.nanoTime();
+					}
+					Matrix4f m = createMatrix(obj.getCenter(), obj.getRadius(), i * 0.05f, sizes[s]);
+					renderer.setTransform(m);
+					if (pass == 0) {
+						renderer.render(obj, camera, g, false);
+					} else {
+						level = lods.select(LodChain.getScreenRadius(obj, m));
+						renderer.render(lods, camera, g, false);
+					}
+				}
+				ms[pass] = (System.nanoTime() - start) / 1e6 / frames;
+			}
+			System.out.println("size=" + (int) sizes[s] + " triangles=" + obj.getTriangleCount()
+					+ " -> " + level.getTriangleCount() + " frame=" + (float) ms[0] + " -> "
+					+ (float) ms[1] + " ms");
+		}
+	}
+
+	/**
+	 * Render an optimized mesh with and without culling clusters, and
+	 * report the culled triangles, the differing pixels and the frame times.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderMeshlets(File file, int frames) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		obj.optimize();
+		double ms = renderFrames(file, obj, frames);
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage reference = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Camera camera = new Camera();
+		renderer.setTransform(createMatrix(obj, 0));
+		renderer.render(obj, camera, reference.createGraphics(), false);
+
+		obj.buildMeshlets();
+		renderer.render(obj, camera, image.createGraphics(), false);
+		int culled = renderer.getCulledTriangles();
+		int differ = 0;
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				if (reference.getRGB(x, y) != image.getRGB(x, y)) {
+					differ++;
+				}
+			}
+		}
+		double culledMs = renderFrames(file, obj, frames);
+		System.out.println("triangles=" + obj.getTriangleCount() + " meshlets="
+				+ obj.getMeshlets().getCount() + " culled=" + culled + " ("
+				+ (float) culled * 100 / obj.getTriangleCount() + " %) differing pixels=" + differ
+				+ " frame=" + (float) ms + " -> " + (float) culledMs + " ms");
+	}
+
+	/**
+	 * Render a model and report the vertices transformed and lit against
+	 * the triangle corners drawn.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderVertices(File file, int frames) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		renderer.setTransform(createMatrix(obj, 0));
+		renderer.render(obj, new Camera(), image.createGraphics(), false);
+		int processed = renderer.getProcessedVertices();
+		int corners = renderer.getReferencedCorners();
+		double ms = renderFrames(file, obj, frames);
+		System.out.println("vertices=" + obj.getVertexCount() + " processed=" + processed
+				+ " corners=" + corners + " (" + (float) corners / processed
+				+ " per vertex) frame=" + (float) ms + " ms");
+	}
+
+	/**
+	 * Bake the ambient occlusion of a model, read it again from the cache,
+	 * and compare the frame time with and without it.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderOcclusion(File file, int frames) throws IOException {
+		AmbientOcclusion.getCacheFile(file).delete();
+		Object3D obj = new Object3D();
+		obj.load(file);
+		long start = System.nanoTime();
+		obj.bakeOcclusion();
+		double bakeMs = (System.nanoTime() - start) / 1e6;
+
+		Object3D cached = new Object3D();
+		cached.load(file);
+		start = System.nanoTime();
+		cached.bakeOcclusion();
+		double cachedMs = (System.nanoTime() - start) / 1e6;
+
+		Object3D plain = new Object3D();
+		plain.share(obj);
+		plain.occlusion = null;
+		// Warm both up, then alternate them so neither gets the JIT time.
+		renderFrames(file, plain, frames);
+		renderFrames(file, obj, frames);
+		double ms = 0;
+		double aoMs = 0;
+		for (int i = 0; i < 3; i++) {
+			ms += renderFrames(file, plain, frames) / 3;
+			aoMs += renderFrames(file, obj, frames) / 3;
+		}
+		System.out.println("vertices=" + obj.getVertexCount() + " rays="
+				+ AmbientOcclusion.DEFAULT_SAMPLES + " bake=" + (float) bakeMs + " ms cached="
+				+ (float) cachedMs + " ms mean=" + obj.getOcclusion().getMean() + " frame="
+				+ (float) ms + " -> " + (float) aoMs + " ms");
+	}
+
+	/**
+	 * Render a model having materials one batch at a time, and compare the
+	 * texture switches with the material changes of the faces in the file
+	 * order.
+	 *
+	 * @param file .OBJ file using a .MTL library
+	 * @param frames number of frames
+	 * @throws IOException
+	 */
+	static void renderMaterials(File file, int frames) throws IOException {
+		MeshBuilder b = new ParallelObjLoader().parse(file);
+		int changes = 0;
+		for (int f = 1; f < b.faceCount && b.faceMaterials != null; f++) {
+			if (b.faceMaterials[f] != b.faceMaterials[f - 1]) {
+				changes++;
+			}
+		}
+
+		Object3D obj = new Object3D();
+		obj.load(file);
+		obj.optimize();
+		obj.buildMeshlets();
+		MaterialBatches batches = obj.getMaterialBatches();
+		if (batches == null) {
+			System.err.println("No materials in " + file);
+			return;
+		}
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+		long start = System.nanoTime();
+		int switches = 0;
+		for (int i = 0; i < frames; i++) {
+			renderer.setTransform(createMatrix(obj, i * 0.05f));
+			renderer.render(obj, camera, g, false);
+			switches += renderer.getTextureSwitches();
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / frames;
+		int defined = 0;
+		for (int i = 0; i < batches.getCount(); i++) {
+			if (batches.getMaterial(i) != null) {
+				defined++;
+			}
+		}
+		System.out.println("triangles=" + obj.getTriangleCount() + " materials="
+				+ b.materialNames.size() + " defined=" + defined + " batches="
+				+ batches.getCount() + " changes in file order=" + changes
+				+ " texture switches per frame=" + (float) switches / frames + " frame="
+				+ (float) ms + " ms");
+	}
+
+	/**
+	 * Render one snapshot from several threads, each with its own view and
+	 * renderer, while the source object is edited, and compare the last
+	 * frames with a frame rendered alone.
+	 *
+	 * @param file .OBJ file
+	 * @param frames number of frames per thread
+	 * @throws IOException
+	 */
+	static void renderShared(File file, int frames) throws IOException {
+		final Object3D obj = new Object3D();
+		obj.load(file);
+		final Mesh mesh = obj.snapshot();
+		final BufferedImage texture = loadTexture(file);
+		final int count = frames;
+		final float angle = (frames - 1) * 0.05f;
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(texture);
+		BufferedImage reference = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		renderer.setTransform(createMatrix(obj, angle));
+		renderer.render(mesh.createView(), new Camera(), reference.createGraphics(), false);
+		double ms = renderFrames(file, mesh.createView(), frames);
+
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		final BufferedImage[] images = new BufferedImage[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int k = t;
+			workers[t] = new Thread(new Runnable() {
+				/**
+				 * Render the frames of a view.
+				 *
+				 * @see java.lang.Runnable#run()
+				 */
+				public void run() {
+					Object3D view = mesh.createView();
+					TextureRenderer r = new TextureRenderer(SIZE, SIZE);
+					r.setTexture(texture);
+					images[k] = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+					Graphics2D g = images[k].createGraphics();
+					Camera camera = new Camera();
+					for (int i = 0; i < count; i++) {
+						r.setTransform(createMatrix(view, i * 0.05f));
+						r.render(view, camera, g, false);
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			workers[t].start();
+		}
+		// Edit the source meanwhile; the snapshot must not change.
+		obj.optimize();
+		NormalGenerator.generate(obj);
+		for (int t = 0; t < threads; t++) {
+			try {
+				workers[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		double sharedMs = (System.nanoTime() - start) / 1e6 / (frames * threads);
+		int differ = 0;
+		for (int t = 0; t < threads; t++) {
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) {
+					if (reference.getRGB(x, y) != images[t].getRGB(x, y)) {
+						differ++;
+					}
+				}
+			}
+		}
+		System.out.println("triangles=" + mesh.getTriangleCount() + " threads=" + threads
+				+ " differing pixels=" + differ + " frame=" + (float) ms + " ms alone, "
+				+ (float) sharedMs + " ms per frame shared");
+	}
+
+	/**
+	 * Play a sequence of .OBJ files as a vertex animation, and report the
+	 * encoded size and the frame rate.
+	 *
+	 * @param file first file of the sequence
+	 * @param frames number of frames to render
+	 * @throws IOException
+	 */
+	static void renderAnimation(File file, int frames) throws IOException {
+		File[] files = VertexAnimation.findSequence(file);
+		long start = System.nanoTime();
+		VertexAnimation animation = new VertexAnimation(files);
+		double loadMs = (System.nanoTime() - start) / 1e6;
+		Object3D obj = animation.getObject();
+		long raw = 4L * 6 * obj.getVertexCount() * files.length;
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(file));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+		renderer.setTransform(createMatrix(obj, 0));
+		animation.start();
+		int swapped = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			if (animation.swap()) {
+				swapped++;
+			}
+			renderer.render(obj, camera, g, false);
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / frames;
+		animation.stop();
+		System.out.println("frames=" + files.length + " vertices=" + obj.getVertexCount()
+				+ " load=" + (float) loadMs + " ms positions and normals=" + raw / 1024
+				+ " KB encoded=" + animation.getBytes() / 1024 + " KB swapped=" + swapped + "/"
+				+ frames + " frame=" + (float) ms + " ms (" + (int) (1000 / ms) + " fps)");
+	}
+
+	/**
+	 * Build a bounding volume hierarchy and pick random points of the screen,
+	 * checking a sample of the picks against all triangles.
+	 *
+	 * @param file .OBJ file
+	 * @param picks number of picks
+	 * @throws IOException
+	 */
+	static void renderPick(File file, int picks) throws IOException {
+		Object3D obj = new Object3D();
+		obj.load(file);
+		Bvh bvh = null;
+		double buildMs = 0;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			bvh = new Bvh(obj);
+			buildMs = (System.nanoTime() - start) / 1e6;
+		}
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTransform(createMatrix(obj, 0.5f));
+		Random random = new Random(1);
+		int hits = 0;
+		for (int i = 0; i < picks / 10; i++) {
+			renderer.pick(bvh, random.nextInt(SIZE), random.nextInt(SIZE));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < picks; i++) {
+			if (renderer.pick(bvh, random.nextInt(SIZE), random.nextInt(SIZE)) != null) {
+				hits++;
+			}
+		}
+		double us = (System.nanoTime() - start) / 1e3 / picks;
+
+		// The nearest distances must equal those of a scan of all triangles.
+		Matrix4f inv = new Matrix4f();
+		inv.invertAffine(createMatrix(obj, 0.5f));
+		int wrong = 0;
+		for (int i = 0; i < 200; i++) {
+			float x = random.nextInt(SIZE);
+			float y = random.nextInt(SIZE);
+			float ox = inv.m00 * x + inv.m10 * y + inv.m30;
+			float oy = inv.m01 * x + inv.m11 * y + inv.m31;
+			float oz = inv.m02 * x + inv.m12 * y + inv.m32;
+			Bvh.Hit hit = bvh.intersect(ox, oy, oz, inv.m20, inv.m21, inv.m22);
+			float nearest = scan(obj, ox, oy, oz, inv.m20, inv.m21, inv.m22);
+			if (hit == null ? nearest != Float.POSITIVE_INFINITY : hit.distance != nearest) {
+				wrong++;
+			}
+		}
+		System.out.println("triangles=" + obj.getTriangleCount() + " nodes="
+				+ bvh.getNodeCount() + " build=" + (float) buildMs + " ms pick=" + (float) us
+				+ " us (" + (int) (1e6 / us) + " picks/s) hits=" + hits * 100 / picks
+				+ " % wrong=" + wrong + "/200");
+	}
+
+	/**
+	 * Find the nearest distance to the triangles on a line by testing every
+	 * triangle.
+	 *
+	 * @param obj 3D object
+	 * @param ox X of a point on the line
+	 * @param oy Y of a point on the line
+	 * @param oz Z of a point on the line
+	 * @param dx X of the direction
+	 * @param dy Y of the direction
+	 * @param dz Z of the direction
+	 * @return nearest distance, or infinity
+	 */
+	private static float scan(Object3D obj, float ox, float oy, float oz, float dx, float dy,
+			float dz) {
+		float[] positions = obj.getPositionArray();
+		int[] indices = obj.getIndexArray();
+		float nearest = Float.POSITIVE_INFINITY;
+		for (int t = 0; t < obj.getTriangleCount(); t++) {
+			int p0 = indices[t * 3] * 3;
+			int p1 = indices[t * 3 + 1] * 3;
+			int p2 = indices[t * 3 + 2] * 3;
+			float e1x = positions[p1] - positions[p0];
+			float e1y = positions[p1 + 1] - positions[p0 + 1];
+			float e1z = positions[p1 + 2] - positions[p0 + 2];
+			float e2x = positions[p2] - positions[p0];
+			float e2y = positions[p2 + 1] - positions[p0 + 1];
+			float e2z = positions[p2 + 2] - positions[p0 + 2];
+			float px = dy * e2z - dz * e2y;
+			float py = dz * e2x - dx * e2z;
+			float pz = dx * e2y - dy * e2x;
+			float det = e1x * px + e1y * py + e1z * pz;
+			if (det == 0) {
+				continue;
+			}
+			float inv = 1 / det;
+			float sx = ox - positions[p0];
+			float sy = oy - positions[p0 + 1];
+			float sz = oz - positions[p0 + 2];
+			float u = (sx * px + sy * py + sz * pz) * inv;
+			float qx = sy * e1z - sz * e1y;
+			float qy = sz * e1x - sx * e1z;
+			float qz = sx * e1y - sy * e1x;
+			float v = (dx * qx + dy * qy + dz * qz) * inv;
+			if (u >= 0 && v >= 0 && u + v <= 1) {
+				nearest = Math.min(nearest, (e2x * qx + e2y * qy + e2z * qz) * inv);
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Tessellate a parametric shape for growing sizes on the screen, and
+	 * report the triangles, the mean edge length on the screen, the time to
+	 * refine and the frame time.
+	 *
+	 * @param name name of a shape of SimpleShape
+	 * @param frames number of frames per size
+	 * @throws IOException
+	 */
+	static void renderAdaptive(String name, int frames) throws IOException {
+		int shape = SimpleShape.getShape(name);
+		AdaptiveTessellator tessellator = new AdaptiveTessellator(shape, 1);
+		tessellator.start();
+		Mesh coarsest = tessellator.select(new Matrix4f());
+		Vector3f center = coarsest.getCenter();
+		float radius = coarsest.getRadius();
+
+		TextureRenderer renderer = new TextureRenderer(SIZE, SIZE);
+		renderer.setTexture(loadTexture(new File(name + ".obj")));
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_BGR);
+		Graphics2D g = image.createGraphics();
+		Camera camera = new Camera();
+		for (int size = 25; size <= SIZE * 4; size *= 2) {
+			Matrix4f m = createMatrix(center, radius, 0, size);
+			long start = System.nanoTime();
+			Mesh mesh = tessellator.select(m);
+			while (!tessellator.isReady()) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			mesh = tessellator.select(m);
+			double refineMs = (System.nanoTime() - start) / 1e6;
+
+			// Mean length of the edges on the screen.
+			float[] positions = mesh.getPositionArray();
+			int[] indices = mesh.getIndexArray();
+			double sum = 0;
+			for (int i = 0; i < mesh.getTriangleCount() * 3; i++) {
+				int a = indices[i] * 3;
+				int b = indices[i % 3 == 2 ? i - 2 : i + 1] * 3;
+				float dx = positions[a] - positions[b];
+				float dy = positions[a + 1] - positions[b + 1];
+				float dz = positions[a + 2] - positions[b + 2];
+				float sx = m.m00 * dx + m.m10 * dy + m.m20 * dz;
+				float sy = m.m01 * dx + m.m11 * dy + m.m21 * dz;
+				sum += Math.sqrt(sx * sx + sy * sy);
+			}
+			System.out.print("size=" + size + " triangles=" + mesh.getTriangleCount()
+					+ " edge=" + (float) (sum / (mesh.getTriangleCount() * 3)) + " px refine="
+					+ (float) refineMs + " ms");
+
+			if (size <= SIZE) {
+				Object3D view = mesh.createView();
+				for (int i = -Math.max(frames / 10, 1); i < frames; i++) {
+					if (i == 0) {
+						start = System.nanoTime();
+					}
+					renderer.setTransform(createMatrix(center, radius, i * 0.05f, size));
+					renderer.render(view, camera, g, false);
+				}
+				System.out.print(" frame=" + (float) ((System.nanoTime() - start) / 1e6 / frames)
+						+ " ms");
+			}
+			System.out.println();
+		}
+		tessellator.stop();
+	}
+
+	/**
+	 * Entry point of this benchmark.
+	 *
+	 * @param args file name, the number of frames, and the page budget in MB
+	 *            to render out of core, "compressed" to render quantized,
+	 *            "optimized" to compare the optimized triangle order, "lod"
+	 *            to compare levels of detail, "meshlets" to compare culling
+	 *            clusters, "pick" to pick faces as many times as frames,
+	 *            "shared" to render a snapshot from several threads,
+	 *            "animation" to play the numbered files from the given one or
+	 *            "materials" to count the texture switches of materials,
+	 *            "occlusion" to bake the ambient occlusion, "adaptive" to
+	 *            tessellate the shape named instead of the file as it grows
+	 *            or "vertices" to count the vertices transformed per frame
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: com.drjiro.viewer.RenderBenchmark filename [frames [budgetMB|compressed|optimized|lod|meshlets|pick|shared|animation|materials|occlusion|adaptive|vertices]]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		if (args.length > 2 && args[2].equals("compressed")) {
+			renderCompressed(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("optimized")) {
+			renderOptimized(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("lod")) {
+			renderLod(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("meshlets")) {
+			renderMeshlets(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("animation")) {
+			renderAnimation(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("shared")) {
+			renderShared(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("occlusion")) {
+			renderOcclusion(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("materials")) {
+			renderMaterials(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("adaptive")) {
+			renderAdaptive(args[0], frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("vertices")) {
+			renderVertices(file, frames);
+			return;
+		}
+		if (args.length > 2 && args[2].equals("pick")) {
+			renderPick(file, frames);
+			return;
+		}
+		if (args.length > 2) {
+			renderPaged(file, frames, Long.parseLong(args[2]) << 20);
+			return;
+		}
+		long before = usedHeap();
+		Object3D obj = new Object3D();
+		obj.load(file);
+		long heap = usedHeap() - before;
+
+		double ms = renderFrames(file, obj, frames);
+		System.out.println("vertices=" + obj.getVertexCount() + " triangles="
+				+ obj.getTriangleCount() + " heap=" + heap / 1024 + " KB frame="
+				+ (float) ms + " ms");
+	}
+}
@@ -11,12 +11,98 @@
 
 package com.drjiro.viewer;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * Create a simple shapes for testing.
+ * <p>
+ * Besides the doughnut, a torus, a subdivided sphere, a noise terrain and a
+ * soup of random triangles are generated for load tests. They write the
+ * indexed arrays directly, in parallel over rows of the same size, and every
+ * random number is a hash of the seed and the element, so a shape does not
+ * depend on the number of threads and scales to tens of millions of
+ * triangles. The torus, the sphere and the terrain can also be tessellated
+ * for an edge length, see {@link AdaptiveTessellator}.
  * 
  * @author wada
  */
 public class SimpleShape extends Object3D {
+	/** Torus */
+	public static final int TORUS = 0;
+
+	/** Subdivided icosahedron */
+	public static final int SPHERE = 1;
+
+	/** Height field of fractal noise */
+	public static final int TERRAIN = 2;
+
+	/** Unconnected random triangles */
+	public static final int SOUP = 3;
+
+	/** Names of the shapes */
+	private static final String[] NAMES = { "torus", "sphere", "terrain", "soup" };
+
+	/** Rows or triangles handled by a task without splitting */
+	private static final int GRAIN = 1 << 12;
+
+	/** Radius of the tube of a torus to the radius of its ring */
+	private static final float TUBE_RATIO = 0.4f;
+
+	/** Octaves of the terrain noise */
+	private static final int OCTAVES = 6;
+
+	/** Largest height of the terrain to its width */
+	private static final float TERRAIN_HEIGHT = 0.25f;
+
+	/** Edge length of the triangles of a soup */
+	private static final float SOUP_SIZE = 0.05f;
+
+	/** Length of the ring of a torus */
+	private static final float RING_LENGTH = (float) (Math.PI * 2 * (1 + TUBE_RATIO));
+
+	/** Length around the tube of a torus */
+	private static final float TUBE_LENGTH = (float) (Math.PI * 2 * TUBE_RATIO);
+
+	/** Edge length of an icosahedron in the unit sphere */
+	private static final float ICOSAHEDRON_EDGE = (float) (4 / Math.sqrt(10 + 2 * Math.sqrt(5)));
+
+	/** Golden ratio, for the icosahedron */
+	private static final float PHI = (float) ((1 + Math.sqrt(5)) / 2);
+
+	/** Vertices of the icosahedron */
+	private static final float[] ICOSAHEDRON_VERTICES = { -1, PHI, 0, 1, PHI, 0, -1, -PHI, 0,
+			1, -PHI, 0, 0, -1, PHI, 0, 1, PHI, 0, -1, -PHI, 0, 1, -PHI, PHI, 0, -1, PHI, 0, 1,
+			-PHI, 0, -1, -PHI, 0, 1 };
+
+	/** Faces of the icosahedron, counterclockwise from outside */
+	private static final int[] ICOSAHEDRON_FACES = { 0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0,
+			10, 11, 1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8, 3, 9, 4, 3, 4, 2, 3, 2, 6,
+			3, 6, 8, 3, 8, 9, 4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1 };
+
+	/** Edges of the icosahedron, the lower vertex first */
+	private static final int[] ICOSAHEDRON_EDGES = new int[60];
+
+	static {
+		int n = 0;
+		for (int f = 0; f < 20; f++) {
+			for (int k = 0; k < 3; k++) {
+				int a = ICOSAHEDRON_FACES[f * 3 + k];
+				int b = ICOSAHEDRON_FACES[f * 3 + (k + 1) % 3];
+				if (a < b) {
+					ICOSAHEDRON_EDGES[n++] = a;
+					ICOSAHEDRON_EDGES[n++] = b;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Create doughnut.
 	 * 
@@ -27,103 +113,801 @@ public class SimpleShape extends Object3D {
 		float c = 0;
 		float addc = (float) Math.PI * 2 / n;
 
+		int m = n * n;
+		float[] positions = new float[m * 3];
+		float[] uvs = new float[m * 2];
+		int[] indices = new int[m * 6];
+
 		for (int i = 0; i < n; i++) {
 			float s = (float) Math.sin(c) + 2;
 			float z = (float) Math.cos(c);
 			for (int j = 0; j < n; j++) {
 				float x = (float) (Math.cos(a));
 				float y = (float) (Math.sin(a));
-				Vector3f vertex = new Vector3f(x * s * 0.4f, y * s * 0.4f,
-						z * 0.4f);
-				vertices.add(vertex);
+				int p = (i * n + j) * 3;
+				positions[p] = x * s * 0.4f;
+				positions[p + 1] = y * s * 0.4f;
+				positions[p + 2] = z * 0.4f;
 				a += Math.PI / n * 2;
 			}
 			c += addc;
 		}
 
-		int m = n * n;
+		int f = 0;
 		for (int j = 0; j < n; j++) {
 			int off = j * n;
 			for (int i = 0; i < n; i++) {
-				Face face = new Face(new Vertex(
-						(Vector3f) vertices.get((off + n) % m + (i + 1) % n)),
-						new Vertex((Vector3f) vertices.get(off + (i + 1) % n)),
-						new Vertex((Vector3f) vertices.get(off + i)));
-				faces.add(face);
+				indices[f++] = (off + n) % m + (i + 1) % n;
+				indices[f++] = off + (i + 1) % n;
+				indices[f++] = off + i;
 
-				face = new Face(new Vertex((Vector3f) vertices.get((off + n)
-						% m + i)), new Vertex((Vector3f) vertices.get((off + n)
-						% m + (i + 1) % n)), new Vertex(
-						(Vector3f) vertices.get(off + i)));
-				faces.add(face);
+				indices[f++] = (off + n) % m + i;
+				indices[f++] = (off + n) % m + (i + 1) % n;
+				indices[f++] = off + i;
 			}
 		}
 
+		for (int i = 0; i < m; i++) {
+			uvs[i * 2] = positions[i * 3] / 2 + 0.5f;
+			uvs[i * 2 + 1] = positions[i * 3 + 1] / 2 + 0.5f;
+		}
+		setMesh(positions, uvs, new float[m * 3], indices, m, m * 2);
+
 		// Average normal vectors for a Gouraud shading.
-		for (int i = 0; i < faces.size(); i++) {
-			Face face = (Face) faces.get(i);
-			// Compute normal vector.
-			Vector3f vn = calcNormal(face.vertices[0].v, face.vertices[1].v,
-					face.vertices[2].v);
-			if (face.vertices[0].n == null) {
-				face.vertices[0].n = vn;
-			} else {
-				face.vertices[0].n.add(vn);
-			}
-			vn = calcNormal(face.vertices[0].v, face.vertices[1].v,
-					face.vertices[2].v);
-			if (face.vertices[1].n == null) {
-				face.vertices[1].n = vn;
-			} else {
-				face.vertices[0].n.add(vn);
-			}
-			vn = calcNormal(face.vertices[0].v, face.vertices[1].v,
-					face.vertices[2].v);
-			if (face.vertices[2].n == null) {
-				face.vertices[2].n = vn;
-			} else {
-				face.vertices[2].n.add(vn);
-			}
-			face.vertices[0].addUsed();
-			face.vertices[1].addUsed();
-			face.vertices[2].addUsed();
-			for (int j = 0; j < face.vertices.length; j++) {
-				face.vertices[j].uv.x = face.vertices[j].v.x / 2 + 0.5f;
-				face.vertices[j].uv.y = face.vertices[j].v.y / 2 + 0.5f;
-			}
-		}
-	}
-
-	/**
-	 * Compute normal vector.
-	 * 
-	 * @param v1
-	 *            vertex
-	 * @param v2
-	 *            vertex
-	 * @param v3
-	 *            vertex
-	 * @return normal vector
-	 */
-	private Vector3f calcNormal(Vector3f v1, Vector3f v2, Vector3f v3) {
-		Vector3f n = new Vector3f();
-		Vector3f a = new Vector3f();
-		Vector3f b = new Vector3f();
-
-		// Create a and b vectors from 3 coordinates.
-		a.x = v1.x - v2.x;
-		a.y = v1.y - v2.y;
-		a.z = v1.z - v2.z;
-		b.x = v1.x - v3.x;
-		b.y = v1.y - v3.y;
-		b.z = v1.z - v3.z;
-
-		// Compute normal vector by a cross product.
-		n.crossProduct(a, b);
-
-		// Normalize the normal vector.
-		n.normalize();
-
-		return n;
+		NormalGenerator.generate(this);
+	}
+
+	/**
+	 * Create a torus of a ring of radius 1.
+	 * 
+	 * @param rings segments around the ring
+	 * @param sides segments around the tube
+	 */
+	public void createTorus(int rings, int sides) {
+		Generator g = new Generator(TORUS, rings, sides, 0);
+		g.allocate(rings * sides, rings * sides * 2);
+		g.run(rings);
+		set(g, 1 + TUBE_RATIO);
+	}
+
+	/**
+	 * Create a sphere of radius 1 by subdividing every edge of an
+	 * icosahedron. The vertices on the edges are shared by the faces, so the
+	 * mesh is closed.
+	 * 
+	 * @param segments segments of an edge of the icosahedron
+	 */
+	public void createSphere(int segments) {
+		int n = segments;
+		Generator g = new Generator(SPHERE, n, 0, 0);
+		g.allocate(10 * n * n + 2, 20 * n * n);
+		g.writeSphereEdges();
+		g.run(20 * n);
+		set(g, 1);
+	}
+
+	/**
+	 * Create a square terrain of width 2 whose heights are fractal value
+	 * noise.
+	 * 
+	 * @param size vertices along a side
+	 * @param seed seed of the noise
+	 */
+	public void createTerrain(int size, long seed) {
+		Generator g = new Generator(TERRAIN, size, 0, seed);
+		g.allocate(size * size, (size - 1) * (size - 1) * 2);
+		g.run(size);
+		// The normals need the heights of the neighbor rows.
+		g.pass = 1;
+		g.run(size);
+		set(g, 1);
+	}
+
+	/**
+	 * Create unconnected triangles at random positions in a cube of width 2.
+	 * Each triangle has its own vertices.
+	 * 
+	 * @param triangleCount number of triangles
+	 * @param seed seed of the positions
+	 */
+	public void createSoup(int triangleCount, long seed) {
+		Generator g = new Generator(SOUP, triangleCount, 0, seed);
+		g.allocate(triangleCount * 3, triangleCount);
+		g.run(triangleCount);
+		set(g, 1 + SOUP_SIZE);
+	}
+
+	/**
+	 * Create a shape of about a number of triangles.
+	 * 
+	 * @param shape TORUS, SPHERE, TERRAIN or SOUP
+	 * @param triangleCount number of triangles wanted
+	 * @param seed seed of the random shapes
+	 */
+	public void create(int shape, int triangleCount, long seed) {
+		switch (shape) {
+		case TORUS:
+			int n = Math.max(3, (int) Math.sqrt(triangleCount / 2.0));
+			createTorus(n, n);
+			break;
+		case SPHERE:
+			createSphere(Math.max(1, (int) Math.sqrt(triangleCount / 20.0)));
+			break;
+		case TERRAIN:
+			createTerrain(Math.max(2, (int) Math.sqrt(triangleCount / 2.0) + 1), seed);
+			break;
+		default:
+			createSoup(triangleCount, seed);
+			break;
+		}
+	}
+
+	/**
+	 * Tessellate a parametric shape with edges of about a length.
+	 * 
+	 * @param shape TORUS, SPHERE or TERRAIN
+	 * @param edge largest edge length in object units
+	 * @param seed seed of the terrain
+	 */
+	public void tessellate(int shape, float edge, long seed) {
+		switch (shape) {
+		case TORUS:
+			createTorus(Math.max(3, segments(RING_LENGTH, edge)),
+					Math.max(3, segments(TUBE_LENGTH, edge)));
+			break;
+		case SPHERE:
+			createSphere(segments(ICOSAHEDRON_EDGE, edge));
+			break;
+		case TERRAIN:
+			createTerrain(segments(2, edge) + 1, seed);
+			break;
+		default:
+			throw new IllegalArgumentException("Not a parametric shape: " + shape);
+		}
+	}
+
+	/**
+	 * Count the triangles of a parametric shape tessellated with edges of
+	 * about a length.
+	 * 
+	 * @param shape TORUS, SPHERE or TERRAIN
+	 * @param edge largest edge length in object units
+	 * @return number of triangles
+	 */
+	static long countTriangles(int shape, float edge) {
+		switch (shape) {
+		case TORUS:
+			return 2L * Math.max(3, segments(RING_LENGTH, edge))
+					* Math.max(3, segments(TUBE_LENGTH, edge));
+		case SPHERE:
+			long n = segments(ICOSAHEDRON_EDGE, edge);
+			return 20 * n * n;
+		case TERRAIN:
+			long m = segments(2, edge);
+			return 2 * m * m;
+		default:
+			throw new IllegalArgumentException("Not a parametric shape: " + shape);
+		}
+	}
+
+	/**
+	 * Get the extent of a parametric shape.
+	 * 
+	 * @param shape TORUS, SPHERE or TERRAIN
+	 * @return largest absolute coordinate
+	 */
+	static float getExtent(int shape) {
+		return shape == TORUS ? 1 + TUBE_RATIO : 1;
+	}
+
+	/**
+	 * Get the number of segments of a length.
+	 * 
+	 * @param length length in object units
+	 * @param edge largest edge length
+	 * @return segments, at least 1
+	 */
+	private static int segments(float length, float edge) {
+		return Math.max(1, (int) Math.ceil(length / edge));
+	}
+
+	/**
+	 * Get a shape by name.
+	 * 
+	 * @param name torus, sphere, terrain or soup
+	 * @return TORUS, SPHERE, TERRAIN or SOUP, or -1 if unknown
+	 */
+	public static int getShape(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the generated arrays as the mesh. The shapes are centered on the
+	 * origin.
+	 * 
+	 * @param g generator
+	 * @param extent largest absolute coordinate
+	 */
+	private void set(Generator g, float extent) {
+		center.x = 0;
+		center.y = 0;
+		center.z = 0;
+		radius = extent;
+		setMesh(g.positions, g.uvs, g.normals, g.indices, g.vertexCount, g.triangleCount);
+	}
+
+	/**
+	 * Write the mesh as a .OBJ file, for loaders to read.
+	 * 
+	 * @param file file to write
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"),
+				1 << 16);
+		try {
+			int n = vertexCount;
+			for (int i = 0; i < n; i++) {
+				w.write("v " + positions[i * 3] + " " + positions[i * 3 + 1] + " "
+						+ positions[i * 3 + 2] + "\n");
+			}
+			for (int i = 0; i < n; i++) {
+				w.write("vt " + uvs[i * 2] + " " + uvs[i * 2 + 1] + "\n");
+			}
+			for (int i = 0; i < n; i++) {
+				w.write("vn " + normals[i * 3] + " " + normals[i * 3 + 1] + " "
+						+ normals[i * 3 + 2] + "\n");
+			}
+			for (int i = 0; i < triangleCount * 3; i += 3) {
+				int a = indices[i] + 1;
+				int b = indices[i + 1] + 1;
+				int c = indices[i + 2] + 1;
+				w.write("f " + a + "/" + a + "/" + a + " " + b + "/" + b + "/" + b + " " + c + "/"
+						+ c + "/" + c + "\n");
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Hash an element of a seed to 64 random bits, as the SplitMix64
+	 * generator does.
+	 * 
+	 * @param seed seed
+	 * @param i element
+	 * @return random bits
+	 */
+	static long hash(long seed, long i) {
+		long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Get a random number of an element of a seed.
+	 * 
+	 * @param seed seed
+	 * @param i element
+	 * @return number in [0, 1)
+	 */
+	static float random(long seed, long i) {
+		return (hash(seed, i) >>> 40) * (1.0f / (1 << 24));
+	}
+
+	/**
+	 * Generator of the arrays of a shape.
+	 */
+	private static class Generator {
+		/** TORUS, SPHERE, TERRAIN or SOUP */
+		final int shape;
+
+		/** First size: rings, edge segments, side vertices or triangles */
+		final int n;
+
+		/** Second size: sides of a torus */
+		final int m;
+
+		/** Seed */
+		final long seed;
+
+		/** Pass of a shape made in two passes */
+		int pass;
+
+		/** Vertex coordinates, 3 per vertex */
+		float[] positions;
+
+		/** UV coordinates, 2 per vertex */
+		float[] uvs;
+
+		/** Normal vectors, 3 per vertex */
+		float[] normals;
+
+		/** Vertex indices, 3 per triangle */
+		int[] indices;
+
+		/** Number of vertices */
+		int vertexCount;
+
+		/** Number of triangles */
+		int triangleCount;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param shape TORUS, SPHERE, TERRAIN or SOUP
+		 * @param n first size
+		 * @param m second size
+		 * @param seed seed
+		 */
+		Generator(int shape, int n, int m, long seed) {
+			this.shape = shape;
+			this.n = n;
+			this.m = m;
+			this.seed = seed;
+		}
+
+		/**
+		 * Allocate the arrays.
+		 * 
+		 * @param vertexCount number of vertices
+		 * @param triangleCount number of triangles
+		 */
+		void allocate(int vertexCount, int triangleCount) {
+			this.vertexCount = vertexCount;
+			this.triangleCount = triangleCount;
+			positions = new float[vertexCount * 3];
+			uvs = new float[vertexCount * 2];
+			normals = new float[vertexCount * 3];
+			indices = new int[triangleCount * 3];
+		}
+
+		/**
+		 * Generate all rows in parallel.
+		 * 
+		 * @param rows number of rows
+		 */
+		void run(int rows) {
+			int grain = shape == SOUP ? GRAIN * 16 : Math.max(1, GRAIN * 16 / Math.max(1, n));
+			ForkJoinPool.commonPool().invoke(new Rows(0, rows, grain));
+		}
+
+		/**
+		 * Generate a range of rows.
+		 * 
+		 * @param from first row
+		 * @param to last row (exclusive)
+		 */
+		void generate(int from, int to) {
+			for (int row = from; row < to; row++) {
+				switch (shape) {
+				case TORUS:
+					torusRow(row);
+					break;
+				case SPHERE:
+					sphereRow(row / n, row % n);
+					break;
+				case TERRAIN:
+					if (pass == 0) {
+						terrainRow(row);
+					} else {
+						terrainNormals(row);
+					}
+					break;
+				default:
+					soupTriangle(row);
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Generate the vertices and the triangles of a ring of a torus.
+		 * 
+		 * @param i ring
+		 */
+		private void torusRow(int i) {
+			float u = (float) (Math.PI * 2 * i / n);
+			float cu = (float) Math.cos(u);
+			float su = (float) Math.sin(u);
+			for (int j = 0; j < m; j++) {
+				float v = (float) (Math.PI * 2 * j / m);
+				float cv = (float) Math.cos(v);
+				float sv = (float) Math.sin(v);
+				int k = i * m + j;
+				float r = 1 + TUBE_RATIO * cv;
+				put(k, r * cu, r * su, TUBE_RATIO * sv, cv * cu, cv * su, sv);
+				uvs[k * 2] = (float) i / n;
+				uvs[k * 2 + 1] = (float) j / m;
+
+				int a = k;
+				int b = (i + 1) % n * m + j;
+				int c = (i + 1) % n * m + (j + 1) % m;
+				int d = i * m + (j + 1) % m;
+				triangle(k * 2, a, b, c);
+				triangle(k * 2 + 1, a, c, d);
+			}
+		}
+
+		/**
+		 * Write the corners and the edge vertices of the sphere, which are
+		 * shared by the faces.
+		 */
+		void writeSphereEdges() {
+			for (int v = 0; v < 12; v++) {
+				float[] p = ICOSAHEDRON_VERTICES;
+				putSphere(v, p[v * 3], p[v * 3 + 1], p[v * 3 + 2]);
+			}
+			for (int e = 0; e < 30; e++) {
+				float[] a = corner(ICOSAHEDRON_EDGES[e * 2]);
+				float[] b = corner(ICOSAHEDRON_EDGES[e * 2 + 1]);
+				for (int s = 1; s < n; s++) {
+					float t = (float) s / n;
+					putSphere(12 + e * (n - 1) + s - 1, a[0] + (b[0] - a[0]) * t, a[1]
+							+ (b[1] - a[1]) * t, a[2] + (b[2] - a[2]) * t);
+				}
+			}
+		}
+
+		/**
+		 * Generate the inner vertices and the triangles of a row of a face
+		 * of the sphere.
+		 * 
+		 * @param f face of the icosahedron
+		 * @param i row, the step from the first corner to the second
+		 */
+		private void sphereRow(int f, int i) {
+			float[] a = corner(ICOSAHEDRON_FACES[f * 3]);
+			float[] b = corner(ICOSAHEDRON_FACES[f * 3 + 1]);
+			float[] c = corner(ICOSAHEDRON_FACES[f * 3 + 2]);
+			if (i > 0) {
+				for (int j = 1; j < n - i; j++) {
+					float wa = (float) (n - i - j) / n;
+					float wb = (float) i / n;
+					float wc = (float) j / n;
+					putSphere(sphereVertex(f, i, j), a[0] * wa + b[0] * wb + c[0] * wc, a[1] * wa
+							+ b[1] * wb + c[1] * wc, a[2] * wa + b[2] * wb + c[2] * wc);
+				}
+			}
+			// Rows of n, n - 1, ... upward triangles and one less downward.
+			int t = f * n * n + i * (2 * n - i);
+			for (int j = 0; j < n - i; j++) {
+				triangle(t++, sphereVertex(f, i, j), sphereVertex(f, i + 1, j),
+						sphereVertex(f, i, j + 1));
+				if (j < n - i - 1) {
+					triangle(t++, sphereVertex(f, i + 1, j), sphereVertex(f, i + 1, j + 1),
+							sphereVertex(f, i, j + 1));
+				}
+			}
+		}
+
+		/**
+		 * Get the vertex at a point of a face of the sphere.
+		 * 
+		 * @param f face of the icosahedron
+		 * @param i steps toward the second corner
+		 * @param j steps toward the third corner
+		 * @return vertex index
+		 */
+		private int sphereVertex(int f, int i, int j) {
+			int a = ICOSAHEDRON_FACES[f * 3];
+			int b = ICOSAHEDRON_FACES[f * 3 + 1];
+			int c = ICOSAHEDRON_FACES[f * 3 + 2];
+			if (i == 0 && j == 0) {
+				return a;
+			} else if (i == n) {
+				return b;
+			} else if (j == n) {
+				return c;
+			} else if (j == 0) {
+				return edgeVertex(a, b, i);
+			} else if (i == 0) {
+				return edgeVertex(a, c, j);
+			} else if (i + j == n) {
+				return edgeVertex(b, c, j);
+			}
+			// Inner rows 1..n-2 hold n-2, n-3, ... vertices.
+			int inner = (n - 1) * (n - 2) / 2;
+			int row = (i - 1) * (2 * n - 2 - i) / 2;
+			return 12 + 30 * (n - 1) + f * inner + row + j - 1;
+		}
+
+		/**
+		 * Get a vertex on an edge of the icosahedron.
+		 * 
+		 * @param a corner to count from
+		 * @param b other corner
+		 * @param s steps from a
+		 * @return vertex index
+		 */
+		private int edgeVertex(int a, int b, int s) {
+			int lo = Math.min(a, b);
+			int hi = Math.max(a, b);
+			int e = 0;
+			while (ICOSAHEDRON_EDGES[e * 2] != lo || ICOSAHEDRON_EDGES[e * 2 + 1] != hi) {
+				e++;
+			}
+			return 12 + e * (n - 1) + (a == lo ? s : n - s) - 1;
+		}
+
+		/**
+		 * Get a corner of the icosahedron.
+		 * 
+		 * @param v corner
+		 * @return coordinates
+		 */
+		private static float[] corner(int v) {
+			float[] p = ICOSAHEDRON_VERTICES;
+			return new float[] { p[v * 3], p[v * 3 + 1], p[v * 3 + 2] };
+		}
+
+		/**
+		 * Put a vertex projected on the unit sphere.
+		 * 
+		 * @param k vertex index
+		 * @param x X of the point
+		 * @param y Y of the point
+		 * @param z Z of the point
+		 */
+		private void putSphere(int k, float x, float y, float z) {
+			float len = (float) Math.sqrt(x * x + y * y + z * z);
+			x /= len;
+			y /= len;
+			z /= len;
+			put(k, x, y, z, x, y, z);
+			uvs[k * 2] = (float) (Math.atan2(z, x) / (Math.PI * 2) + 0.5);
+			uvs[k * 2 + 1] = (float) (Math.asin(y) / Math.PI + 0.5);
+		}
+
+		/**
+		 * Generate the vertices and the triangles of a row of the terrain.
+		 * 
+		 * @param i row
+		 */
+		private void terrainRow(int i) {
+			float step = 2.0f / (n - 1);
+			for (int j = 0; j < n; j++) {
+				int k = i * n + j;
+				float u = (float) j / (n - 1);
+				float v = (float) i / (n - 1);
+				put(k, -1 + j * step, height(u, v), -1 + i * step, 0, 1, 0);
+				uvs[k * 2] = u;
+				uvs[k * 2 + 1] = v;
+				if (i < n - 1 && j < n - 1) {
+					int t = (i * (n - 1) + j) * 2;
+					triangle(t, k, k + n, k + n + 1);
+					triangle(t + 1, k, k + n + 1, k + 1);
+				}
+			}
+		}
+
+		/**
+		 * Compute the normals of a row of the terrain from the slopes to the
+		 * neighbor vertices.
+		 * 
+		 * @param i row
+		 */
+		private void terrainNormals(int i) {
+			int up = Math.max(i - 1, 0);
+			int down = Math.min(i + 1, n - 1);
+			for (int j = 0; j < n; j++) {
+				int left = Math.max(j - 1, 0);
+				int right = Math.min(j + 1, n - 1);
+				float dx = (positions[(i * n + right) * 3 + 1] - positions[(i * n + left) * 3 + 1])
+						/ (positions[(i * n + right) * 3] - positions[(i * n + left) * 3]);
+				float dz = (positions[(down * n + j) * 3 + 1] - positions[(up * n + j) * 3 + 1])
+						/ (positions[(down * n + j) * 3 + 2] - positions[(up * n + j) * 3 + 2]);
+				float len = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+				int k = (i * n + j) * 3;
+				normals[k] = -dx / len;
+				normals[k + 1] = 1 / len;
+				normals[k + 2] = -dz / len;
+			}
+		}
+
+		/**
+		 * Get the height of the terrain.
+		 * 
+		 * @param u X in [0, 1]
+		 * @param v Z in [0, 1]
+		 * @return height
+		 */
+		private float height(float u, float v) {
+			float h = 0;
+			float amplitude = TERRAIN_HEIGHT;
+			float frequency = 4;
+			for (int o = 0; o < OCTAVES; o++) {
+				h += amplitude * (noise(o, u * frequency, v * frequency) - 0.5f);
+				amplitude *= 0.5f;
+				frequency *= 2;
+			}
+			return h;
+		}
+
+		/**
+		 * Get smoothly interpolated value noise.
+		 * 
+		 * @param octave octave, whose lattice has its own values
+		 * @param x X in lattice units
+		 * @param y Y in lattice units
+		 * @return value in [0, 1)
+		 */
+		private float noise(int octave, float x, float y) {
+			int ix = (int) Math.floor(x);
+			int iy = (int) Math.floor(y);
+			float fx = x - ix;
+			float fy = y - iy;
+			fx = fx * fx * (3 - 2 * fx);
+			fy = fy * fy * (3 - 2 * fy);
+			float v00 = lattice(octave, ix, iy);
+			float v10 = lattice(octave, ix + 1, iy);
+			float v01 = lattice(octave, ix, iy + 1);
+			float v11 = lattice(octave, ix + 1, iy + 1);
+			float v0 = v00 + (v10 - v00) * fx;
+			float v1 = v01 + (v11 - v01) * fx;
+			return v0 + (v1 - v0) * fy;
+		}
+
+		/**
+		 * Get the random value of a lattice point.
+		 * 
+		 * @param octave octave
+		 * @param x X of the point
+		 * @param y Y of the point
+		 * @return value in [0, 1)
+		 */
+		private float lattice(int octave, int x, int y) {
+			return random(seed, ((long) octave << 48) ^ ((long) (x & 0xFFFFFF) << 24)
+					^ (y & 0xFFFFFF));
+		}
+
+		/**
+		 * Generate a triangle of the soup.
+		 * 
+		 * @param t triangle
+		 */
+		private void soupTriangle(int t) {
+			long r = t * 12L;
+			float cx = random(seed, r) * 2 - 1;
+			float cy = random(seed, r + 1) * 2 - 1;
+			float cz = random(seed, r + 2) * 2 - 1;
+			int p = t * 9;
+			for (int i = 3; i < 12; i++) {
+				float c = i % 3 == 0 ? cx : i % 3 == 1 ? cy : cz;
+				positions[p + i - 3] = c + (random(seed, r + i) - 0.5f) * SOUP_SIZE;
+			}
+			float e1x = positions[p + 3] - positions[p];
+			float e1y = positions[p + 4] - positions[p + 1];
+			float e1z = positions[p + 5] - positions[p + 2];
+			float e2x = positions[p + 6] - positions[p];
+			float e2y = positions[p + 7] - positions[p + 1];
+			float e2z = positions[p + 8] - positions[p + 2];
+			float nx = e1y * e2z - e1z * e2y;
+			float ny = e1z * e2x - e1x * e2z;
+			float nz = e1x * e2y - e1y * e2x;
+			float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (len > 0) {
+				nx /= len;
+				ny /= len;
+				nz /= len;
+			}
+			for (int i = 0; i < 3; i++) {
+				int k = t * 3 + i;
+				normals[k * 3] = nx;
+				normals[k * 3 + 1] = ny;
+				normals[k * 3 + 2] = nz;
+				uvs[k * 2] = i == 1 ? 1 : 0;
+				uvs[k * 2 + 1] = i == 2 ? 1 : 0;
+			}
+			triangle(t, t * 3, t * 3 + 1, t * 3 + 2);
+		}
+
+		/**
+		 * Put the position and the normal of a vertex.
+		 * 
+		 * @param k vertex index
+		 * @param x X of the position
+		 * @param y Y of the position
+		 * @param z Z of the position
+		 * @param nx X of the normal
+		 * @param ny Y of the normal
+		 * @param nz Z of the normal
+		 */
+		private void put(int k, float x, float y, float z, float nx, float ny, float nz) {
+			positions[k * 3] = x;
+			positions[k * 3 + 1] = y;
+			positions[k * 3 + 2] = z;
+			normals[k * 3] = nx;
+			normals[k * 3 + 1] = ny;
+			normals[k * 3 + 2] = nz;
+		}
+
+		/**
+		 * Put the vertices of a triangle.
+		 * 
+		 * @param t triangle
+		 * @param a first vertex
+		 * @param b second vertex
+		 * @param c third vertex
+		 */
+		private void triangle(int t, int a, int b, int c) {
+			indices[t * 3] = a;
+			indices[t * 3 + 1] = b;
+			indices[t * 3 + 2] = c;
+		}
+
+		/**
+		 * Range of rows.
+		 */
+		private class Rows extends RecursiveAction {
+			/** Serial version UID */
+			private static final long serialVersionUID = 1L;
+
+			/** First row */
+			private final int from;
+
+			/** Last row (exclusive) */
+			private final int to;
+
+			/** Rows handled without splitting */
+			private final int grain;
+
+			/**
+			 * Constructor.
+			 * 
+			 * @param from first row
+			 * @param to last row (exclusive)
+			 * @param grain rows handled without splitting
+			 */
+			Rows(int from, int to, int grain) {
+				this.from = from;
+				this.to = to;
+				this.grain = grain;
+			}
+
+			/**
+			 * @see java.util.concurrent.RecursiveAction#compute()
+			 */
+			protected void compute() {
+				if (to - from > grain) {
+					int mid = (from + to) >>> 1;
+					invokeAll(new Rows(from, mid, grain), new Rows(mid, to, grain));
+				} else {
+					generate(from, to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generate a shape, report the time, and write it as a .OBJ file.
+	 * 
+	 * @param args shape name, the number of triangles, the seed and the
+	 *            file to write
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int shape = args.length > 1 ? getShape(args[0]) : -1;
+		if (shape < 0) {
+			System.err.println("Usage: com.drjiro.viewer.SimpleShape torus|sphere|terrain|soup triangles [seed [file.obj]]");
+			System.exit(1);
+		}
+		int triangles = Integer.parseInt(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		SimpleShape obj = new SimpleShape();
+		long start = System.nanoTime();
+		obj.create(shape, triangles, seed);
+		double ms = (System.nanoTime() - start) / 1e6;
+		System.out.println(NAMES[shape] + " vertices=" + obj.getVertexCount() + " triangles="
+				+ obj.getTriangleCount() + " time=" + (float) ms + " ms");
+		if (args.length > 3) {
+			obj.write(new File(args[3]));
+		}
 	}
 }
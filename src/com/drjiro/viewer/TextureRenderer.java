@@ -14,8 +14,6 @@ import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.image.MemoryImageSource;
 import java.awt.image.PixelGrabber;
-import java.util.Iterator;
-import java.util.List;
 
 /**
  * A renderer using texture mappings. 
@@ -47,6 +45,21 @@ public class TextureRenderer extends AbstractRenderer {
 	/** Shift for the texture */
 	private int textureShift;
 
+	/** Texels of the texture set to this renderer */
+	private int defaultTexels[];
+
+	/** Width of the texture set to this renderer */
+	private int defaultWidth;
+
+	/** Height of the texture set to this renderer */
+	private int defaultHeight;
+
+	/** Baked unoccluded fraction per vertex of the drawn mesh, or null */
+	private byte occlusion[];
+
+	/** Textures bound for material batches in the last frame */
+	private int textureSwitches;
+
 	/** Camera of a scene */
 	private Camera camera;
 
@@ -92,8 +105,65 @@ public class TextureRenderer extends AbstractRenderer {
 	/** UV coordinate V maximum value array */
 	private int maxv[];
 
+	/** Direction of the light in the object space */
+	private Vector3f light = new Vector3f();
+
+	/** Eye vector in the object space */
+	private Vector3f eye = new Vector3f();
+
+	/** Transposed world matrix of a frame */
+	private Matrix4f inverse = new Matrix4f();
+
+	/** Decoding matrix of a quantized mesh */
+	private Matrix4f decoding = new Matrix4f();
+
+	/** Fixed point screen X, Y and Z of the processed vertices */
+	private int screen[] = new int[0];
+
+	/** Color and visibility of the processed vertices */
+	private int lit[] = new int[0];
+
+	/** Stamp of the vertex stage which processed each vertex */
+	private int stamps[] = new int[0];
+
+	/** Stamp of the current vertex stage */
+	private int stamp;
+
+	/** Position array of the current vertex stage, or null */
+	private float cachedPositions[];
+
+	/** Vertices new to the vertex stage in a draw call */
+	private int pending[] = new int[0];
+
+	/** Fixed point screen X, Y and Z of the pending vertices */
+	private int projected[] = new int[0];
+
+	/** Vertices transformed and lit in the last frame */
+	private int processedVertices;
+
+	/** Triangle corners drawn in the last frame */
+	private int referencedCorners;
+
+	/** Transformed and lit vertices of a triangle */
+	private TLVertex tlvertices[] = { new TLVertex(), new TLVertex(), new TLVertex() };
+
+	/** Triangles culled with their clusters in the last frame */
+	private int culledTriangles;
+
+	/** Direction to draw the pages of a paged mesh */
+	private boolean reversePages;
+
 	/** Polygon using primitives flag */
 	public static final int PRIMITIVE_POLYGON = 1;
+
+	/** Direction of the light in the world space */
+	private static final Vector3f LIGHT = new Vector3f(-0.2f, 0.2f, -1.0f);
+
+	/** Ambient light intensity */
+	private static final float AMBIENT = 0.5f;
+
+	/** Diffuse light intensity */
+	private static final float DIFFUSE = 0.9f;
 	
 	/**
 	 * Constructor by width and height of the screen.
@@ -106,6 +176,12 @@ public class TextureRenderer extends AbstractRenderer {
 	public TextureRenderer(int screenWidth, int screenHeight) {
 		super(screenWidth, screenHeight);
 
+		// A white texel until a texture is set.
+		defaultTexels = new int[] { 0xFFFFFFFF };
+		defaultWidth = 1;
+		defaultHeight = 1;
+		bind(defaultTexels, defaultWidth, defaultHeight);
+
 		pbuf = new int[screenWidth * screenHeight];
 		zbuf = new int[screenWidth * screenHeight];
 		min = new int[screenHeight];
@@ -130,25 +206,14 @@ public class TextureRenderer extends AbstractRenderer {
 	 * @param texture a texture to set
 	 */
 	public final void setTexture(Image texture) {
-		textureWidth = texture.getWidth(null);
-		textureHeight = texture.getHeight(null);
-		textureWidthMask = textureWidth - 1;
-		textureHeightMask = textureHeight - 1;
-
-		// Compute shift value
-		textureShift = 0;
-		for (int i = 0; i < 32; i++) {
-			if (((textureWidthMask >> i) & 1) > 0) {
-				textureShift++;
-			}
-		}
+		int width = texture.getWidth(null);
+		int height = texture.getHeight(null);
 
 		// Create a texture buffer.
-		tbuf = new int[textureWidth * textureHeight];
+		int[] texels = new int[width * height];
 
 		// Create a pixel grabber.
-		PixelGrabber pg = new PixelGrabber(texture, 0, 0, textureWidth, textureHeight, tbuf, 0,
-				textureWidth);
+		PixelGrabber pg = new PixelGrabber(texture, 0, 0, width, height, texels, 0, width);
 
 		try {
 			// Get a pixel from a texture.
@@ -156,6 +221,33 @@ public class TextureRenderer extends AbstractRenderer {
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+		defaultTexels = texels;
+		defaultWidth = width;
+		defaultHeight = height;
+		bind(texels, width, height);
+	}
+
+	/**
+	 * Bind the texels used by the following triangles.
+	 * 
+	 * @param texels ARGB texels
+	 * @param width width of the texture, a power of two
+	 * @param height height of the texture, a power of two
+	 */
+	private void bind(int[] texels, int width, int height) {
+		tbuf = texels;
+		textureWidth = width;
+		textureHeight = height;
+		textureWidthMask = textureWidth - 1;
+		textureHeightMask = textureHeight - 1;
+
+		// Compute shift value
+		textureShift = 0;
+		for (int i = 0; i < 32; i++) {
+			if (((textureWidthMask >> i) & 1) > 0) {
+				textureShift++;
+			}
+		}
 	}
 
 	/**
@@ -195,103 +287,421 @@ public class TextureRenderer extends AbstractRenderer {
 	 *            3D object
 	 */
 	public final void render(int type, Graphics2D offg, Object3D obj) {
-		// Get face list.
-		List faces = obj.getFaces();
+		// Get mesh arrays after the count, as the mesh may be growing.
+		int triangleCount = obj.getTriangleCount();
+		int[] indices = obj.getIndexArray();
+		float[] positions = obj.getPositionArray();
+		float[] uvs = obj.getUvArray();
+		float[] normals = obj.getNormalArray();
+		Meshlets meshlets = obj.getMeshlets();
+		MaterialBatches batches = obj.getMaterialBatches();
+		AmbientOcclusion ao = obj.getOcclusion();
+		if (meshlets != null && meshlets.indices != indices) {
+			meshlets = null;
+		}
+		occlusion = ao != null && ao.positions == positions ? ao.values : null;
 		
-		// Clear buffers.
-		clearBuffer();
-
+		beginFrame();
 		switch (type) {
 		case PRIMITIVE_POLYGON:
-			Iterator iter = faces.iterator();
-			while (iter.hasNext()) {
-				Face face = (Face)iter.next();
-				// Transform and lighting.
-				TLVertex[] tlvertices = transformAndLighting(face);
-				drawPolygon(tlvertices[0], tlvertices[1], tlvertices[2]);
+			if (batches != null && batches.indices == indices) {
+				drawBatches(batches, meshlets, positions, uvs, normals);
+			} else if (meshlets != null) {
+				drawMeshlets(meshlets, 0, meshlets.count, positions, uvs, normals);
+			} else {
+				drawTriangles(positions, uvs, normals, indices, 0, triangleCount);
 			}
 			break;
 		}
-		// Create image from a buffer.
-		Image image = Toolkit.getDefaultToolkit().createImage(new MemoryImageSource(screenWidth, screenHeight, pbuf, 0, screenWidth));
-		// Draw an image to the offscreen buffer.
-		offg.drawImage(image, 0, 0, null);
+		endFrame(offg);
+	}
+
+	/**
+	 * Draw the triangles one material batch at a time, binding the texture
+	 * of a batch once.
+	 * 
+	 * @param batches runs of triangles sharing a material
+	 * @param meshlets clusters of the same indices, or null
+	 * @param positions vertex coordinates
+	 * @param uvs UV coordinates
+	 * @param normals normal vectors
+	 */
+	private void drawBatches(MaterialBatches batches, Meshlets meshlets, float[] positions,
+			float[] uvs, float[] normals) {
+		int k = 0;
+		for (int b = 0; b < batches.count; b++) {
+			Material material = batches.materials[b];
+			if (material != null) {
+				bind(material.texels, material.width, material.height);
+			} else {
+				bind(defaultTexels, defaultWidth, defaultHeight);
+			}
+			textureSwitches++;
+			int end = batches.firstTriangles[b + 1];
+			if (meshlets != null) {
+				// Clusters never cross the start of a batch.
+				int first = k;
+				while (k < meshlets.count && meshlets.firstTriangles[k] < end) {
+					k++;
+				}
+				drawMeshlets(meshlets, first, k, positions, uvs, normals);
+			} else {
+				int first = batches.firstTriangles[b];
+				drawTriangles(positions, uvs, normals, batches.indices, first, end - first);
+			}
+		}
+		bind(defaultTexels, defaultWidth, defaultHeight);
+	}
+
+	/**
+	 * Draw the clusters which are on the screen and face the eye.
+	 * 
+	 * @param meshlets clusters
+	 * @param from first cluster
+	 * @param to end of the clusters
+	 * @param positions vertex coordinates
+	 * @param uvs UV coordinates
+	 * @param normals normal vectors
+	 */
+	private void drawMeshlets(Meshlets meshlets, int from, int to, float[] positions, float[] uvs,
+			float[] normals) {
+		Matrix4f m = worldMatrix;
+		float scale = (float) Math.sqrt(m.m00 * m.m00 + m.m01 * m.m01 + m.m02 * m.m02);
+		float len = (float) Math.sqrt(eye.x * eye.x + eye.y * eye.y + eye.z * eye.z);
+		float ex = eye.x / len;
+		float ey = eye.y / len;
+		float ez = eye.z / len;
+		float[] spheres = meshlets.spheres;
+		for (int k = from; k < to; k++) {
+			int first = meshlets.firstTriangles[k];
+			int count = meshlets.firstTriangles[k + 1] - first;
+			float x = spheres[k * 4];
+			float y = spheres[k * 4 + 1];
+			float z = spheres[k * 4 + 2];
+			float r = spheres[k * 4 + 3] * scale;
+			float sx = m.m00 * x + m.m10 * y + m.m20 * z + m.m30;
+			float sy = m.m01 * x + m.m11 * y + m.m21 * z + m.m31;
+			if (sx + r < 0 || sx - r > screenWidth || sy + r < 0 || sy - r > screenHeight
+					|| meshlets.facesAway(k, ex, ey, ez)) {
+				culledTriangles += count;
+				continue;
+			}
+			drawTriangles(positions, uvs, normals, meshlets.indices, first, count);
+		}
+	}
+
+	/**
+	 * Pick the nearest face under a pixel of the last frame.
+	 * 
+	 * @param bvh hierarchy of the drawn object
+	 * @param screenX X of the pixel
+	 * @param screenY Y of the pixel
+	 * @return hit face, or null
+	 */
+	public Bvh.Hit pick(Bvh bvh, int screenX, int screenY) {
+		// The buffer is shown turned around.
+		return bvh.pick(worldMatrix, screenWidth - 1 - screenX, screenHeight - 1 - screenY);
 	}
 
 	/**
-	 * Transform and lighting.
+	 * Get the number of triangles skipped with their clusters in the last
+	 * frame.
 	 * 
-	 * @param faces face list
-	 * @return transform and lit vertices
+	 * @return culled triangles
 	 */
-	private TLVertex[] transformAndLighting(Face face) {
-		// transform and lit vertices
-		TLVertex[] tlvertices = new TLVertex[face.vertices.length];
+	public int getCulledTriangles() {
+		return culledTriangles;
+	}
 
-		// Lights.
-		Vector3f ambient = new Vector3f(0.5f, 0.5f, 0.5f);
-		Vector3f diffuse = new Vector3f(0.9f, 0.9f, 0.9f);
+	/**
+	 * Get the number of textures bound for material batches in the last
+	 * frame, which is the number of batches drawn.
+	 * 
+	 * @return texture switches
+	 */
+	public int getTextureSwitches() {
+		return textureSwitches;
+	}
+
+	/**
+	 * Get the number of vertices transformed and lit in the last frame. A
+	 * vertex shared by faces is processed once, unless the mesh is paged.
+	 * 
+	 * @return processed vertices
+	 */
+	public int getProcessedVertices() {
+		return processedVertices;
+	}
+
+	/**
+	 * Get the number of triangle corners drawn in the last frame, each
+	 * referring to a processed vertex.
+	 * 
+	 * @return referenced corners
+	 */
+	public int getReferencedCorners() {
+		return referencedCorners;
+	}
+
+	/**
+	 * Draw an out-of-core mesh page by page.
+	 * 
+	 * @param mesh paged mesh
+	 * @param camera
+	 *            Camera for the scene
+	 * @param offg
+	 *            Offscreen buffer
+	 */
+	public final void render(PagedMesh mesh, Camera camera, Graphics2D offg) {
+		this.camera = camera;
+		occlusion = null;
+		beginFrame();
+		// Alternate the direction, so a frame starts with the pages which
+		// the last frame left in the cache.
+		int pageCount = mesh.getPageCount();
+		reversePages = !reversePages;
+		for (int i = 0; i < pageCount; i++) {
+			PagedMesh.Page page = mesh.getPage(reversePages ? pageCount - 1 - i : i);
+			drawTriangles(page.positions, page.uvs, page.normals, page.indices, 0, page.triangleCount);
+		}
+		endFrame(offg);
+	}
+
+	/**
+	 * Draw a quantized mesh. The positions are decoded by the world matrix
+	 * and the UVs by the texture scale.
+	 * 
+	 * @param mesh quantized mesh
+	 * @param camera
+	 *            Camera for the scene
+	 * @param offg
+	 *            Offscreen buffer
+	 */
+	public final void render(CompressedMesh mesh, Camera camera, Graphics2D offg) {
+		this.camera = camera;
+		beginFrame();
+		Matrix4f m = mesh.getDecodingMatrix(worldMatrix, decoding);
+		float su = mesh.uvStep[0] * textureWidth * 0x10000;
+		float ou = mesh.uvMin[0] * textureWidth * 0x10000;
+		float sv = mesh.uvStep[1] * textureHeight * 0x10000;
+		float ov = mesh.uvMin[1] * textureHeight * 0x10000;
+		short[] positions = mesh.positions;
+		short[] uvs = mesh.uvs;
+		short[] normals = mesh.normals;
+		float[] table = CompressedMesh.getNormalTable();
+		for (int k = 0; k < mesh.chunkBases.length; k++) {
+			for (int i = mesh.chunkStarts[k] * 3; i < mesh.chunkStarts[k + 1] * 3; i += 3) {
+				for (int j = 0; j < 3; j++) {
+					int index = mesh.index(k, i + j);
+					int p = index * 3;
+					float x = positions[p] & 0xffff;
+					float y = positions[p + 1] & 0xffff;
+					float z = positions[p + 2] & 0xffff;
+					int c = (normals[index] & 0xffff) * 3;
+					TLVertex tlvertex = tlvertices[j];
+					shade(tlvertex, table[c], table[c + 1], table[c + 2]);
+					tlvertex.x = (int) ((m.m00 * x + m.m10 * y + m.m20 * z + m.m30) * 0x10000);
+					tlvertex.y = (int) ((m.m01 * x + m.m11 * y + m.m21 * z + m.m31) * 0x10000);
+					tlvertex.z = (int) ((m.m02 * x + m.m12 * y + m.m22 * z + m.m32) * 0x10000);
+					tlvertex.u = (int) ((uvs[index * 2] & 0xffff) * su + ou);
+					tlvertex.v = (int) ((uvs[index * 2 + 1] & 0xffff) * sv + ov);
+				}
+				drawPolygon(tlvertices[0], tlvertices[1], tlvertices[2]);
+			}
+		}
+		endFrame(offg);
+	}
+
+	/**
+	 * Clear the buffers and set up the light and the eye of a frame.
+	 */
+	private void beginFrame() {
+		// Clear buffers.
+		clearBuffer();
 
 		// Create a transposed matrix instead of a inverse matrix.
-		Matrix4f im = new Matrix4f();
-		im.invert(worldMatrix);
+		inverse.invert(worldMatrix);
 
 		// Get the direction of the light.
-		Vector3f light = im.transform(new Vector3f(-0.2f, 0.2f, -1.0f));
+		inverse.transform(LIGHT, light);
 		light.normalize();
 
 		// Get eye vector from a camera.
-		Vector3f eye = im.transform(camera.getEyePoint());
-
-		int r = 0, g = 0, b = 0;
-
-		Vertex[] vertices = face.vertices;
-		for (int i = 0; i < vertices.length; i++) {
-			Vertex vertex = vertices[i];
-			// Do transform
-			Vector3f v = worldMatrix.transform(vertex.v);
-//			System.out.println("vertex=" + vertex + " v=" + v);
-			// Compute a shade using Lambert's law
-			float w = light.dotProduct(vertex.n);
-
-			// Compute colors of vertex.
-			r = (int) ((ambient.x + w * diffuse.x) * 255);
-			g = (int) ((ambient.y + w * diffuse.y) * 255);
-			b = (int) ((ambient.z + w * diffuse.z) * 255);
-			if (r < 0) {
-				r = 0;
-			}
-			if (g < 0) {
-				g = 0;
+		inverse.transform(camera.getEyePoint(), eye);
+
+		// The matrix may have changed, so process the vertices again.
+		cachedPositions = null;
+		processedVertices = 0;
+		referencedCorners = 0;
+		culledTriangles = 0;
+		textureSwitches = 0;
+	}
+
+	/**
+	 * Draw indexed triangles.
+	 * 
+	 * @param positions vertex coordinates
+	 * @param uvs UV coordinates
+	 * @param normals normal vectors
+	 * @param indices vertex indices
+	 * @param first first triangle
+	 * @param triangleCount number of triangles
+	 */
+	private void drawTriangles(float[] positions, float[] uvs, float[] normals, int[] indices,
+			int first, int triangleCount) {
+		if (positions != cachedPositions) {
+			beginVertices(positions);
+		}
+		// Transform and light the vertices new to the stage at once.
+		int n = 0;
+		for (int i = first * 3; i < (first + triangleCount) * 3; i++) {
+			int index = indices[i];
+			if (stamps[index] != stamp) {
+				stamps[index] = stamp;
+				pending[n++] = index;
 			}
-			if (b < 0) {
-				b = 0;
+		}
+		worldMatrix.project(positions, pending, 0, n, projected, 0);
+		for (int k = 0; k < n; k++) {
+			processVertex(normals, pending[k], k);
+		}
+
+		for (int i = first * 3; i < (first + triangleCount) * 3; i += 3) {
+			gatherCorners(uvs, indices, i);
+			drawPolygon(tlvertices[0], tlvertices[1], tlvertices[2]);
+		}
+		referencedCorners += triangleCount * 3;
+	}
+
+	/**
+	 * Start a vertex stage for a position array, forgetting the vertices
+	 * processed for another array or matrix.
+	 * 
+	 * @param positions vertex coordinates
+	 */
+	private void beginVertices(float[] positions) {
+		cachedPositions = positions;
+		int n = positions.length / 3;
+		if (stamps.length < n) {
+			screen = new int[n * 3];
+			lit = new int[n * 2];
+			stamps = new int[n];
+			pending = new int[n];
+			projected = new int[n * 3];
+			stamp = 0;
+		}
+		stamp++;
+		if (stamp == 0) {
+			// Wrapped around, so older stamps may match.
+			for (int i = 0; i < stamps.length; i++) {
+				stamps[i] = 0;
 			}
+			stamp = 1;
+		}
+	}
+
+	/**
+	 * Show the buffer of a frame.
+	 * 
+	 * @param offg
+	 *            Offscreen buffer
+	 */
+	private void endFrame(Graphics2D offg) {
+		// Do not keep the arrays of the mesh.
+		cachedPositions = null;
+
+		// Create image from a buffer.
+		Image image = Toolkit.getDefaultToolkit().createImage(new MemoryImageSource(screenWidth, screenHeight, pbuf, 0, screenWidth));
+		// Draw an image to the offscreen buffer.
+		offg.drawImage(image, 0, 0, null);
+	}
+
+	/**
+	 * Gather the corners of a triangle from the vertices processed by the
+	 * vertex stage.
+	 * 
+	 * @param uvs UV coordinates
+	 * @param indices vertex indices
+	 * @param first position of the first index of a triangle
+	 */
+	private void gatherCorners(float[] uvs, int[] indices, int first) {
+		for (int i = 0; i < 3; i++) {
+			int index = indices[first + i];
+			TLVertex tlvertex = tlvertices[i];
 
 			// Set information of a vertex
-			TLVertex tlvertex = new TLVertex();
-			tlvertex.x = (int) (v.x * 0x10000);
-			tlvertex.y = (int) (v.y * 0x10000);
-			tlvertex.z = (int) (v.z * 0x10000);
-			tlvertex.r = r * 0x10000;
-			tlvertex.g = g * 0x10000;
-			tlvertex.b = b * 0x10000;
-
-			// Set a texture coordinate.
-			tlvertex.u = (int) (vertex.uv.x * textureWidth * 0x10000);
-			tlvertex.v = (int) (vertex.uv.y * textureHeight * 0x10000);
-			float e = eye.dotProduct(vertex.n);
-//			System.out.println("u=" + vertex.uv + " TL=" + tlvertex + " e=" + e);
-			if (e < 0) {
-				tlvertex.active = 0;
-			}
-			else {
-				tlvertex.active = 1;
-			}
-			tlvertices[i] = tlvertex;
+			int p = index * 3;
+			tlvertex.x = screen[p];
+			tlvertex.y = screen[p + 1];
+			tlvertex.z = screen[p + 2];
+			int c = lit[index * 2];
+			tlvertex.r = c;
+			tlvertex.g = c;
+			tlvertex.b = c;
+			tlvertex.active = lit[index * 2 + 1];
+
+			// Set a texture coordinate, which depends on the bound texture.
+			tlvertex.u = (int) (uvs[index * 2] * textureWidth * 0x10000);
+			tlvertex.v = (int) (uvs[index * 2 + 1] * textureHeight * 0x10000);
+		}
+	}
+
+	/**
+	 * Store a projected vertex and light it for the current vertex stage.
+	 * 
+	 * @param normals normal vectors
+	 * @param index vertex index
+	 * @param k position of the vertex among the projected ones
+	 */
+	private void processVertex(float[] normals, int index, int k) {
+		int p = index * 3;
+		screen[p] = projected[k * 3];
+		screen[p + 1] = projected[k * 3 + 1];
+		screen[p + 2] = projected[k * 3 + 2];
+
+		// The lights are white, so a single channel is kept. The corners
+		// are gathered later, so the first one is free to light on.
+		TLVertex tlvertex = tlvertices[0];
+		shade(tlvertex, normals[p], normals[p + 1], normals[p + 2]);
+		int c = tlvertex.r;
+
+		// Darken by the baked occlusion.
+		if (occlusion != null) {
+			c = (c >> 8) * ((occlusion[index] & 0xFF) + 1);
 		}
+		lit[index * 2] = c;
+		lit[index * 2 + 1] = tlvertex.active;
+		processedVertices++;
+	}
 
-		return tlvertices;
+	/**
+	 * Light a vertex.
+	 * 
+	 * @param tlvertex vertex to set the color and the visibility
+	 * @param nx X of the normal
+	 * @param ny Y of the normal
+	 * @param nz Z of the normal
+	 */
+	private void shade(TLVertex tlvertex, float nx, float ny, float nz) {
+		// Compute a shade using Lambert's law
+		float w = light.x * nx + light.y * ny + light.z * nz;
+
+		// Compute colors of vertex, gray as the lights are white.
+		int c = (int) ((AMBIENT + w * DIFFUSE) * 255);
+		if (c < 0) {
+			c = 0;
+		}
+
+		tlvertex.r = c * 0x10000;
+		tlvertex.g = c * 0x10000;
+		tlvertex.b = c * 0x10000;
+		float e = eye.x * nx + eye.y * ny + eye.z * nz;
+		if (e < 0) {
+			tlvertex.active = 0;
+		}
+		else {
+			tlvertex.active = 1;
+		}
 	}
 
 	/**
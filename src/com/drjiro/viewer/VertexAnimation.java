@@ -0,0 +1,479 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: VertexAnimation.java
+ *
+ * Vertex animation played from a sequence of .OBJ files.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Vertex animation played from a sequence of .OBJ files.
+ * </p>
+ * Every file of the sequence must have the faces of the first one; only the
+ * vertex coordinates and normals may change. The topology, the UVs and the
+ * indices are held once. The positions of every frame are quantized to a
+ * grid fixed by the first frame, and a frame keeps only the vertices which
+ * moved: the gap to the previous moved vertex and the change of its codes
+ * as variable length integers, with its octahedral normal. The codes are
+ * exact, so the changes do not drift however long the sequence plays.
+ * <p>
+ * A decoder thread applies the next frame and writes it to a back buffer.
+ * The renderer calls {@link #swap()} between frames, which sets the back
+ * buffer to the object and hands the old front buffer to the decoder.
+ * Unlike other objects, the object of an animation writes into arrays it
+ * has published, so it must not be snapshotted or clustered.
+ * </p>
+ *
+ * @author wada
+ */
+public class VertexAnimation implements Runnable {
+	/** Largest 16 bit code */
+	private static final float MAX16 = 65535.0f;
+
+	/** Animated object */
+	private final Object3D obj;
+
+	/** Number of vertices */
+	private final int vertexCount;
+
+	/** Encoded frames */
+	private final byte[][] frames;
+
+	/** Minimum of the positions of the first frame */
+	private final float[] min = new float[3];
+
+	/** Step of the position codes */
+	private final float step;
+
+	/** Position codes of the decoded frame, 3 per vertex */
+	private final int[] codes;
+
+	/** Normal codes of the decoded frame */
+	private final int[] normalCodes;
+
+	/** Decoded normals of all codes */
+	private final float[] normalTable = CompressedMesh.getNormalTable();
+
+	/** Position of the decoder in a frame */
+	private int cursor;
+
+	/** Positions set to the object */
+	private float[] frontPositions;
+
+	/** Normals set to the object */
+	private float[] frontNormals;
+
+	/** Positions written by the decoder */
+	private float[] backPositions;
+
+	/** Normals written by the decoder */
+	private float[] backNormals;
+
+	/** Frame in the back buffer */
+	private int decoded;
+
+	/** Frame set to the object */
+	private volatile int shown;
+
+	/** True if the back buffer holds a frame not yet swapped in */
+	private boolean ready;
+
+	/** False to stop the decoder */
+	private volatile boolean running;
+
+	/**
+	 * Load and encode a sequence of .OBJ files.
+	 *
+	 * @param files files of the frames in order
+	 * @throws IOException if a file cannot be read or has other faces than
+	 *             the first one
+	 */
+	public VertexAnimation(File[] files) throws IOException {
+		MeshBuilder first = parse(files[0]);
+		obj = new Object3D();
+		obj.setWeld(true);
+		obj.url = files[0].toURI().toURL();
+		obj.build(first);
+		vertexCount = obj.vertexCount;
+		int triangleCount = obj.triangleCount;
+		int[] indices = obj.indices;
+		int n = vertexCount;
+
+		// The records each vertex was made of.
+		int[] records = new int[n];
+		int[] normalRecords = new int[n];
+		int[] c = first.corners;
+		for (int i = 0; i < triangleCount * 3; i++) {
+			records[indices[i]] = c[i * 3];
+			normalRecords[indices[i]] = c[i * 3 + 2];
+		}
+		boolean hasNormals = first.normalCount > 0;
+
+		float[] max = new float[3];
+		for (int j = 0; j < 3; j++) {
+			min[j] = Float.MAX_VALUE;
+			max[j] = -Float.MAX_VALUE;
+		}
+		for (int v = 0; v < n; v++) {
+			for (int j = 0; j < 3; j++) {
+				min[j] = Math.min(min[j], obj.positions[v * 3 + j]);
+				max[j] = Math.max(max[j], obj.positions[v * 3 + j]);
+			}
+		}
+		float extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+		step = extent > 0 ? extent / MAX16 : 1;
+
+		codes = new int[n * 3];
+		normalCodes = new int[n];
+		frames = new byte[files.length][];
+		float[] positions = new float[n * 3];
+		for (int k = 0; k < files.length; k++) {
+			MeshBuilder b = k == 0 ? first : parse(files[k]);
+			if (!sameFaces(first, b)) {
+				throw new IOException("Faces of " + files[k] + " differ from " + files[0]);
+			}
+			for (int v = 0; v < n; v++) {
+				System.arraycopy(b.positions, records[v] * 3, positions, v * 3, 3);
+			}
+			float[] normals;
+			if (hasNormals) {
+				normals = new float[n * 3];
+				for (int v = 0; v < n; v++) {
+					System.arraycopy(b.normals, normalRecords[v] * 3, normals, v * 3, 3);
+				}
+			} else {
+				Object3D frame = new Object3D();
+				frame.setMesh(positions, obj.uvs, new float[n * 3], indices, n, triangleCount);
+				NormalGenerator.generate(frame);
+				normals = frame.normals;
+			}
+			frames[k] = encode(positions, normals, k == 0);
+		}
+
+		frontPositions = new float[n * 3];
+		frontNormals = new float[n * 3];
+		backPositions = new float[n * 3];
+		backNormals = new float[n * 3];
+		decode(0);
+		fill(frontPositions, frontNormals);
+		obj.setMesh(frontPositions, obj.uvs, frontNormals, indices, n, triangleCount);
+	}
+
+	/**
+	 * Parse a file, which may be compressed. The faces are grouped by
+	 * material, in the order the object is built in.
+	 *
+	 * @param file .OBJ file
+	 * @return parsed records
+	 * @throws IOException
+	 */
+	private static MeshBuilder parse(File file) throws IOException {
+		if (DecompressingChannel.detect(file) == DecompressingChannel.NONE) {
+			return new ParallelObjLoader().parse(file).groupByMaterial();
+		}
+		MeshBuilder b = new MeshBuilder();
+		ReadableByteChannel ch = DecompressingChannel.open(new FileInputStream(file));
+		try {
+			b.parse(ch);
+		} finally {
+			ch.close();
+		}
+		return b.groupByMaterial();
+	}
+
+	/**
+	 * Test whether two files have the same faces.
+	 *
+	 * @param a records of a file
+	 * @param b records of another file
+	 * @return true if the vertex and normal records of all corners are equal
+	 */
+	private static boolean sameFaces(MeshBuilder a, MeshBuilder b) {
+		if (a.faceCount != b.faceCount) {
+			return false;
+		}
+		for (int i = 0; i < a.faceCount * 9; i += 3) {
+			if (a.corners[i] != b.corners[i] || a.corners[i + 2] != b.corners[i + 2]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encode the change from the codes of the previous frame, and update
+	 * the codes.
+	 *
+	 * @param positions vertex coordinates of the frame
+	 * @param normals normal vectors of the frame
+	 * @param all true to encode every vertex
+	 * @return encoded frame
+	 */
+	private byte[] encode(float[] positions, float[] normals, boolean all) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int last = -1;
+		for (int v = 0; v < vertexCount; v++) {
+			int x = Math.round((positions[v * 3] - min[0]) / step);
+			int y = Math.round((positions[v * 3 + 1] - min[1]) / step);
+			int z = Math.round((positions[v * 3 + 2] - min[2]) / step);
+			int normal = CompressedMesh.encodeNormal(normals[v * 3], normals[v * 3 + 1],
+					normals[v * 3 + 2]);
+			if (!all && x == codes[v * 3] && y == codes[v * 3 + 1] && z == codes[v * 3 + 2]
+					&& normal == normalCodes[v]) {
+				continue;
+			}
+			writeVarint(out, v - last - 1);
+			writeVarint(out, zigzag(x - codes[v * 3]));
+			writeVarint(out, zigzag(y - codes[v * 3 + 1]));
+			writeVarint(out, zigzag(z - codes[v * 3 + 2]));
+			out.write(normal >> 8);
+			out.write(normal);
+			codes[v * 3] = x;
+			codes[v * 3 + 1] = y;
+			codes[v * 3 + 2] = z;
+			normalCodes[v] = normal;
+			last = v;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Map a signed value to an unsigned one with small magnitudes first.
+	 *
+	 * @param d signed value
+	 * @return unsigned value
+	 */
+	private static int zigzag(int d) {
+		return (d << 1) ^ (d >> 31);
+	}
+
+	/**
+	 * Write an unsigned value in 7 bit groups, low first.
+	 *
+	 * @param out output
+	 * @param value unsigned value
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Read an unsigned value at the cursor.
+	 *
+	 * @param f encoded frame
+	 * @return unsigned value
+	 */
+	private int readVarint(byte[] f) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = f[cursor++];
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Apply a frame to the codes. The first frame starts from zero codes.
+	 *
+	 * @param k frame
+	 */
+	private void decode(int k) {
+		if (k == 0) {
+			for (int i = 0; i < codes.length; i++) {
+				codes[i] = 0;
+			}
+		}
+		byte[] f = frames[k];
+		cursor = 0;
+		int v = -1;
+		while (cursor < f.length) {
+			v += readVarint(f) + 1;
+			for (int j = 0; j < 3; j++) {
+				int z = readVarint(f);
+				codes[v * 3 + j] += (z >>> 1) ^ -(z & 1);
+			}
+			normalCodes[v] = (f[cursor] & 0xff) << 8 | (f[cursor + 1] & 0xff);
+			cursor += 2;
+		}
+	}
+
+	/**
+	 * Write the decoded frame to a buffer.
+	 *
+	 * @param positions vertex coordinates to write
+	 * @param normals normal vectors to write
+	 */
+	private void fill(float[] positions, float[] normals) {
+		for (int v = 0; v < vertexCount; v++) {
+			for (int j = 0; j < 3; j++) {
+				positions[v * 3 + j] = min[j] + codes[v * 3 + j] * step;
+			}
+			System.arraycopy(normalTable, normalCodes[v] * 3, normals, v * 3, 3);
+		}
+	}
+
+	/**
+	 * Find the numbered files of a sequence, such as frame_0001.obj,
+	 * frame_0002.obj and so on.
+	 *
+	 * @param first first file
+	 * @return files from the first one while the numbers continue
+	 */
+	public static File[] findSequence(File first) {
+		String name = first.getName();
+		int end = name.toLowerCase().lastIndexOf(".obj");
+		if (end < 0) {
+			end = name.length();
+		}
+		int start = end;
+		while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+			start--;
+		}
+		if (start == end) {
+			return new File[] { first };
+		}
+		String prefix = name.substring(0, start);
+		String suffix = name.substring(end);
+		int width = end - start;
+		List files = new ArrayList();
+		for (int number = Integer.parseInt(name.substring(start, end));; number++) {
+			StringBuffer digits = new StringBuffer(String.valueOf(number));
+			while (digits.length() < width) {
+				digits.insert(0, '0');
+			}
+			File file = new File(first.getParentFile(), prefix + digits + suffix);
+			if (!file.isFile()) {
+				break;
+			}
+			files.add(file);
+		}
+		return (File[]) files.toArray(new File[files.size()]);
+	}
+
+	/**
+	 * Start decoding on a daemon thread.
+	 *
+	 * @return the decoding thread
+	 */
+	public Thread start() {
+		running = true;
+		Thread thread = new Thread(this, "VertexAnimation");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Stop decoding.
+	 */
+	public synchronized void stop() {
+		running = false;
+		notifyAll();
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		int k = shown;
+		try {
+			while (running) {
+				k = (k + 1) % frames.length;
+				decode(k);
+				fill(backPositions, backNormals);
+				synchronized (this) {
+					decoded = k;
+					ready = true;
+					while (ready && running) {
+						wait();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stop.
+		}
+	}
+
+	/**
+	 * Set the next decoded frame to the object. Call between frames on the
+	 * thread rendering the object.
+	 *
+	 * @return true if a new frame was set, false if it is not decoded yet
+	 */
+	public synchronized boolean swap() {
+		if (!ready) {
+			return false;
+		}
+		float[] p = frontPositions;
+		frontPositions = backPositions;
+		backPositions = p;
+		float[] n = frontNormals;
+		frontNormals = backNormals;
+		backNormals = n;
+		obj.setMesh(frontPositions, obj.uvs, frontNormals, obj.indices, vertexCount,
+				obj.triangleCount);
+		shown = decoded;
+		ready = false;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Get the animated object.
+	 *
+	 * @return object holding the shown frame
+	 */
+	public Object3D getObject() {
+		return obj;
+	}
+
+	/**
+	 * Get the number of frames.
+	 *
+	 * @return frame count
+	 */
+	public int getFrameCount() {
+		return frames.length;
+	}
+
+	/**
+	 * Get the frame set to the object.
+	 *
+	 * @return shown frame
+	 */
+	public int getFrame() {
+		return shown;
+	}
+
+	/**
+	 * Get the size of the encoded frames.
+	 *
+	 * @return bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (int k = 0; k < frames.length; k++) {
+			bytes += frames[k].length;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Project: WaViewer3D
+ * Version: 1.0
+ * File: VertexWelder.java
+ *
+ * Merges face corners which share the same vertex, UV and normal.
+ *
+ * Copyright(C) 2006-2013 Takao WADA. All rights reserved.
+ */
+package com.drjiro.viewer;
+
+/**
+ * <p>
+ * Merges face corners which share the same vertex, UV and normal.
+ * </p>
+ * Each (v, vt, vn) index triple is looked up in an open addressing hash
+ * table made of int arrays, so no key object is created. Every distinct
+ * triple becomes one vertex, and the faces refer to it by an index.
+ *
+ * @author wada
+ */
+class VertexWelder {
+	/** Marker of an empty slot */
+	private static final int EMPTY = -1;
+
+	/** Keys, 3 per slot */
+	private int[] keys;
+
+	/** Vertex index per slot */
+	private int[] values;
+
+	/** Mask of the slot index */
+	private int mask;
+
+	/** Number of unique vertices */
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param expected expected number of unique vertices
+	 */
+	VertexWelder(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Allocate an empty table.
+	 *
+	 * @param capacity number of slots, a power of 2
+	 */
+	private void allocate(int capacity) {
+		keys = new int[capacity * 3];
+		values = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			values[i] = EMPTY;
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Get the index of a triple, adding it if new.
+	 *
+	 * @param v vertex index
+	 * @param t UV index
+	 * @param n normal index
+	 * @return vertex index of the triple
+	 */
+	int add(int v, int t, int n) {
+		int slot = Index3.hash(v, t, n) & mask;
+		while (true) {
+			int value = values[slot];
+			if (value == EMPTY) {
+				break;
+			}
+			int k = slot * 3;
+			if (keys[k] == v && keys[k + 1] == t && keys[k + 2] == n) {
+				return value;
+			}
+			slot = (slot + 1) & mask;
+		}
+		int k = slot * 3;
+		keys[k] = v;
+		keys[k + 1] = t;
+		keys[k + 2] = n;
+		values[slot] = size;
+		if (++size * 2 > values.length) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	/**
+	 * Double the table.
+	 */
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldValues.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == EMPTY) {
+				continue;
+			}
+			int k = i * 3;
+			int slot = Index3.hash(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2]) & mask;
+			while (values[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			System.arraycopy(oldKeys, k, keys, slot * 3, 3);
+			values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Get the number of unique vertices.
+	 *
+	 * @return unique vertex count
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Build the mesh of an object from parsed records.
+	 *
+	 * @param b parsed records
+	 * @param obj object to set up
+	 */
+	static void weld(MeshBuilder b, Object3D obj) {
+		int corners = b.faceCount * 3;
+		VertexWelder welder = new VertexWelder(Math.max(b.vertexCount, corners / 6));
+		int[] c = b.corners;
+		int[] indices = new int[corners];
+		int[] first = new int[corners];
+		for (int i = 0; i < corners; i++) {
+			int before = welder.size;
+			int index = welder.add(c[i * 3], c[i * 3 + 1], c[i * 3 + 2]);
+			if (welder.size > before) {
+				// Remember the corner which introduced the vertex.
+				first[index] = i;
+			}
+			indices[i] = index;
+		}
+
+		int n = welder.size;
+		float[] positions = new float[n * 3];
+		float[] uvs = new float[n * 2];
+		float[] normals = new float[n * 3];
+		for (int i = 0; i < n; i++) {
+			int k = first[i] * 3;
+			int iv = c[k] * 3;
+			int it = c[k + 1];
+			int in = c[k + 2];
+			positions[i * 3] = b.positions[iv];
+			positions[i * 3 + 1] = b.positions[iv + 1];
+			positions[i * 3 + 2] = b.positions[iv + 2];
+			if (it != ObjParser.NONE) {
+				uvs[i * 2] = b.uvs[it * 3];
+				uvs[i * 2 + 1] = b.uvs[it * 3 + 1];
+			}
+			if (in != ObjParser.NONE) {
+				normals[i * 3] = b.normals[in * 3];
+				normals[i * 3 + 1] = b.normals[in * 3 + 1];
+				normals[i * 3 + 2] = b.normals[in * 3 + 2];
+			}
+		}
+		obj.setMesh(positions, uvs, normals, indices, n, b.faceCount);
+	}
+}
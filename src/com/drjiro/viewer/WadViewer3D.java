@@ -22,8 +22,8 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -59,9 +59,42 @@ public class WadViewer3D extends JApplet {
 	/** Texture image */
 	private BufferedImage texture;
 
+	/** Texture decoded in the background, not yet set to the renderer */
+	private volatile BufferedImage loadedTexture;
+
+	/** Snapshot of a model reloaded in the background, not yet swapped in */
+	private volatile Mesh loadedModel;
+
+	/** Levels of detail of the model, or null */
+	private volatile LodChain lods;
+
+	/** Hierarchy of the faces of the model for picking, or null */
+	private volatile Bvh bvh;
+
+	/** Local .OBJ file, or null when loaded from a URL */
+	private File modelFile;
+
 	/** Shader type */
 	private int shader = TEXTURE;
 
+	/** Bake the ambient occlusion of a loaded model */
+	private boolean occlusion;
+
+	/** Tessellate the shape named by the file name instead of loading it */
+	private boolean adaptive;
+
+	/** Tessellator of the shape, or null */
+	private AdaptiveTessellator tessellator;
+
+	/** Level of the shape shared by the object */
+	private Mesh shownLevel;
+
+	/** Play the numbered files from the given one as a vertex animation */
+	private boolean animated;
+
+	/** Animation of the files, or null */
+	private VertexAnimation animation;
+
 	/** Offscreen buffer */
 	private BufferedImage offImage;
 
@@ -193,6 +226,15 @@ public class WadViewer3D extends JApplet {
 			if (getParameter("file") != null) {
 				fileName = getParameter("file");
 			}
+			if ("true".equals(getParameter("occlusion"))) {
+				occlusion = true;
+			}
+			if ("true".equals(getParameter("adaptive"))) {
+				adaptive = true;
+			}
+			if ("true".equals(getParameter("animation"))) {
+				animated = true;
+			}
 		} catch (Exception e) {
 			// Nothing to do.
 		}
@@ -216,43 +258,206 @@ public class WadViewer3D extends JApplet {
 
 		// Create a 3D object.
 		obj = new Object3D();
+		obj.setWeld(true);
 		obj.setRot(new Vector3f(theta, phi, 0.0f));
 
+		if (adaptive) {
+			// Tessellate the shape named instead of a file.
+			int shape = SimpleShape.getShape(fileName);
+			if (shape < 0) {
+				System.exit(1);
+				return;
+			}
+			tessellator = new AdaptiveTessellator(shape, 1);
+			tessellator.setListener(new AdaptiveTessellator.Listener() {
+				/**
+				 * Draw a finer level.
+				 * 
+				 * @see com.drjiro.viewer.AdaptiveTessellator.Listener#levelReady(int)
+				 */
+				public void levelReady(int level) {
+					repaint();
+				}
+			});
+			shownLevel = tessellator.select(new Matrix4f());
+			obj.share(shownLevel);
+		} else if (animated) {
+			// Encode the sequence of local files from the named one.
+			try {
+				animation = new VertexAnimation(VertexAnimation.findSequence(new File(fileName + ".obj")));
+			} catch (IOException e) {
+				System.exit(1);
+				return;
+			}
+			obj = animation.getObject();
+			obj.setRot(new Vector3f(theta, phi, 0.0f));
+		} else {
+			loadModel();
+		}
+
+		// Load a texture.
+		Thread thread = new Thread(new Runnable() {
+			/**
+			 * Decode the texture and pass it to the paint handler.
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			public void run() {
+				BufferedImage image = null;
+				try {
+					image = ImageIO.read(new URL(getCodeBase(), fileName + ".jpg"));
+				} catch (Exception e) {
+					// Read a local file.
+				}
+				try {
+					if (image == null) {
+						image = ImageIO.read(new FileInputStream(fileName + ".jpg"));
+					}
+				} catch (IOException e1) {
+					// Nothing to do.
+				}
+				if (image == null) {
+					// A model with materials may have no texture of its
+					// own; the white default texel is kept.
+					return;
+				}
+				loadedTexture = image;
+				repaint();
+			}
+		}, "TextureLoader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Load the geometry of the file in the background.
+	 */
+	private void loadModel() {
+		// Load the geometry at the same time as the texture.
+		ProgressiveLoader.Listener listener = new ProgressiveLoader.Listener() {
+			/**
+			 * Show the faces loaded so far.
+			 * 
+			 * @see com.drjiro.viewer.ProgressiveLoader.Listener#batchLoaded(com.drjiro.viewer.Object3D)
+			 */
+			public void batchLoaded(Object3D o) {
+				repaint();
+			}
+
+			/**
+			 * Exit if the model cannot be loaded. Otherwise swap in the
+			 * optimized mesh.
+			 * 
+			 * @see com.drjiro.viewer.ProgressiveLoader.Listener#loadFinished(com.drjiro.viewer.Object3D, java.lang.Exception)
+			 */
+			public void loadFinished(Object3D o, Exception e) {
+				if (e != null) {
+					System.exit(1);
+				}
+				prepare(o);
+				watch();
+			}
+		};
+		ProgressiveLoader loader;
 		try {
 			// Load a .OBJ object.
-			obj.load(new URL(getCodeBase(), fileName + ".obj"));
+			loader = new ProgressiveLoader(obj, new URL(getCodeBase(), fileName + ".obj"), listener);
 		} catch (MalformedURLException e) {
 			// e.printStackTrace();
 			System.exit(1);
-		} catch (IOException e) {
-			// e.printStackTrace();
-			System.exit(1);
+			return;
 		} catch (Exception e) {
-			try {
-				obj.load(new FileInputStream(fileName + ".obj"));
-			} catch (FileNotFoundException e1) {
-				System.exit(1);
-			} catch (IOException e1) {
-				System.exit(1);
+			File file = new File(fileName + ".obj");
+			if (!file.exists()) {
+				// Try an archived model.
+				file = new File(fileName + ".obj.gz");
 			}
+			loader = new ProgressiveLoader(obj, file, listener);
+			modelFile = file;
 		}
+		loader.start();
+	}
 
-		// Load a texture.
+	/**
+	 * Start tessellating a shape or decoding an animation.
+	 * 
+	 * @see java.applet.Applet#start()
+	 */
+	public void start() {
+		if (tessellator != null) {
+			tessellator.start();
+		}
+		if (animation != null) {
+			animation.start();
+		}
+	}
+
+	/**
+	 * Stop tessellating a shape or decoding an animation.
+	 * 
+	 * @see java.applet.Applet#stop()
+	 */
+	public void stop() {
+		if (tessellator != null) {
+			tessellator.stop();
+		}
+		if (animation != null) {
+			animation.stop();
+		}
+	}
+
+	/**
+	 * Optimize a loaded model and swap it in on the next paint, then build
+	 * the hierarchy for picking and the levels of detail.
+	 * 
+	 * @param o loaded object, which is not changed
+	 */
+	private void prepare(Object3D o) {
+		Object3D optimized = new Object3D();
+		optimized.share(o);
+		optimized.optimize();
+		optimized.buildMeshlets();
+		if (occlusion) {
+			optimized.bakeOcclusion();
+		}
+		loadedModel = optimized.snapshot();
+		repaint();
+		bvh = new Bvh(optimized);
+		lods = new LodChain(optimized);
+	}
+
+	/**
+	 * Reload a local model and its texture when they are changed.
+	 */
+	private void watch() {
 		try {
-			texture = ImageIO.read(new URL(getCodeBase(), fileName + ".jpg"));
-			// Set a texture to the renderer.
-			renderer.setTexture(texture);
-		} catch (Exception e) {
-			try {
-				texture = ImageIO.read(new FileInputStream(fileName + ".jpg"));
-				// Set a texture to the renderer.
-				renderer.setTexture(texture);
-			} catch (FileNotFoundException e1) {
-				System.exit(1);
-			} catch (IOException e1) {
-				System.exit(1);
+			if (modelFile == null
+					|| DecompressingChannel.detect(modelFile) != DecompressingChannel.NONE) {
+				return;
 			}
+		} catch (IOException e) {
+			return;
 		}
+		new ModelWatcher(modelFile, new File(fileName + ".jpg"), true, new ModelWatcher.Listener() {
+			/**
+			 * Swap the optimized model in on the next paint.
+			 * 
+			 * @see com.drjiro.viewer.ModelWatcher.Listener#modelChanged(com.drjiro.viewer.Object3D)
+			 */
+			public void modelChanged(Object3D o) {
+				prepare(o);
+			}
+
+			/**
+			 * Set the texture on the next paint.
+			 * 
+			 * @see com.drjiro.viewer.ModelWatcher.Listener#textureChanged(java.awt.image.BufferedImage)
+			 */
+			public void textureChanged(BufferedImage image) {
+				loadedTexture = image;
+				repaint();
+			}
+		}).start();
 	}
 
 	/**
@@ -292,6 +497,26 @@ public class WadViewer3D extends JApplet {
 	 * @param g2 Graphics2D object
 	 */
 	public void drawModel(Graphics2D g2) {
+		// Set a texture loaded in the background.
+		BufferedImage image = loadedTexture;
+		if (image != null) {
+			loadedTexture = null;
+			texture = image;
+			renderer.setTexture(texture);
+		}
+		// Swap a reloaded model in between frames.
+		Mesh model = loadedModel;
+		if (model != null) {
+			loadedModel = null;
+			obj.share(model);
+		}
+		// Show the next frame of an animation once it is decoded, and keep
+		// playing.
+		if (animation != null) {
+			animation.swap();
+			repaint();
+		}
+
 		// Create a matrix
 		Matrix4f m = new Matrix4f();
 		// Identity the matrix
@@ -308,9 +533,39 @@ public class WadViewer3D extends JApplet {
 		int dy = (int) (screenHeight / 2 - (obj.getCenter().y * screenWidth * scale));
 		m.translate(dx, dy, 0); // Transform to the center of the screen
 
+		// Draw the level of the shape for its size on the screen.
+		if (tessellator != null) {
+			Mesh level = tessellator.select(m);
+			if (level != shownLevel) {
+				shownLevel = level;
+				obj.share(level);
+			}
+		}
+
 		renderer.setTransform(m);
 
-		renderer.render(obj, camera, offg, nomal_inverse);
+		// Levels of detail of an older model are not used.
+		LodChain chain = lods;
+		if (chain != null && chain.getLevel(0).getIndexArray() == obj.getIndexArray()) {
+			renderer.render(chain, camera, offg, nomal_inverse);
+		} else {
+			renderer.render(obj, camera, offg, nomal_inverse);
+		}
+	}
+
+	/**
+	 * Pick the face of the model under a point of the last frame.
+	 * 
+	 * @param screenX X of the point
+	 * @param screenY Y of the point
+	 * @return hit face, or null if none or not ready
+	 */
+	public Bvh.Hit pick(int screenX, int screenY) {
+		Bvh b = bvh;
+		if (b == null || b.indices != obj.getIndexArray() || !(renderer instanceof TextureRenderer)) {
+			return null;
+		}
+		return ((TextureRenderer) renderer).pick(b, screenX, screenY);
 	}
 
 	/**
@@ -338,6 +593,38 @@ public class WadViewer3D extends JApplet {
 		this.shader = shader;
 	}
 
+	/**
+	 * Set whether the ambient occlusion of a loaded model is baked.
+	 * 
+	 * @param occlusion true to bake
+	 */
+	public void setOcclusion(boolean occlusion) {
+		this.occlusion = occlusion;
+	}
+
+	/**
+	 * Set whether the shape named by the file name is tessellated to its
+	 * size on the screen instead of loading a file.
+	 * 
+	 * @param adaptive true to tessellate
+	 * @see SimpleShape#getShape(String)
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Set whether the numbered files from the given one, such as
+	 * frame_0001.obj, frame_0002.obj and so on, are played as a vertex
+	 * animation.
+	 * 
+	 * @param animated true to play
+	 * @see VertexAnimation#findSequence(File)
+	 */
+	public void setAnimated(boolean animated) {
+		this.animated = animated;
+	}
+
 	/**
 	 * Entry point of this application.
 	 * 
@@ -345,7 +632,7 @@ public class WadViewer3D extends JApplet {
 	 */
 	public static void main(String[] args) {
 		if (args.length != 1 && args.length != 2) {
-			System.err.println("Usage: com.drjiro.viewer.WaViewer3D filename");
+			System.err.println("Usage: com.drjiro.viewer.WaViewer3D filename [FLAT|AO|ADAPTIVE|ANIMATION]");
 			System.exit(1);
 		}
 		final JFrame frame = new JFrame("WaViewer3D");
@@ -355,6 +642,12 @@ public class WadViewer3D extends JApplet {
 		if (args.length == 2) {
 			if (args[1].equals("FLAT")) {
 				applet.setShader(WadViewer3D.FLAT);
+			} else if (args[1].equals("AO")) {
+				applet.setOcclusion(true);
+			} else if (args[1].equals("ADAPTIVE")) {
+				applet.setAdaptive(true);
+			} else if (args[1].equals("ANIMATION")) {
+				applet.setAnimated(true);
 			}
 		}
 		